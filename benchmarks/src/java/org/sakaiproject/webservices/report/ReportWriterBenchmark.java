@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.report;
+
+import java.io.Writer;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The rows per second each {@link ReportWriter} format writes, and the bytes it allocates and writes for each row.
+ * <p>
+ * Build with <code>mvn -Pbenchmarks -pl benchmarks -am package</code> and run <code>java -jar benchmarks/target/benchmarks.jar</code>,
+ * which takes the usual JMH options. Each operation is one row, so the score is rows per second,
+ * <code>gc.alloc.rate.norm</code> from the GC profiler, always added, is bytes allocated per row and
+ * <code>chars</code> is the characters written per second, so divided by the score it is characters per row.
+ * <p>
+ * The rows come from an in-memory result set built with a {@link Proxy}, which allocates a little for every call.
+ * <code>read</code> reads every column of every row without writing anything, so its allocation is what the result
+ * set costs and the rest of each format's is the writer's own.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(ReportWriterBenchmark.ROWS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ReportWriterBenchmark {
+
+    static final int ROWS = 1000;
+
+    private static final String[] LABELS = { "SITE_ID", "TITLE", "MEMBERS", "CREATEDON", "STARTS", "SCORE", "NOTE" };
+    private static final int[] TYPES = { Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.TIMESTAMP, Types.DATE, Types.DOUBLE, Types.VARCHAR };
+
+    @Param({ "csv", "csv_with_header_row", "json", "xml" })
+    public String format;
+
+    private Object[][] rows;
+
+    /**
+     * The characters written, reported per second
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Output {
+        public long chars;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        rows = new Object[ROWS][];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = new Object[] {
+                    "e8a4d0c2-7b1f-4e6a-9c3d-" + String.format("%012d", i),
+                    // every tenth title has something to escape in each format
+                    (i % 10 == 0) ? "Biology & \"Chemistry\" <" + i + ">" : "Introduction to Biology " + i,
+                    i % 250,
+                    new Timestamp(now - i * 60000L),
+                    new Date(now - i * 86400000L),
+                    i / 7.0,
+                    (i % 2 == 0) ? null : "Section " + i
+            };
+        }
+    }
+
+    @Benchmark
+    public long write(Output output) throws Exception {
+        CountingWriter out = new CountingWriter();
+        long written = ReportWriter.forFormat(ReportFormat.of(format)).write(resultSet(), out);
+        output.chars += out.chars;
+        return written;
+    }
+
+    @Benchmark
+    public long read() throws Exception {
+        ResultSet rs = resultSet();
+        long values = 0;
+        while (rs.next()) {
+            for (int i = 1; i <= LABELS.length; i++) {
+                if (rs.getObject(i) != null) {
+                    values++;
+                }
+            }
+        }
+        return values;
+    }
+
+    private ResultSet resultSet() {
+        ResultSetMetaData rsmd = (ResultSetMetaData) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { ResultSetMetaData.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getColumnCount":
+                            return LABELS.length;
+                        case "getColumnLabel":
+                            return LABELS[(Integer) args[0] - 1];
+                        case "getColumnType":
+                            return TYPES[(Integer) args[0] - 1];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        int[] row = { -1 };
+        return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { ResultSet.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getMetaData":
+                            return rsmd;
+                        case "next":
+                            return ++row[0] < rows.length;
+                        case "wasNull":
+                            return false;
+                        case "getInt":
+                            return ((Number) value(row[0], args)).intValue();
+                        case "getLong":
+                            return ((Number) value(row[0], args)).longValue();
+                        case "getDouble":
+                            return ((Number) value(row[0], args)).doubleValue();
+                        case "getFloat":
+                            return ((Number) value(row[0], args)).floatValue();
+                        case "getBigDecimal":
+                            return BigDecimal.valueOf(((Number) value(row[0], args)).doubleValue());
+                        default:
+                            // getString, getNString, getObject, getDate and getTimestamp
+                            return value(row[0], args);
+                    }
+                });
+    }
+
+    private Object value(int row, Object[] args) {
+        return rows[row][(Integer) args[0] - 1];
+    }
+
+    /**
+     * Counts what is written and throws it away, so the writer's cost isn't hidden by the output's
+     */
+    private static class CountingWriter extends Writer {
+        private long chars;
+
+        @Override
+        public void write(int c) {
+            chars++;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            chars += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            chars += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(ReportWriterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
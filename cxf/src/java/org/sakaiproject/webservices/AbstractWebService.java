@@ -62,6 +62,8 @@ import org.sakaiproject.userauditservice.api.UserAuditRegistration;
 import org.sakaiproject.memory.api.MemoryService;
 import org.sakaiproject.db.api.SqlService;
 import org.sakaiproject.importer.api.ImportService;
+import org.sakaiproject.webservices.db.SqlExecutor;
+import org.sakaiproject.webservices.job.AdminJobService;
 
 import javax.jws.WebMethod;
 import javax.jws.WebService;
@@ -114,6 +116,13 @@ public class AbstractWebService {
     protected ImportService importService;
     protected ProfileLogic profileLogic;
     protected SakaiProxy sakaiProxy;
+    protected SessionCache sessionCache;
+    protected AdminJobService adminJobService;
+    protected SiteListService siteListService;
+    protected WebServiceSessionIndex webServiceSessionIndex;
+    protected SqlExecutor sqlExecutor;
+    protected ProviderIdIndex providerIdIndex;
+    protected GradeableStudentCache gradeableStudentCache;
 
     /**
      * Get the Session related to the given sessionid
@@ -123,12 +132,17 @@ public class AbstractWebService {
      * @	if session is inactive
      */
     protected Session establishSession(String sessionid) {
-        Session s = sessionManager.getSession(sessionid);
+        Session s;
+        if (sessionCache != null) {
+            s = sessionCache.getActiveSession(sessionid);
+        } else {
+            s = sessionManager.getSession(sessionid);
+            if (s != null) s.setActive();
+        }
 
         if (s == null) {
             throw new RuntimeException("Session \"" + sessionid + "\" is not active");
         }
-        s.setActive();
         sessionManager.setCurrentSession(s);
         return s;
     }
@@ -153,6 +167,41 @@ public class AbstractWebService {
     public void setSessionManager(SessionManager sessionManager) {
         this.sessionManager = sessionManager;
     }
+
+    @WebMethod(exclude = true)
+    public void setSessionCache(SessionCache sessionCache) {
+        this.sessionCache = sessionCache;
+    }
+
+    @WebMethod(exclude = true)
+    public void setAdminJobService(AdminJobService adminJobService) {
+        this.adminJobService = adminJobService;
+    }
+
+    @WebMethod(exclude = true)
+    public void setSiteListService(SiteListService siteListService) {
+        this.siteListService = siteListService;
+    }
+
+    @WebMethod(exclude = true)
+    public void setWebServiceSessionIndex(WebServiceSessionIndex webServiceSessionIndex) {
+        this.webServiceSessionIndex = webServiceSessionIndex;
+    }
+
+    @WebMethod(exclude = true)
+    public void setSqlExecutor(SqlExecutor sqlExecutor) {
+        this.sqlExecutor = sqlExecutor;
+    }
+
+    @WebMethod(exclude = true)
+    public void setProviderIdIndex(ProviderIdIndex providerIdIndex) {
+        this.providerIdIndex = providerIdIndex;
+    }
+
+    @WebMethod(exclude = true)
+    public void setGradeableStudentCache(GradeableStudentCache gradeableStudentCache) {
+        this.gradeableStudentCache = gradeableStudentCache;
+    }
     
     @WebMethod(exclude = true)
     public void setAssignmentService(AssignmentService assignmentService) {
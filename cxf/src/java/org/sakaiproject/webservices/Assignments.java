@@ -23,6 +23,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import javax.jws.WebMethod;
 import javax.jws.WebParam;
@@ -32,6 +33,7 @@ import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang3.StringUtils;
@@ -144,57 +146,72 @@ public class Assignments extends AbstractWebService {
 
 
     @WebMethod
-    @Path("/getSubmissionsForAssignment")
-    @Produces("text/plain")
-    @GET
     public String getSubmissionsForAssignment(
             @WebParam(name = "sessionId", partName = "sessionId") @QueryParam("sessionId") String sessionId,
             @WebParam(name = "assignmentId", partName = "assignmentId") @QueryParam("assignmentId") String assignmentId) {
+        XmlResponseWriter.Body body = getSubmissionsForAssignmentBody(sessionId, assignmentId);
         try {
+            return XmlResponseWriter.writeToString(body);
+        }
+        catch (Exception e){
+            log.error("WS getSubmissionsForAssignment(): " + e.getClass().getName() + " : " + e.getMessage());
+        }
+
+        return "<submissions />";
+    }
+
+    /**
+     * REST form of getSubmissionsForAssignment, each submission is streamed to the client as it is read.
+     */
+    @WebMethod(exclude = true)
+    @Path("/getSubmissionsForAssignment")
+    @Produces("text/plain")
+    @GET
+    public StreamingOutput getSubmissionsForAssignmentStream(
+            @QueryParam("sessionId") String sessionId,
+            @QueryParam("assignmentId") String assignmentId) {
+        return XmlResponseWriter.stream(getSubmissionsForAssignmentBody(sessionId, assignmentId));
+    }
 
+    private XmlResponseWriter.Body getSubmissionsForAssignmentBody(String sessionId, String assignmentId) {
+        final Set<AssignmentSubmission> subs;
+        try {
     		Session s = establishSession(sessionId);
     		Assignment assign = assignmentService.getAssignment(assignmentId);
-    		Set<AssignmentSubmission> subs = assignmentService.getSubmissions(assign);
+    		subs = assignmentService.getSubmissions(assign);
+    	}
+    	catch (Exception e){
+    		log.error("WS getSubmissionsForAssignment(): " + e.getClass().getName() + " : " + e.getMessage());
+    		return XmlResponseWriter.literal("<submissions />");
+    	}
 
-    		//build the xml
-    		log.debug("about to start building xml doc");
-    		Document dom = Xml.createDocument();
-    		Node all = dom.createElement("submissions");
-    		dom.appendChild(all);
+    	return xml -> {
+    		xml.start("submissions");
 
     		for (AssignmentSubmission thisSub : subs) {
     			log.debug("got submission" + thisSub);
-    			Element uElement = dom.createElement("submission");
-    			uElement.setAttribute("feedback-comment", thisSub.getFeedbackComment());
-    			uElement.setAttribute("feedback-text", thisSub.getFeedbackText());
-    			uElement.setAttribute("grade", thisSub.getGrade());
-    			uElement.setAttribute("status", assignmentService.getSubmissionStatus(thisSub.getId(), true));
-    			uElement.setAttribute("submitted-text", thisSub.getSubmittedText());
+    			// Sorted so the attributes come out in the same order the DOM serializer wrote them
+    			Map<String, String> attributes = new TreeMap<>();
+    			attributes.put("feedback-comment", thisSub.getFeedbackComment());
+    			attributes.put("feedback-text", thisSub.getFeedbackText());
+    			attributes.put("grade", thisSub.getGrade());
+    			attributes.put("status", assignmentService.getSubmissionStatus(thisSub.getId(), true));
+    			attributes.put("submitted-text", thisSub.getSubmittedText());
     			for (AssignmentSubmissionSubmitter submitter : thisSub.getSubmitters()) {
-    				uElement.setAttribute("submitter-id", submitter.getSubmitter());
+    				attributes.put("submitter-id", submitter.getSubmitter());
     			}
 
-    			//Element attachments = dom.createElement("attachment");
     			for (String attachment : thisSub.getAttachments()) {
-    				//Element attachments = dom.createElement("attachment");
     				Reference ref = entityManager.newReference(attachment);
     				Entity ent = ref.getEntity();
-    				uElement.setAttribute("attachment-url", ent.getUrl());
-    				//all.appendChild();
+    				attributes.put("attachment-url", ent.getUrl());
     			}
 
-    			all.appendChild(uElement);
-
+    			xml.start("submission", attributes).end();
     		}
-    		String retVal = Xml.writeDocumentToString(dom);
-    		return retVal;
-    	}
-    	catch (Exception e){
-    		log.error("WS getSubmissionsForAssignment(): " + e.getClass().getName() + " : " + e.getMessage());
-    	}
-
-    	return "<submissions />";
 
+    		xml.end();
+    	};
     }
 
     @WebMethod
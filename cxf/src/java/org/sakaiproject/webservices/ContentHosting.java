@@ -15,7 +15,9 @@
  */
 package org.sakaiproject.webservices;
 
+import java.io.IOException;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
@@ -28,6 +30,7 @@ import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang3.StringUtils;
@@ -452,85 +455,104 @@ public class ContentHosting extends AbstractWebService {
 	 */
 
     @WebMethod
-    @Path("/getResources")
-    @Produces("text/plain")
-    @GET
     public String getResources(
             @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid,
             @WebParam(name = "id", partName = "id") @QueryParam("id") String id) {
+		XmlResponseWriter.Body body = getResourcesBody(sessionid, id);
+		try {
+			return XmlResponseWriter.writeToString(body);
+		}
+		catch (Exception e) {
+			return e.getClass().getName() + " : " + e.getMessage();
+		}
+	}
 
-        Session session = establishSession(sessionid);
-		String ret = "";
+	/**
+	 *	REST form of getResources, each resource block is streamed to the client as it is read.
+	 *
+	 *	@param a valid session id.
+	 *	@param id of virtual root, collection, or resource.
+	 *	@return an XML list of resource ids, names, and types, or an error message.
+	 */
+    @WebMethod(exclude = true)
+    @Path("/getResources")
+    @Produces("text/plain")
+    @GET
+    public StreamingOutput getResourcesStream(@QueryParam("sessionid") String sessionid, @QueryParam("id") String id) {
+		return XmlResponseWriter.stream(getResourcesBody(sessionid, id));
+	}
 
-		Document dom = Xml.createDocument();
-		Node list = dom.createElement("list");
-		dom.appendChild(list);
+	private XmlResponseWriter.Body getResourcesBody(String sessionid, String id) {
+		Session session = establishSession(sessionid);
 
 		if (id.compareTo (ContentHosting.VIRTUAL_ROOT_ID) == 0) {
+			// The collections are read before anything is written, so an error gives the same message it always has
+			final List<ContentCollection> roots = new ArrayList<>();
 			try {
 				List sites = siteService.getSites(SelectionType.UPDATE, null, null, null, SortType.TITLE_ASC, null);
-
 				for (Iterator i = sites.iterator(); i.hasNext();) {
 					Site site = (Site)i.next();
 					String rootId = contentHostingService.getSiteCollection(site.getId());
 
 					try {
 						// If site has no CHS root, it will throw unused id exception.
-						ContentCollection coll = contentHostingService.getCollection (rootId);
-
-						Node item = getResourceBlock (coll, dom);
-
-						list.appendChild(item);
+						roots.add(contentHostingService.getCollection (rootId));
 					}
 					catch (IdUnusedException ex) {
 						continue;
 					}
 				}
-
 			}
 			catch (Exception e) {
-				return e.getClass().getName() + " : " + e.getMessage();
+				return XmlResponseWriter.literal(e.getClass().getName() + " : " + e.getMessage());
 			}
-		}
-		else {
-			try {
-				ContentCollection coll = contentHostingService.getCollection (id);
-				List entities = coll.getMemberResources();
-				
-				for (Iterator i = entities.iterator(); i.hasNext();) {
-					ContentEntity ent = (ContentEntity)i.next();
-					
-					Node item = getResourceBlock (ent, dom);
-					list.appendChild(item);
-				}
-			}
-			catch (TypeException ex1) {
-				try {
-					ContentResource res = contentHostingService.getResource (id);
-					Node item = getResourceBlock (res, dom);
-					list.appendChild(item);
-				}
-				catch (Exception ex2) {
-					return ex2.getClass().getName() + " : " + ex2.getMessage();
-				}
-			}
-			catch (IdUnusedException ex3) {
-				try {
-					ContentResource res = contentHostingService.getResource (id);
-					Node item = getResourceBlock (res, dom);
-					list.appendChild(item);
-				}
-				catch (Exception ex4) {
-					return ex4.getClass().getName() + " : " + ex4.getMessage();
+
+			return xml -> {
+				xml.start("list");
+				for (ContentCollection coll : roots) {
+					writeResourceBlock (coll, xml);
 				}
+				xml.end();
+			};
+		}
+
+		final List entities;
+		try {
+			ContentCollection coll = contentHostingService.getCollection (id);
+			entities = coll.getMemberResources();
+		}
+		catch (TypeException ex1) {
+			return getSingleResourceBody(id);
+		}
+		catch (IdUnusedException ex3) {
+			return getSingleResourceBody(id);
+		}
+		catch (Exception ex5) {
+			return XmlResponseWriter.literal(ex5.getClass().getName() + " : " + ex5.getMessage());
+		}
+
+		return xml -> {
+			xml.start("list");
+			for (Iterator i = entities.iterator(); i.hasNext();) {
+				ContentEntity ent = (ContentEntity)i.next();
+				writeResourceBlock (ent, xml);
 			}
-			catch (Exception ex5) {
-				return ex5.getClass().getName() + " : " + ex5.getMessage();
-			}
+			xml.end();
+		};
+	}
+
+	private XmlResponseWriter.Body getSingleResourceBody(String id) {
+		try {
+			ContentResource res = contentHostingService.getResource (id);
+			return xml -> {
+				xml.start("list");
+				writeResourceBlock (res, xml);
+				xml.end();
+			};
+		}
+		catch (Exception ex2) {
+			return XmlResponseWriter.literal(ex2.getClass().getName() + " : " + ex2.getMessage());
 		}
-		
-		ret = Xml.writeDocumentToString(dom);
-		return ret;
 	}
 
 
@@ -662,6 +684,21 @@ public class ContentHosting extends AbstractWebService {
 	}
 
 
+	/*
+	 *  Streaming form of getResourceBlock(), writes the same resource element.
+	 */
+	private void writeResourceBlock (ContentEntity entity, XmlResponseWriter xml) throws IOException {
+		String type = entity.isCollection() ? ContentHosting.RESOURCE_TYPE_COLLECTION : ContentHosting.RESOURCE_TYPE_RESOURCE;
+
+		xml.start("resource")
+			.element("id", entity.getId())
+			.element("name", entity.getProperties().getProperty(ResourceProperties.PROP_DISPLAY_NAME))
+			.element("type", type)
+			.element("url", entity.getUrl())
+			.end();
+	}
+
+
 	/*
 	 *  Create a resouce XML node for the virtual root containing:
 	 *  <ul>
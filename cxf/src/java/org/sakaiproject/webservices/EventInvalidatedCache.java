@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Set;
+
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * An {@link ExpiringCache} of what was read from Sakai, with values dropped as the events that change them are seen.
+ * <p>
+ * <code>&lt;prefix&gt;.enabled</code>, <code>&lt;prefix&gt;.ttl</code> and <code>&lt;prefix&gt;.size</code> are read
+ * from sakai.properties in {@link #init()}, and only while the cache is enabled are events observed.
+ */
+@Slf4j
+public abstract class EventInvalidatedCache<K, V> implements Observer {
+
+    @Setter
+    protected EventTrackingService eventTrackingService;
+
+    @Setter
+    protected ServerConfigurationService serverConfigurationService;
+
+    @Setter
+    protected boolean enabled = true;
+
+    // How long a value is kept for, in seconds
+    @Setter
+    private int ttl;
+
+    // The most values held at once
+    @Setter
+    private int size;
+
+    protected final ExpiringCache<K, V> cache;
+
+    private final String prefix;
+    private final Set<String> events;
+
+    /**
+     * @param prefix the sakai.properties prefix of the settings
+     * @param events the events that may change a cached value
+     */
+    protected EventInvalidatedCache(String prefix, int ttl, int size, String... events) {
+        this.prefix = prefix;
+        this.ttl = ttl;
+        this.size = size;
+        this.events = new HashSet<>(Arrays.asList(events));
+        this.cache = new ExpiringCache<>(size, ttl);
+    }
+
+    public void init() {
+        enabled = serverConfigurationService.getBoolean(prefix + ".enabled", enabled);
+        ttl = serverConfigurationService.getInt(prefix + ".ttl", ttl);
+        size = serverConfigurationService.getInt(prefix + ".size", size);
+
+        cache.configure(size, ttl);
+        if (enabled) {
+            eventTrackingService.addObserver(this);
+        }
+
+        log.info("Web services {} enabled={} ttl={}s size={}", prefix, enabled, ttl, size);
+    }
+
+    public void destroy() {
+        eventTrackingService.deleteObserver(this);
+    }
+
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * @return how many values were dropped to make room for others
+     */
+    public long getEvictions() {
+        return cache.getEvictions();
+    }
+
+    /**
+     * @return how many values were dropped because of an event
+     */
+    public long getInvalidations() {
+        return cache.getInvalidations();
+    }
+
+    public int getCachedCount() {
+        return cache.size();
+    }
+
+    @Override
+    public void update(Observable o, Object arg) {
+        if (arg instanceof Event && events.contains(((Event) arg).getEvent())) {
+            invalidate((Event) arg);
+        }
+    }
+
+    /**
+     * Drop the values an event may have changed.
+     */
+    protected abstract void invalidate(Event event);
+}
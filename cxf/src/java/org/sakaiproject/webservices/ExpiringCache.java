@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+/**
+ * A bounded cache of values kept for a fixed time, with the counts the metrics operation reports, for the caches in
+ * front of the session store, the site lists and the gradebook rosters.
+ * <p>
+ * Reads don't lock, so a cache can sit on the path of every request. Once it holds more than its size, adding a value
+ * drops any that have expired and then the least recently used. Finding that takes a look at every entry, but it
+ * only happens on a miss, which has just done the far slower lookup the cache is there to save.
+ */
+public class ExpiringCache<K, V> {
+
+    private final Map<K, Node<V>> nodes = new ConcurrentHashMap<>();
+
+    // Orders uses, so the least recently used entry has the lowest
+    private final AtomicLong uses = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    private volatile int size;
+    private volatile long ttlMillis;
+
+    /**
+     * @param size the most values held, 0 to hold none
+     * @param ttl  the seconds a value is kept for
+     */
+    public ExpiringCache(int size, int ttl) {
+        configure(size, ttl);
+    }
+
+    /**
+     * Change the size and time to live, as read from sakai.properties, and empty the cache.
+     */
+    public void configure(int size, int ttl) {
+        this.size = size;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttl);
+        nodes.clear();
+    }
+
+    /**
+     * @return the value, or null if there is none or it has expired
+     */
+    public V get(K key) {
+        return get(key, null);
+    }
+
+    /**
+     * @param valid if given, a value it rejects is dropped as if it had expired
+     * @return the value, or null if there is none, it has expired or isn't valid
+     */
+    public V get(K key, Predicate<? super V> valid) {
+        Node<V> node = nodes.get(key);
+        if (node != null && (node.expires < System.currentTimeMillis() || (valid != null && !valid.test(node.value)))) {
+            nodes.remove(key, node);
+            node = null;
+        }
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        node.used = uses.incrementAndGet();
+        hits.increment();
+        return node.value;
+    }
+
+    public void put(K key, V value) {
+        if (size <= 0) {
+            return;
+        }
+        nodes.put(key, new Node<>(value, System.currentTimeMillis() + ttlMillis, uses.incrementAndGet()));
+        if (nodes.size() > size) {
+            evict();
+        }
+    }
+
+    /**
+     * Drop a value because what it was read from has changed.
+     */
+    public void invalidate(K key) {
+        if (nodes.remove(key) != null) {
+            invalidations.increment();
+        }
+    }
+
+    /**
+     * Drop every value that matches, because what they were read from has changed.
+     *
+     * @return the number dropped
+     */
+    public int invalidateIf(BiPredicate<? super K, ? super V> matches) {
+        int removed = 0;
+        for (Map.Entry<K, Node<V>> entry : nodes.entrySet()) {
+            Node<V> node = entry.getValue();
+            if (matches.test(entry.getKey(), node.value) && nodes.remove(entry.getKey(), node)) {
+                removed++;
+            }
+        }
+        invalidations.add(removed);
+        return removed;
+    }
+
+    public void clear() {
+        nodes.clear();
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return how many values were dropped to make room for others
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return how many values were dropped because what they were read from changed
+     */
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+        K eldest = null;
+        Node<V> eldestNode = null;
+        for (Map.Entry<K, Node<V>> entry : nodes.entrySet()) {
+            Node<V> node = entry.getValue();
+            if (node.expires < now) {
+                nodes.remove(entry.getKey(), node);
+            } else if (eldestNode == null || node.used < eldestNode.used) {
+                eldest = entry.getKey();
+                eldestNode = node;
+            }
+        }
+        if (nodes.size() > size && eldestNode != null && nodes.remove(eldest, eldestNode)) {
+            evictions.increment();
+        }
+    }
+
+    private static final class Node<V> {
+        private final V value;
+        private final long expires;
+        private volatile long used;
+
+        private Node(V value, long expires, long used) {
+            this.value = value;
+            this.expires = expires;
+            this.used = used;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.exception.IdUnusedException;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.user.api.User;
+import org.sakaiproject.user.api.UserDirectoryService;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The students whose grades are exported for a site, those with <code>section.role.student</code>, as a map of user
+ * id to display id. The grade operations are often called one after another for the same sites, so each site's
+ * roster is kept for <code>webservices.gradeable-student-cache.ttl</code> seconds, for at most
+ * <code>webservices.gradeable-student-cache.size</code> sites, dropping the least recently used. A site's roster is dropped as soon as its membership,
+ * realm or one of its groups changes, and every roster a user is in is dropped when the user is updated, as it is when
+ * their eid is changed. A change that comes from the provider without an event is seen once the roster expires. The cache can be turned off with <code>webservices.gradeable-student-cache.enabled=false</code>.
+ * <p>
+ * A roster is held as two sorted arrays of interned ids rather than a map, so a student in many sections shares the
+ * same strings and a few thousand sections take a few MB.
+ */
+@Slf4j
+public class GradeableStudentCache extends EventInvalidatedCache<String, GradeableStudentCache.Roster> {
+
+    static final String STUDENT_PERMISSION = "section.role.student";
+
+    private static final String USER_REFERENCE = "/user/";
+
+    @Setter
+    private SiteService siteService;
+
+    @Setter
+    private UserDirectoryService userDirectoryService;
+
+    public GradeableStudentCache() {
+        super("webservices.gradeable-student-cache", 300, 5000, SiteService.SECURE_ADD_SITE, SiteService.SECURE_UPDATE_SITE,
+                SiteService.SECURE_UPDATE_SITE_MEMBERSHIP, SiteService.SECURE_UPDATE_GROUP_MEMBERSHIP, SiteService.SECURE_REMOVE_SITE,
+                AuthzGroupService.SECURE_UPDATE_AUTHZ_GROUP, AuthzGroupService.SECURE_REMOVE_AUTHZ_GROUP,
+                UserDirectoryService.SECURE_UPDATE_USER_ANY, UserDirectoryService.SECURE_UPDATE_USER_OWN);
+    }
+
+    /**
+     * Get the gradeable students of a site.
+     *
+     * @return user id to display id, which must not be changed, and is empty if there is no such site
+     */
+    public Map<String, String> getStudents(String siteId) {
+        Roster roster = enabled ? cache.get(siteId) : null;
+        if (roster != null) {
+            return roster;
+        }
+
+        try {
+            roster = load(siteId);
+        } catch (IdUnusedException e) {
+            log.warn("No site {} to find gradeable students in", siteId);
+            return Collections.emptyMap();
+        }
+        if (enabled) {
+            cache.put(siteId, roster);
+        }
+        return roster;
+    }
+
+    @Override
+    protected void invalidate(Event event) {
+        String resource = event.getResource();
+        if (resource != null && resource.startsWith(USER_REFERENCE)) {
+            // A user's display id may have changed
+            String userId = resource.substring(USER_REFERENCE.length());
+            cache.invalidateIf((siteId, roster) -> roster.containsKey(userId));
+            return;
+        }
+
+        String siteId = SiteListService.siteIdFromReference(resource);
+        if (siteId != null) {
+            cache.invalidate(siteId);
+        }
+    }
+
+    private Roster load(String siteId) throws IdUnusedException {
+        Set<String> userUuids = siteService.getSite(siteId).getUsersIsAllowed(STUDENT_PERMISSION);
+        List<User> users = userDirectoryService.getUsers(userUuids);
+
+        // Sorted so a student can be found with a binary search
+        TreeMap<String, String> sorted = new TreeMap<>();
+        for (User u : users) {
+            if (userUuids.contains(u.getId())) {
+                sorted.put(u.getId(), u.getDisplayId());
+            }
+        }
+
+        return Roster.of(sorted);
+    }
+
+    /**
+     * A read only map over a site's sorted user ids and their display ids
+     */
+    static final class Roster extends AbstractMap<String, String> {
+        private final String[] ids;
+        private final String[] displayIds;
+
+        private Roster(String[] ids, String[] displayIds) {
+            this.ids = ids;
+            this.displayIds = displayIds;
+        }
+
+        /**
+         * @param sorted user id to display id, in user id order
+         */
+        static Roster of(TreeMap<String, String> sorted) {
+            String[] ids = new String[sorted.size()];
+            String[] displayIds = new String[sorted.size()];
+            int i = 0;
+            for (Map.Entry<String, String> entry : sorted.entrySet()) {
+                ids[i] = entry.getKey().intern();
+                displayIds[i] = (entry.getValue() != null) ? entry.getValue().intern() : null;
+                i++;
+            }
+            return new Roster(ids, displayIds);
+        }
+
+        private int indexOf(Object key) {
+            return (key instanceof String) ? Arrays.binarySearch(ids, key) : -1;
+        }
+
+        @Override
+        public String get(Object key) {
+            int i = indexOf(key);
+            return (i >= 0) ? displayIds[i] : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return indexOf(key) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<Entry<String, String>>() {
+                        private int next = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < ids.length;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (next >= ids.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<String, String> entry = new SimpleImmutableEntry<>(ids[next], displayIds[next]);
+                            next++;
+                            return entry;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return ids.length;
+                }
+            };
+        }
+    }
+}
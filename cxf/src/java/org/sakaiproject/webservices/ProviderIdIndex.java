@@ -0,0 +1,386 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.webservices.db.SqlExecutor;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The sites each provider id is attached to, so getSitesWithProvider doesn't have to scan SAKAI_REALM.
+ * <p>
+ * The index is built by reading SAKAI_REALM once on a background thread at startup and is kept current from realm
+ * and site events, on this node and the others. A realm's provider id is split on <code>+</code> into the ids it is
+ * made of and the site is listed under each of them. Until the index is built, and if it is turned off with
+ * <code>webservices.provider-index.enabled=false</code>, lookups return null and callers query the database.
+ * <p>
+ * A site whose realm can't be read when it changes is read again every
+ * <code>webservices.provider-index.retry-interval</code> seconds, 30 by default, and lookups go to the database until
+ * it has been. Only after <code>webservices.provider-index.max-failures</code> reads in a row fail, 5 by default, is
+ * the whole index built again, and a build that fails is tried again as often.
+ */
+@Slf4j
+public class ProviderIdIndex implements Observer {
+
+    private static final String SITE_REALM_PREFIX = "/site/";
+    private static final String PROVIDER_SEPARATOR = "+";
+
+    @Setter
+    private SqlExecutor sqlExecutor;
+
+    @Setter
+    private EventTrackingService eventTrackingService;
+
+    @Setter
+    private ServerConfigurationService serverConfigurationService;
+
+    @Setter
+    private boolean enabled = true;
+
+    // Seconds between attempts to read the sites that couldn't be read
+    @Setter
+    private int retryInterval = 30;
+
+    // Reads that may fail in a row before the index is built again
+    @Setter
+    private int maxFailures = 5;
+
+    private final Set<String> events = new HashSet<>(Arrays.asList(AuthzGroupService.SECURE_ADD_AUTHZ_GROUP,
+            AuthzGroupService.SECURE_UPDATE_AUTHZ_GROUP, AuthzGroupService.SECURE_REMOVE_AUTHZ_GROUP,
+            SiteService.SECURE_REMOVE_SITE));
+
+    // Provider id to the ids of the sites it is attached to
+    private volatile Map<String, Set<String>> sitesByProvider = new ConcurrentHashMap<>();
+    // Site id to the provider ids indexed for it, to take them out again when the site changes
+    private volatile Map<String, String[]> providersBySite = new ConcurrentHashMap<>();
+
+    // The sequence number of the read last applied for each site, so an older read finishing late can't undo a newer
+    // one. Only needed while another read of the site is running, so a site is dropped once none are.
+    private Map<String, Long> appliedReads = new HashMap<>();
+    private final Map<String, Integer> readsRunning = new HashMap<>();
+    private final AtomicLong reads = new AtomicLong();
+
+    // Sites whose last read failed, so the index is out of date for them until they are read again
+    private final Set<String> failed = ConcurrentHashMap.newKeySet();
+    private int failuresInARow;
+    private ScheduledExecutorService retrier;
+
+    // Sites changed while the index was being built, read again once it is
+    private Set<String> changedWhileLoading;
+    private volatile boolean ready = false;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+
+    public void init() {
+        enabled = serverConfigurationService.getBoolean("webservices.provider-index.enabled", enabled);
+        if (!enabled) {
+            log.info("Web services provider id index disabled");
+            return;
+        }
+
+        retryInterval = Math.max(1, serverConfigurationService.getInt("webservices.provider-index.retry-interval", retryInterval));
+        maxFailures = Math.max(1, serverConfigurationService.getInt("webservices.provider-index.max-failures", maxFailures));
+
+        retrier = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "webservices-provider-index-retry");
+            t.setDaemon(true);
+            return t;
+        });
+        retrier.scheduleWithFixedDelay(this::retryFailed, retryInterval, retryInterval, TimeUnit.SECONDS);
+
+        eventTrackingService.addObserver(this);
+        rebuild();
+    }
+
+    public void destroy() {
+        eventTrackingService.deleteObserver(this);
+        if (retrier != null) retrier.shutdownNow();
+    }
+
+    /**
+     * Find the sites a provider id is attached to. A provider id made of several joined with <code>+</code> finds
+     * the sites attached to all of them.
+     *
+     * @return the site ids, or null if the index isn't available or is out of date and the database has to be asked
+     *         instead
+     */
+    public Set<String> getSites(String providerId) {
+        if (!ready || !failed.isEmpty()) {
+            fallbacks.increment();
+            return null;
+        }
+        hits.increment();
+
+        String[] ids = split(providerId);
+        if (ids.length == 0) {
+            return Collections.emptySet();
+        }
+        Map<String, Set<String>> index = sitesByProvider;
+        Set<String> first = index.get(ids[0]);
+        if (first == null) {
+            return Collections.emptySet();
+        }
+        Set<String> sites = new HashSet<>(first);
+        for (int i = 1; i < ids.length && !sites.isEmpty(); i++) {
+            sites.retainAll(index.getOrDefault(ids[i], Collections.emptySet()));
+        }
+        return sites;
+    }
+
+    /**
+     * Read a site's provider id from its realm again, when it has just been changed on this node and the events for
+     * it may not have arrived yet.
+     */
+    public void refresh(String siteId) {
+        if (!enabled || siteId == null) {
+            return;
+        }
+        // Every change is followed by a refresh that starts after it, so the read that started last has the latest
+        long read;
+        synchronized (this) {
+            if (changedWhileLoading != null) {
+                changedWhileLoading.add(siteId);
+                return;
+            }
+            read = reads.incrementAndGet();
+            readsRunning.merge(siteId, 1, Integer::sum);
+        }
+        try {
+            String providerId = sqlExecutor.queryForObject("SELECT PROVIDER_ID FROM SAKAI_REALM WHERE REALM_ID = ?",
+                    rs -> rs.getString(1), SITE_REALM_PREFIX + siteId);
+            synchronized (this) {
+                failuresInARow = 0;
+                Long applied = appliedReads.get(siteId);
+                if (applied != null && applied > read) {
+                    return;
+                }
+                appliedReads.put(siteId, read);
+                put(sitesByProvider, providersBySite, siteId, providerId);
+                failed.remove(siteId);
+            }
+            refreshes.increment();
+        } catch (SQLException e) {
+            boolean rebuild;
+            synchronized (this) {
+                failed.add(siteId);
+                rebuild = ++failuresInARow >= maxFailures;
+            }
+            if (rebuild) {
+                log.warn("Unable to read the provider id of {} after {} failures in a row, rebuilding the provider id index: {}",
+                        siteId, maxFailures, e.getMessage());
+                rebuild();
+            } else {
+                // Lookups go to the database until it is read, rather than answer from an index known to be out of date
+                log.warn("Unable to read the provider id of {}, trying again in {}s: {}", siteId, retryInterval, e.getMessage());
+            }
+        } finally {
+            synchronized (this) {
+                if (readsRunning.merge(siteId, -1, (running, done) -> (running + done > 0) ? running + done : null) == null) {
+                    appliedReads.remove(siteId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the sites that couldn't be read again, or build the index again if that failed.
+     */
+    void retryFailed() {
+        try {
+            boolean unbuilt;
+            synchronized (this) {
+                unbuilt = !ready && changedWhileLoading == null;
+            }
+            if (unbuilt) {
+                rebuild();
+                return;
+            }
+            for (String siteId : failed) {
+                refresh(siteId);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Unable to read the provider ids that couldn't be read: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Build the index again on a background thread, lookups go to the database until it is done.
+     */
+    private void rebuild() {
+        synchronized (this) {
+            if (changedWhileLoading != null) {
+                return;
+            }
+            ready = false;
+            changedWhileLoading = new HashSet<>();
+            // The build reads every site, including the ones that couldn't be read
+            failed.clear();
+            failuresInARow = 0;
+        }
+        Thread loader = new Thread(this::load, "webservices-provider-index");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    public long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    public int getProviderCount() {
+        return sitesByProvider.size();
+    }
+
+    @Override
+    public void update(Observable o, Object arg) {
+        if (!(arg instanceof Event)) {
+            return;
+        }
+        Event event = (Event) arg;
+        if (events.contains(event.getEvent())) {
+            refresh(SiteListService.siteIdFromReference(event.getResource()));
+        }
+    }
+
+    private void load() {
+        long start = System.currentTimeMillis();
+        Map<String, Set<String>> byProvider = new ConcurrentHashMap<>();
+        Map<String, String[]> providers = new ConcurrentHashMap<>();
+        try {
+            sqlExecutor.query("SELECT REALM_ID, PROVIDER_ID FROM SAKAI_REALM WHERE PROVIDER_ID IS NOT NULL", rs -> {
+                String siteId = siteId(rs.getString(1));
+                if (siteId != null) {
+                    put(byProvider, providers, siteId, rs.getString(2));
+                }
+                return true;
+            });
+        } catch (SQLException e) {
+            log.error("Unable to build the provider id index, getSitesWithProvider will query the database until it is: {}", e.getMessage());
+            synchronized (this) {
+                changedWhileLoading = null;
+            }
+            return;
+        }
+
+        Set<String> changed;
+        synchronized (this) {
+            sitesByProvider = byProvider;
+            providersBySite = providers;
+            appliedReads = new HashMap<>();
+            changed = changedWhileLoading;
+            changedWhileLoading = null;
+        }
+        ready = true;
+        changed.forEach(this::refresh);
+        log.info("Built the provider id index of {} provider ids for {} sites in {}ms", byProvider.size(), providers.size(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Replace the provider ids indexed for a site.
+     */
+    static void put(Map<String, Set<String>> byProvider, Map<String, String[]> providers, String siteId, String providerId) {
+        String[] old = providers.remove(siteId);
+        if (old != null) {
+            for (String id : old) {
+                byProvider.computeIfPresent(id, (k, sites) -> {
+                    sites.remove(siteId);
+                    return sites.isEmpty() ? null : sites;
+                });
+            }
+        }
+
+        String[] ids = split(providerId);
+        if (ids.length == 0) {
+            return;
+        }
+        providers.put(siteId, ids);
+        for (String id : ids) {
+            byProvider.computeIfAbsent(id, k -> ConcurrentHashMap.newKeySet()).add(siteId);
+        }
+    }
+
+    /**
+     * The ids a provider id is made of.
+     */
+    static String[] split(String providerId) {
+        return StringUtils.stripAll(StringUtils.split(StringUtils.trimToEmpty(providerId), PROVIDER_SEPARATOR));
+    }
+
+    /**
+     * Whether a realm with the given provider id is found by a lookup of another, as {@link #getSites(String)} does
+     * it: every id the one looked up is made of has to be one of the realm's.
+     */
+    static boolean provides(String realmProviderId, String providerId) {
+        String[] ids = split(providerId);
+        if (ids.length == 0) {
+            return false;
+        }
+        Set<String> realmIds = new HashSet<>(Arrays.asList(split(realmProviderId)));
+        for (String id : ids) {
+            if (!realmIds.contains(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the site id of a site realm, or null for any other realm
+     */
+    static String siteId(String realmId) {
+        if (realmId == null || !realmId.startsWith(SITE_REALM_PREFIX) || realmId.contains("/group/")) {
+            return null;
+        }
+        return realmId.substring(SITE_REALM_PREFIX.length());
+    }
+}
@@ -198,6 +198,9 @@ public class SakaiLogin extends AbstractWebService {
 
         sessionManager.setCurrentSession(s);
         usageSessionService.logout();
+        if (sessionCache != null) {
+            sessionCache.invalidate(sessionid);
+        }
 
         return true;
     }
@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices;
+
+import javax.jws.WebMethod;
+import javax.jws.WebParam;
+import javax.jws.WebService;
+import javax.jws.soap.SOAPBinding;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+
+import org.json.JSONObject;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.webservices.interceptor.OperationMetrics;
+import org.sakaiproject.webservices.interceptor.RemoteHostMatcher;
+import org.sakaiproject.webservices.report.ReportCache;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reports the per operation call counts and latencies recorded on the CXF bus, see {@link OperationMetrics}.
+ */
+@WebService
+@SOAPBinding(style = SOAPBinding.Style.RPC, use = SOAPBinding.Use.LITERAL)
+@Slf4j
+public class SakaiMetrics extends AbstractWebService {
+
+    private OperationMetrics operationMetrics;
+    private RemoteHostMatcher remoteHostMatcher;
+    private ReportCache reportCache;
+
+    @WebMethod(exclude = true)
+    public void setOperationMetrics(OperationMetrics operationMetrics) {
+        this.operationMetrics = operationMetrics;
+    }
+
+    @WebMethod(exclude = true)
+    public void setRemoteHostMatcher(RemoteHostMatcher remoteHostMatcher) {
+        this.remoteHostMatcher = remoteHostMatcher;
+    }
+
+    @WebMethod(exclude = true)
+    public void setReportCache(ReportCache reportCache) {
+        this.reportCache = reportCache;
+    }
+
+    /**
+     * Get the metrics for every operation called since startup or the last reset
+     *
+     * @param sessionid the id of a valid session for a super user
+     * @param format    json for a JSON document, anything else for a plain text table
+     * @return the metrics
+     */
+    @WebMethod
+    @Path("/getMetrics")
+    @Produces("text/plain")
+    @GET
+    public String getMetrics(
+            @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid,
+            @WebParam(name = "format", partName = "format") @QueryParam("format") String format) {
+        Session session = establishSession(sessionid);
+        if (!securityService.isSuperUser()) {
+            log.warn("NonSuperUser trying to collect metrics: " + session.getUserId());
+            throw new RuntimeException("NonSuperUser trying to collect metrics: " + session.getUserId());
+        }
+
+        if ("json".equalsIgnoreCase(format)) {
+            JSONObject json = new JSONObject();
+            json.put("operations", operationMetrics.toJson());
+            if (sessionCache != null) {
+                JSONObject cache = new JSONObject();
+                cache.put("hits", sessionCache.getHits());
+                cache.put("misses", sessionCache.getMisses());
+                cache.put("size", sessionCache.getCachedCount());
+                json.put("sessionCache", cache);
+            }
+            if (siteListService != null) {
+                JSONObject sites = new JSONObject();
+                sites.put("hits", siteListService.getHits());
+                sites.put("misses", siteListService.getMisses());
+                sites.put("evictions", siteListService.getEvictions());
+                sites.put("invalidations", siteListService.getInvalidations());
+                sites.put("size", siteListService.getCachedCount());
+                json.put("siteListCache", sites);
+            }
+            if (webServiceSessionIndex != null) {
+                JSONObject index = new JSONObject();
+                index.put("reused", webServiceSessionIndex.getReused());
+                index.put("created", webServiceSessionIndex.getCreated());
+                index.put("stale", webServiceSessionIndex.getStale());
+                index.put("size", webServiceSessionIndex.getIndexedCount());
+                json.put("sessionIndex", index);
+            }
+            if (gradeableStudentCache != null) {
+                JSONObject students = new JSONObject();
+                students.put("hits", gradeableStudentCache.getHits());
+                students.put("misses", gradeableStudentCache.getMisses());
+                students.put("evictions", gradeableStudentCache.getEvictions());
+                students.put("invalidations", gradeableStudentCache.getInvalidations());
+                students.put("size", gradeableStudentCache.getCachedCount());
+                json.put("gradeableStudentCache", students);
+            }
+            if (providerIdIndex != null) {
+                JSONObject providers = new JSONObject();
+                providers.put("ready", providerIdIndex.isReady());
+                providers.put("hits", providerIdIndex.getHits());
+                providers.put("fallbacks", providerIdIndex.getFallbacks());
+                providers.put("refreshes", providerIdIndex.getRefreshes());
+                providers.put("size", providerIdIndex.getProviderCount());
+                json.put("providerIdIndex", providers);
+            }
+            if (remoteHostMatcher != null) {
+                JSONObject filter = new JSONObject();
+                filter.put("hits", remoteHostMatcher.getDecisionCacheHits());
+                filter.put("misses", remoteHostMatcher.getDecisionCacheMisses());
+                filter.put("denials", remoteHostMatcher.getDenials());
+                filter.put("size", remoteHostMatcher.getDecisionCacheCount());
+                json.put("remoteHostFilter", filter);
+            }
+            if (reportCache != null && reportCache.isEnabled()) {
+                JSONObject reports = new JSONObject();
+                reports.put("hits", reportCache.getHits());
+                reports.put("misses", reportCache.getMisses());
+                reports.put("shared", reportCache.getShared());
+                reports.put("evictions", reportCache.getEvictions());
+                reports.put("size", reportCache.getCachedCount());
+                reports.put("bytes", reportCache.getBytes());
+                json.put("reportCache", reports);
+            }
+            return json.toString();
+        }
+
+        StringBuilder sb = new StringBuilder(operationMetrics.toText());
+        if (sessionCache != null) {
+            sb.append(String.format("%nsession cache: hits=%d misses=%d size=%d%n",
+                    sessionCache.getHits(), sessionCache.getMisses(), sessionCache.getCachedCount()));
+        }
+        if (siteListService != null) {
+            sb.append(String.format("site list cache: hits=%d misses=%d evictions=%d invalidations=%d size=%d%n",
+                    siteListService.getHits(), siteListService.getMisses(), siteListService.getEvictions(),
+                    siteListService.getInvalidations(), siteListService.getCachedCount()));
+        }
+        if (webServiceSessionIndex != null) {
+            sb.append(String.format("web service sessions for users: reused=%d created=%d stale=%d size=%d%n",
+                    webServiceSessionIndex.getReused(), webServiceSessionIndex.getCreated(),
+                    webServiceSessionIndex.getStale(), webServiceSessionIndex.getIndexedCount()));
+        }
+        if (gradeableStudentCache != null) {
+            sb.append(String.format("gradeable student cache: hits=%d misses=%d evictions=%d invalidations=%d size=%d%n",
+                    gradeableStudentCache.getHits(), gradeableStudentCache.getMisses(), gradeableStudentCache.getEvictions(),
+                    gradeableStudentCache.getInvalidations(), gradeableStudentCache.getCachedCount()));
+        }
+        if (providerIdIndex != null) {
+            sb.append(String.format("provider id index: ready=%b hits=%d fallbacks=%d refreshes=%d size=%d%n",
+                    providerIdIndex.isReady(), providerIdIndex.getHits(), providerIdIndex.getFallbacks(),
+                    providerIdIndex.getRefreshes(), providerIdIndex.getProviderCount()));
+        }
+        if (remoteHostMatcher != null) {
+            sb.append(String.format("remote host filter: hits=%d misses=%d denials=%d size=%d%n",
+                    remoteHostMatcher.getDecisionCacheHits(), remoteHostMatcher.getDecisionCacheMisses(),
+                    remoteHostMatcher.getDenials(), remoteHostMatcher.getDecisionCacheCount()));
+        }
+        if (reportCache != null && reportCache.isEnabled()) {
+            sb.append(String.format("report cache: hits=%d misses=%d shared=%d evictions=%d size=%d bytes=%d%n",
+                    reportCache.getHits(), reportCache.getMisses(), reportCache.getShared(),
+                    reportCache.getEvictions(), reportCache.getCachedCount(), reportCache.getBytes()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Clear the recorded metrics
+     *
+     * @param sessionid the id of a valid session for a super user
+     * @return success
+     */
+    @WebMethod
+    @Path("/resetMetrics")
+    @Produces("text/plain")
+    @GET
+    public String resetMetrics(
+            @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid) {
+        Session session = establishSession(sessionid);
+        if (!securityService.isSuperUser()) {
+            log.warn("NonSuperUser trying to reset metrics: " + session.getUserId());
+            throw new RuntimeException("NonSuperUser trying to reset metrics: " + session.getUserId());
+        }
+        operationMetrics.reset();
+        return "success";
+    }
+}
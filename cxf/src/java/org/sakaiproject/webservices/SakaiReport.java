@@ -15,47 +15,55 @@
  */
 package org.sakaiproject.webservices;
 
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
-import java.io.Reader;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
-import java.math.BigDecimal;
-import java.sql.Clob;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.sql.Connection;
-import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.sql.Time;
-import java.sql.Timestamp;
-import java.sql.Types;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import javax.jws.WebMethod;
 import javax.jws.WebParam;
 import javax.jws.WebService;
 import javax.jws.soap.SOAPBinding;
+import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.*;
-import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.ws.rs.core.StreamingOutput;
 
-import com.opencsv.CSVWriter;
-import com.sun.org.apache.xml.internal.utils.XMLChar;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.PhaseInterceptorChain;
+import org.apache.cxf.transport.http.AbstractHTTPDestination;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 
 import org.sakaiproject.db.api.SqlService;
 import org.sakaiproject.tool.api.Session;
-import org.sakaiproject.util.Xml;
+import org.sakaiproject.webservices.interceptor.LatencyHistogram;
+import org.sakaiproject.webservices.report.ReportCache;
+import org.sakaiproject.webservices.report.ReportDefinition;
+import org.sakaiproject.webservices.report.ReportFormat;
+import org.sakaiproject.webservices.report.ReportJob;
+import org.sakaiproject.webservices.report.ReportJobService;
+import org.sakaiproject.webservices.report.ReportRegistry;
+import org.sakaiproject.webservices.report.ReportWriter;
 
 /**
  * Created by IntelliJ IDEA.
@@ -72,18 +80,16 @@ public class SakaiReport extends AbstractWebService {
 
     private DateFormat df = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
     private static final int MAX_ROWS = 200;
-
-    private static final int NVARCHAR = -9;
-    private static final int NCHAR = -15;
-    private static final int LONGNVARCHAR = -16;
-    private static final int NCLOB = 2011;
-    public static final int CLOBBUFFERSIZE = 2048;
+    private static final int DEFAULT_FETCH_SIZE = 500;
 
     static final String TYPE_CSV = "csv";
     static final String TYPE_XML = "xml";
     static final String TYPE_JSON = "json";
     static final String TYPE_CSV_WITH_HEADER_ROW = "csv_with_header_row";
 
+    private ReportRegistry reportRegistry;
+    private ReportCache reportCache;
+    private ReportJobService reportJobService;
 
     @WebMethod
     @Path("/executeQuery")
@@ -110,24 +116,33 @@ public class SakaiReport extends AbstractWebService {
         return executeQueryInternal(sessionid, query, hash, rowCount, convertFormatToEnum(format));
     }
 
+    /**
+     * Run a query and stream its rows to the client as they are read, so a large report doesn't have to fit in
+     * memory. The rows are limited to <code>rowCount</code> if it is given, 200 if not, and 0 is unlimited.
+     */
     @WebMethod(exclude = true)
     @Path("/executeQueryWithFormat")
     @GET
     public Response executeQueryWithFormat(@QueryParam("sessionid") String sessionid,
                                            @QueryParam("query") String query,
                                            @QueryParam("hash") String hash,
-                                           @QueryParam("format") String format) {
-        String responseData = executeQueryInternal(sessionid, query, hash, MAX_ROWS, convertFormatToEnum(format));
-        String contentType = MediaType.APPLICATION_XML;
-        if (format.toLowerCase().startsWith("json")) {
-            contentType = MediaType.APPLICATION_JSON;
-        }
-        if (format.toLowerCase().startsWith("csv")) {
-            contentType = "text/csv";
-        }
-
-        javax.ws.rs.core.Response.ResponseBuilder rBuild = Response.ok(responseData, contentType);
-        return rBuild.build();
+                                           @QueryParam("format") String format,
+                                           @QueryParam("rowCount") Integer rowCount) {
+        checkReportAccess(sessionid, query, hash);
+        String type = convertFormatToEnum(format);
+        int maxRows = (rowCount != null) ? rowCount : MAX_ROWS;
+
+        StreamingOutput body = output -> {
+            Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            try {
+                writeQuery(query, new String[0], maxRows, type, out);
+            } catch (SQLException e) {
+                log.error(e.getMessage(), e);
+                throw new IOException(e.getMessage(), e);
+            }
+            out.flush();
+        };
+        return Response.ok(body, ReportFormat.of(type).getContentType()).build();
     }
 
     @WebMethod
@@ -156,446 +171,497 @@ public class SakaiReport extends AbstractWebService {
 
     }
 
-    protected String executeQueryInternal(String sessionid, String query, String hash, int rowCount, String format) {
-        Session session = establishSession(sessionid);
+    /**
+     * Run a report from the registry by name.
+     *
+     * @param params   a JSON object of the report's parameter values, eg <code>{"siteId":"abc","since":"2017-01-31"}</code>
+     * @param rowCount the rows to return, which can't be more than the report's own limit, 0 for the report's limit
+     */
+    @WebMethod
+    @Path("/runReport")
+    @Produces("text/plain")
+    @GET
+    public String runReport(
+            @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid,
+            @WebParam(name = "name", partName = "name") @QueryParam("name") String name,
+            @WebParam(name = "params", partName = "params") @QueryParam("params") String params,
+            @WebParam(name = "rowCount", partName = "rowCount") @QueryParam("rowCount") int rowCount,
+            @WebParam(name = "format", partName = "format") @QueryParam("format") String format) {
+        checkReportAccess(sessionid);
+        ReportDefinition report = findReport(name);
+        Object[] args = report.bind(parseReportParams(params));
+
+        String type = convertFormatToEnum(StringUtils.defaultString(format));
+        int maxRows = report.rowsFor(rowCount);
+
+        return getCachedReport(ReportCache.key(report.getSql(), args, type, maxRows), report.getCacheTtl(), () -> {
+            StringWriter out = new StringWriter();
+            try {
+                writeReport(report, args, maxRows, type, out);
+            } catch (Exception e) {
+                log.error(e.getMessage(), e);
+                throw new RuntimeException(e.getMessage(), e);
+            }
+            return out.toString();
+        });
+    }
 
-        boolean isEnabled = serverConfigurationService.getBoolean("webservice.report.enabled", false);
-        if (!isEnabled) {
-            log.warn("Report service not enabled, use webservice.report.enabled=true to enable");
-            throw new RuntimeException("Report service not enabled.");
-        }
-        if (session == null) {
-            log.warn("No session for: " + sessionid);
-            throw new RuntimeException("No session for " + sessionid);
-        }
-        
-        if (!securityService.isSuperUser()) {
-            log.warn("Non super user attempted access to report service: " + session.getUserId());
-            throw new RuntimeException("Non super user attempted to access report service: " + session.getUserId());
-        }
+    /**
+     * Run a report from the registry by name, streaming its rows to the client as they are read.
+     */
+    @WebMethod(exclude = true)
+    @Path("/runReportWithFormat")
+    @GET
+    public Response runReportWithFormat(@QueryParam("sessionid") String sessionid,
+                                        @QueryParam("name") String name,
+                                        @QueryParam("params") String params,
+                                        @QueryParam("format") String format,
+                                        @QueryParam("rowCount") Integer rowCount) {
+        checkReportAccess(sessionid);
+        ReportDefinition report = findReport(name);
+        Object[] args = report.bind(parseReportParams(params));
+        String type = convertFormatToEnum(StringUtils.defaultString(format));
+
+        StreamingOutput body = output -> {
+            Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            try {
+                writeReport(report, args, (rowCount != null) ? rowCount : 0, type, out);
+            } catch (SQLException e) {
+                log.error(e.getMessage(), e);
+                throw new IOException(e.getMessage(), e);
+            }
+            out.flush();
+        };
+        return Response.ok(body, ReportFormat.of(type).getContentType()).build();
+    }
 
-        // validate hash
-        if (hash == null || !validateHash(sessionid, query, hash)) {
-            throw new RuntimeException("hash value does not match, ignoring request");
+    /**
+     * List the reports in the registry with their parameters, limits and statistics.
+     *
+     * @return a JSON array of the reports, with their latencies in ms
+     */
+    @WebMethod
+    @Path("/getReports")
+    @Produces("application/json")
+    @GET
+    public String getReports(
+            @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid) {
+        checkReportAccess(sessionid);
+
+        JSONArray reports = new JSONArray();
+        if (reportRegistry == null) {
+            return reports.toString();
+        }
+        for (ReportDefinition report : reportRegistry.getReports()) {
+            JSONObject json = new JSONObject();
+            json.put("name", report.getName());
+            JSONArray params = new JSONArray();
+            for (ReportDefinition.Param param : report.getParams()) {
+                params.put(new JSONObject().put("name", param.getName()).put("type", param.getType().name().toLowerCase()));
+            }
+            json.put("params", params);
+            json.put("rows", report.getMaxRows());
+            json.put("timeout", report.getTimeout());
+            json.put("cacheTtl", report.getCacheTtl());
+
+            LatencyHistogram latency = report.getLatency();
+            JSONObject stats = new JSONObject();
+            stats.put("count", report.getRuns());
+            stats.put("errors", report.getErrors());
+            stats.put("rows", report.getRows());
+            stats.put("meanMs", latency.getMean() / 1000.0);
+            stats.put("p50Ms", latency.getPercentile(50) / 1000.0);
+            stats.put("p99Ms", latency.getPercentile(99) / 1000.0);
+            stats.put("maxMs", latency.getMax() / 1000.0);
+            json.put("stats", stats);
+            reports.put(json);
         }
+        return reports.toString();
+    }
 
-        return getQueryAsString(query, new String[0], rowCount, format);
+    /**
+     * Run a query in the background, see getReportJobStatus to follow it and downloadReportJob to fetch the result.
+     *
+     * @param rowCount the rows to return, 0 for all of them
+     * @param gzip     true to compress the result
+     * @return the job id
+     */
+    @WebMethod
+    @Path("/submitQueryJob")
+    @Produces("text/plain")
+    @GET
+    public String submitQueryJob(
+            @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid,
+            @WebParam(name = "query", partName = "query") @QueryParam("query") String query,
+            @WebParam(name = "hash", partName = "hash") @QueryParam("hash") String hash,
+            @WebParam(name = "rowCount", partName = "rowCount") @QueryParam("rowCount") int rowCount,
+            @WebParam(name = "format", partName = "format") @QueryParam("format") String format,
+            @WebParam(name = "gzip", partName = "gzip") @QueryParam("gzip") boolean gzip) {
+        checkReportAccess(sessionid, query, hash);
+        String type = convertFormatToEnum(StringUtils.defaultString(format));
+        int timeout = getReportJobService().getTimeout();
+
+        ReportJob job = getReportJobService().submit(sessionManager.getCurrentSessionUserId(), query, ReportFormat.of(type), gzip,
+                (j, out) -> writeQuery(query, new String[0], rowCount, timeout, type, out, j));
+        return job.getId();
     }
 
-    protected String convertFormatToEnum(String format) {
-        if (format.equalsIgnoreCase("csv")) {
-            return TYPE_CSV;
-        }
+    /**
+     * Run a report from the registry in the background, see getReportJobStatus to follow it and downloadReportJob
+     * to fetch the result.
+     *
+     * @param params   a JSON object of the report's parameter values
+     * @param rowCount the rows to return, which can't be more than the report's own limit, 0 for the report's limit
+     * @param gzip     true to compress the result
+     * @return the job id
+     */
+    @WebMethod
+    @Path("/submitReportJob")
+    @Produces("text/plain")
+    @GET
+    public String submitReportJob(
+            @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid,
+            @WebParam(name = "name", partName = "name") @QueryParam("name") String name,
+            @WebParam(name = "params", partName = "params") @QueryParam("params") String params,
+            @WebParam(name = "rowCount", partName = "rowCount") @QueryParam("rowCount") int rowCount,
+            @WebParam(name = "format", partName = "format") @QueryParam("format") String format,
+            @WebParam(name = "gzip", partName = "gzip") @QueryParam("gzip") boolean gzip) {
+        checkReportAccess(sessionid);
+        ReportDefinition report = findReport(name);
+        Object[] args = report.bind(parseReportParams(params));
+        String type = convertFormatToEnum(StringUtils.defaultString(format));
+
+        ReportJob job = getReportJobService().submit(sessionManager.getCurrentSessionUserId(), report.getName(), ReportFormat.of(type), gzip,
+                (j, out) -> writeReport(report, args, rowCount, type, out, j));
+        return job.getId();
+    }
 
-        if (format.equalsIgnoreCase("csv_with_header_row")) {
-            return TYPE_CSV_WITH_HEADER_ROW;
-        }
-        if (format.equalsIgnoreCase("json")) {
-            return TYPE_JSON;
+    /**
+     * Get the status of a background report
+     *
+     * @return a JSON object describing the job
+     */
+    @WebMethod
+    @Path("/getReportJobStatus")
+    @Produces("application/json")
+    @GET
+    public String getReportJobStatus(
+            @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid,
+            @WebParam(name = "jobid", partName = "jobid") @QueryParam("jobid") String jobid) {
+        checkReportAccess(sessionid);
+        ReportJob job = findReportJob(jobid);
+
+        JSONObject json = new JSONObject();
+        json.put("id", job.getId());
+        json.put("report", job.getDescription());
+        json.put("status", job.getStatus().name());
+        json.put("format", job.getFormat().getName());
+        json.put("gzip", job.isGzip());
+        json.put("rows", job.getRows());
+        json.put("created", formatJobTime(job.getCreated()));
+        json.put("started", formatJobTime(job.getStarted()));
+        json.put("finished", formatJobTime(job.getFinished()));
+        json.put("error", job.getError());
+        File file = job.getFile();
+        if (file != null) {
+            json.put("bytes", file.length());
         }
+        return json.toString();
+    }
 
-        return TYPE_XML;
+    /**
+     * Stop a background report, cancelling its query if it is running
+     *
+     * @return success, or failure if the job has already finished
+     */
+    @WebMethod
+    @Path("/cancelReportJob")
+    @Produces("text/plain")
+    @GET
+    public String cancelReportJob(
+            @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid,
+            @WebParam(name = "jobid", partName = "jobid") @QueryParam("jobid") String jobid) {
+        checkReportAccess(sessionid);
+        ReportJob job = findReportJob(jobid);
+        return getReportJobService().cancel(job.getId()) ? "success" : "failure";
     }
 
-    protected boolean validateHash(String sessionid, String query, String hash) {
+    /**
+     * Download the result of a completed background report, gzipped if it was asked for.
+     */
+    @WebMethod(exclude = true)
+    @Path("/downloadReportJob")
+    @GET
+    public Response downloadReportJob(@QueryParam("sessionid") String sessionid,
+                                      @QueryParam("jobid") String jobid) {
+        checkReportAccess(sessionid);
+        ReportJob job = findReportJob(jobid);
+        File file = job.getFile();
+        if (file == null || !file.exists()) {
+            throw new RuntimeException("Report job " + jobid + " has no result, its status is " + job.getStatus());
+        }
 
-        // TODO add in shared secret to make this safer
-        String calculatedHash = DigestUtils.sha256Hex(sessionid + query);
-        log.info("received hash of: " + hash + " calculated hash value as: " + calculatedHash);
-        return hash.equals(calculatedHash);
+        StreamingOutput body = output -> Files.copy(file.toPath(), output);
+        return Response.ok(body, job.isGzip() ? "application/gzip" : job.getFormat().getContentType())
+                .header("Content-Disposition", "attachment; filename=\"" + job.getFileName() + "\"")
+                .header("Content-Length", file.length())
+                .build();
+    }
 
+    private ReportJobService getReportJobService() {
+        if (reportJobService == null) {
+            throw new RuntimeException("Report jobs are not available");
+        }
+        return reportJobService;
     }
 
-    protected String toCsvString(ResultSet rs) throws IOException, SQLException {
-        return toCsvString(rs, false);
+    private ReportJob findReportJob(String jobid) {
+        ReportJob job = getReportJobService().getJob(jobid);
+        if (job == null) {
+            throw new RuntimeException("No report job with id " + jobid);
+        }
+        return job;
     }
 
-    protected String toCsvString(ResultSet rs, boolean includeHeaderRow) throws IOException, SQLException {
-        StringWriter stringWriter = new StringWriter();
-        CSVWriter writer = new CSVWriter(stringWriter);
-        ResultSetMetaData rsmd = rs.getMetaData();
-        int numColumns = rsmd.getColumnCount();
+    private String formatJobTime(long time) {
+        return (time > 0) ? Instant.ofEpochMilli(time).toString() : null;
+    }
 
-        if (includeHeaderRow) {
-            String[] row = new String[numColumns];
-            for (int i = 1; i < numColumns + 1; i++) {
-                row[i - 1] = rsmd.getColumnLabel(i);
-            }
-            writer.writeNext(row);
+    private ReportDefinition findReport(String name) {
+        ReportDefinition report = (reportRegistry != null) ? reportRegistry.getReport(name) : null;
+        if (report == null) {
+            throw new RuntimeException("No report named " + name);
         }
+        return report;
+    }
 
-        while (rs.next()) {
-            String[] row = new String[numColumns];
-            for (int i = 1; i < numColumns + 1; i++) {
-
-                String column_name = rsmd.getColumnName(i);
-
-                log.debug("Column Name=" + column_name + ",type=" + rsmd.getColumnType(i));
-
-                switch (rsmd.getColumnType(i)) {
-                    case Types.BIGINT:
-                        row[i - 1] = String.valueOf(rs.getInt(i));
-                        break;
-                    case Types.BOOLEAN:
-                        row[i - 1] = String.valueOf(rs.getBoolean(i));
-                        break;
-                    case Types.BLOB:
-                        row[i - 1] = rs.getBlob(i).toString();
-                        break;
-                    case Types.DOUBLE:
-                        row[i - 1] = String.valueOf(rs.getDouble(i));
-                        break;
-                    case Types.FLOAT:
-                        row[i - 1] = String.valueOf(rs.getFloat(i));
-                        break;
-                    case Types.INTEGER:
-                        row[i - 1] = String.valueOf(rs.getInt(i));
-                        break;
-                    case Types.LONGVARCHAR:
-                        row[i - 1] = rs.getString(i);
-                        break;
-                    case Types.NVARCHAR:
-                        row[i - 1] = rs.getNString(i);
-                        break;
-                    case Types.VARCHAR:
-                        row[i - 1] = rs.getString(i);
-                        break;
-                    case Types.TINYINT:
-                        row[i - 1] = String.valueOf(rs.getInt(i));
-                        break;
-                    case Types.SMALLINT:
-                        row[i - 1] = String.valueOf(rs.getInt(i));
-                        break;
-                    case Types.DATE:
-                        row[i - 1] = rs.getDate(i).toString();
-                        break;
-                    case Types.TIMESTAMP:
-                        row[i - 1] = rs.getTimestamp(i).toString();
-                        break;
-                    default:
-                        row[i - 1] = rs.getString(i);
-                        break;
-
+    private Map<String, String> parseReportParams(String params) {
+        Map<String, String> values = new HashMap<>();
+        if (StringUtils.isBlank(params)) {
+            return values;
+        }
+        try {
+            JSONObject json = new JSONObject(params);
+            for (String key : json.keySet()) {
+                if (!json.isNull(key)) {
+                    values.put(key, String.valueOf(json.get(key)));
                 }
-                log.debug("value: " + row[i - 1]);
             }
-            writer.writeNext(row);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Report parameters aren't a JSON object: " + e.getMessage());
+        }
+        return values;
+    }
 
+    /**
+     * Run a named report and record how long it took and the rows it returned against it.
+     */
+    protected long writeReport(ReportDefinition report, Object[] args, int rowCount, String type, Writer out) throws SQLException, IOException {
+        return writeReport(report, args, rowCount, type, out, null);
+    }
+
+    protected long writeReport(ReportDefinition report, Object[] args, int rowCount, String type, Writer out,
+                               ReportJob job) throws SQLException, IOException {
+        long start = System.nanoTime();
+        long rows = 0;
+        boolean error = true;
+        try {
+            rows = writeQuery(report.getSql(), args, report.rowsFor(rowCount), report.getTimeout(), type, out, job);
+            error = false;
+            return rows;
+        } finally {
+            report.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), rows, error);
         }
+    }
 
-        log.debug("csv output:" + stringWriter.toString());
+    protected String executeQueryInternal(String sessionid, String query, String hash, int rowCount, String format) {
+        checkReportAccess(sessionid, query, hash);
 
-        return stringWriter.toString();
+        int ttl = (reportCache != null) ? reportCache.getTtl() : 0;
+        return getCachedReport(ReportCache.key(query, new Object[0], format, rowCount), ttl,
+                () -> getQueryAsString(query, new String[0], rowCount, format));
     }
 
-    protected String stripInvalidXmlCharacters(String input) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < input.length(); i++) {
-            char c = input.charAt(i);
-            if (XMLChar.isValid(c)) {
-                sb.append(c);
-            } else {
-                log.debug(c + " is not a valid XML char, stripping it: ");
-            }
+    /**
+     * Get a report's output from the cache if it is enabled, or by running it. Over HTTP the response says where the
+     * result came from in <code>X-Report-Cache</code>, one of HIT, MISS or SHARED, and how many seconds old it is in
+     * <code>Age</code>.
+     */
+    protected String getCachedReport(String key, int ttl, Supplier<String> report) {
+        if (reportCache == null) {
+            return report.get();
         }
+        ReportCache.Result result = reportCache.get(key, ttl, report);
 
-        return sb.toString();
-    }
-
-    protected String toJsonString(ResultSet rs) throws SQLException, JSONException {
-        ResultSetMetaData rsmd = rs.getMetaData();
-        JSONArray array = new JSONArray();
-        int numColumns = rsmd.getColumnCount();
-
-        while (rs.next()) {
-
-            JSONObject obj = new JSONObject();
-            for (int i = 1; i < numColumns + 1; i++) {
-
-                String column_label = rsmd.getColumnLabel(i);
-
-                log.debug("Column Name=" + column_label + ",type=" + rsmd.getColumnType(i));
-
-                switch (rsmd.getColumnType(i)) {
-                    case Types.ARRAY:
-                        obj.put(column_label, rs.getArray(i));
-                        break;
-                    case Types.BIGINT:
-                        obj.put(column_label, rs.getInt(i));
-                        break;
-                    case Types.BOOLEAN:
-                        obj.put(column_label, rs.getBoolean(i));
-                        break;
-                    case Types.BLOB:
-                        obj.put(column_label, rs.getBlob(i));
-                        break;
-                    case Types.DOUBLE:
-                        obj.put(column_label, rs.getDouble(i));
-                        break;
-                    case Types.FLOAT:
-                        obj.put(column_label, rs.getFloat(i));
-                        break;
-                    case Types.INTEGER:
-                        obj.put(column_label, rs.getInt(i));
-                        break;
-                    case Types.NVARCHAR:
-                        obj.put(column_label, rs.getNString(i));
-                        break;
-                    case Types.VARCHAR:
-                        obj.put(column_label, rs.getString(i));
-                        break;
-                    case Types.TINYINT:
-                        obj.put(column_label, rs.getInt(i));
-                        break;
-                    case Types.SMALLINT:
-                        obj.put(column_label, rs.getInt(i));
-                        break;
-                    case Types.DATE:
-                        obj.put(column_label, rs.getDate(i));
-                        break;
-                    case Types.TIMESTAMP:
-                        obj.put(column_label, rs.getTimestamp(i));
-                        break;
-                    default:
-                        obj.put(column_label, rs.getObject(i));
-                        break;
-                }
+        Message message = PhaseInterceptorChain.getCurrentMessage();
+        HttpServletResponse response = (message != null) ? (HttpServletResponse) message.get(AbstractHTTPDestination.HTTP_RESPONSE) : null;
+        if (response != null && reportCache.isEnabled()) {
+            response.setHeader("X-Report-Cache", result.getSource().name());
+            response.setHeader("Age", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(result.getAge())));
+        }
+        return result.getBody();
+    }
 
-            }
-            array.put(obj);
+    /**
+     * Check the report service is enabled and the caller is a super user who hashed the query with their session id.
+     *
+     * @throws RuntimeException if not
+     */
+    protected void checkReportAccess(String sessionid, String query, String hash) {
+        checkReportAccess(sessionid);
 
+        // validate hash
+        if (hash == null || !validateHash(sessionid, query, hash)) {
+            throw new RuntimeException("hash value does not match, ignoring request");
         }
-        return array.toString();
-    }
-
-    protected Document toDocument(ResultSet rs)
-            throws ParserConfigurationException, SQLException {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document doc = builder.newDocument();
-
-        Element results = doc.createElement("Results");
-        doc.appendChild(results);
-
-        ResultSetMetaData rsmd = rs.getMetaData();
-        int colCount = rsmd.getColumnCount();
-
-        while (rs.next()) {
-            Element row = doc.createElement("Row");
-            results.appendChild(row);
-
-            for (int i = 1; i <= colCount; i++) {
-                String columnName = rsmd.getColumnLabel(i);
-                Object value = null;
-                try {
-                    value = getColumnValue(rs, rsmd.getColumnType(i), i);
-                    Element node = doc.createElement(columnName);
-                    node.appendChild(doc.createTextNode(stripInvalidXmlCharacters(value.toString())));
-                    row.appendChild(node);
-                } catch (IOException e) {
-                    log.error(e.getMessage(), e);
-                }
+    }
 
+    /**
+     * Check the report service is enabled and the caller is a super user. A named report doesn't need a hash as
+     * its SQL comes from the server's configuration.
+     *
+     * @throws RuntimeException if not
+     */
+    protected void checkReportAccess(String sessionid) {
+        Session session = establishSession(sessionid);
 
-            }
+        boolean isEnabled = serverConfigurationService.getBoolean("webservice.report.enabled", false);
+        if (!isEnabled) {
+            log.warn("Report service not enabled, use webservice.report.enabled=true to enable");
+            throw new RuntimeException("Report service not enabled.");
         }
-        return doc;
-    }
-
-    private String getColumnValue(ResultSet rs, int colType, int colIndex)
-            throws SQLException, IOException {
-        String value = "";
-        switch (colType) {
-            case Types.BIT:
-            case Types.JAVA_OBJECT:
-                value = handleObject(rs.getObject(colIndex));
-                break;
-            case Types.BOOLEAN:
-                boolean b = rs.getBoolean(colIndex);
-                value = Boolean.valueOf(b).toString();
-                break;
-            case NCLOB: // todo : use rs.getNClob
-            case Types.CLOB:
-                Clob c = rs.getClob(colIndex);
-                if (c != null) {
-                    value = read(c);
-                }
-                break;
-            case Types.BIGINT:
-                value = handleLong(rs, colIndex);
-                break;
-            case Types.DECIMAL:
-            case Types.DOUBLE:
-            case Types.FLOAT:
-            case Types.REAL:
-            case Types.NUMERIC:
-                value = handleBigDecimal(rs.getBigDecimal(colIndex));
-                break;
-            case Types.INTEGER:
-            case Types.TINYINT:
-            case Types.SMALLINT:
-                value = handleInteger(rs, colIndex);
-                break;
-            case Types.DATE:
-                value = handleDate(rs, colIndex);
-                break;
-            case Types.TIME:
-                value = handleTime(rs.getTime(colIndex));
-                break;
-            case Types.TIMESTAMP:
-                value = handleTimestamp(rs.getTimestamp(colIndex));
-                break;
-            case NVARCHAR: // todo : use rs.getNString
-            case NCHAR: // todo : use rs.getNString
-            case LONGNVARCHAR: // todo : use rs.getNString
-            case Types.LONGVARCHAR:
-            case Types.VARCHAR:
-            case Types.CHAR:
-                value = rs.getString(colIndex);
-                break;
-            case Types.VARBINARY:
-            case Types.BINARY:
-                value = handleRaw(rs.getBytes(colIndex));
-                break;
-            default:
-                value = "";
+        if (session == null) {
+            log.warn("No session for: " + sessionid);
+            throw new RuntimeException("No session for " + sessionid);
         }
-
-
-        if (value == null) {
-            value = "";
+        
+        if (!securityService.isSuperUser()) {
+            log.warn("Non super user attempted access to report service: " + session.getUserId());
+            throw new RuntimeException("Non super user attempted to access report service: " + session.getUserId());
         }
+    }
 
-        return value;
+    protected String convertFormatToEnum(String format) {
+        if (format.equalsIgnoreCase("csv")) {
+            return TYPE_CSV;
+        }
 
-    }
+        if (format.equalsIgnoreCase("csv_with_header_row")) {
+            return TYPE_CSV_WITH_HEADER_ROW;
+        }
+        if (format.equalsIgnoreCase("json")) {
+            return TYPE_JSON;
+        }
 
-    private String handleObject(Object obj) {
-        return obj == null ? "" : String.valueOf(obj);
+        return TYPE_XML;
     }
 
-    private String handleBigDecimal(BigDecimal decimal) {
-        return decimal == null ? "" : decimal.toString();
-    }
+    protected boolean validateHash(String sessionid, String query, String hash) {
 
-    private String handleLong(ResultSet rs, int columnIndex) throws SQLException {
-        long lv = rs.getLong(columnIndex);
-        return rs.wasNull() ? "" : Long.toString(lv);
-    }
+        // TODO add in shared secret to make this safer
+        String calculatedHash = DigestUtils.sha256Hex(sessionid + query);
+        log.info("received hash of: " + hash + " calculated hash value as: " + calculatedHash);
+        return hash.equals(calculatedHash);
 
-    private String handleInteger(ResultSet rs, int columnIndex) throws SQLException {
-        int i = rs.getInt(columnIndex);
-        return rs.wasNull() ? "" : Integer.toString(i);
     }
 
-    private String handleDate(ResultSet rs, int columnIndex) throws SQLException {
-        Date date = rs.getDate(columnIndex);
-        String value = null;
-        if (date != null) {
-            SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MMM-yyyy");
-            value = dateFormat.format(date);
+    protected String getQueryAsString(String query, Object[] args, int rowCount, String type) {
+        StringWriter out = new StringWriter();
+        try {
+            writeQuery(query, args, rowCount, type, out);
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+            throw new RuntimeException(e.getMessage(), e);
         }
-        return value;
+        return out.toString();
     }
 
-    private String handleTime(Time time) {
-        return time == null ? null : time.toString();
+    /**
+     * The fetch size for report queries, see {@link #writeQuery(String, Object[], int, String, Writer)}
+     */
+    private int fetchSize() {
+        int fetchSize = "mysql".equalsIgnoreCase(sqlService.getVendor()) ? Integer.MIN_VALUE : DEFAULT_FETCH_SIZE;
+        return serverConfigurationService.getInt("webservice.report.fetch-size", fetchSize);
     }
 
-    private String handleTimestamp(Timestamp timestamp) {
-        SimpleDateFormat timeFormat = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss");
-        return timestamp == null ? null : timeFormat.format(timestamp);
+    /**
+     * Run a query and write its rows as they are read. The statement is forward only and read only, with the fetch
+     * size set from <code>webservice.report.fetch-size</code>, so the driver doesn't hold the whole result. On MySQL
+     * it defaults to Integer.MIN_VALUE, which has Connector/J stream rows rather than read them all whatever the fetch
+     * size, and 500 on other databases.
+     *
+     * @return the number of rows written
+     */
+    protected long writeQuery(String query, Object[] args, int rowCount, String type, Writer out) throws SQLException, IOException {
+        return writeQuery(query, args, rowCount, 0, type, out);
     }
 
-    private String handleRaw(byte[] bytes) {
-        String result = "";
-        if (bytes == null) return result;
-        for (int i = 0; i < bytes.length; i++) {
-            result +=
-                    Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1);
-        }
-        return result;
+    /**
+     * Run a query as above, cancelling it if it runs for longer than <code>timeout</code> seconds, or never if 0.
+     */
+    protected long writeQuery(String query, Object[] args, int rowCount, int timeout, String type, Writer out) throws SQLException, IOException {
+        return writeQuery(query, args, rowCount, timeout, type, out, null);
     }
 
-    private static String read(Clob c) throws SQLException, IOException {
-        StringBuilder sb = new StringBuilder((int) c.length());
-        Reader r = c.getCharacterStream();
-        char[] cbuf = new char[CLOBBUFFERSIZE];
-        int n;
-        while ((n = r.read(cbuf, 0, cbuf.length)) != -1) {
-            sb.append(cbuf, 0, n);
-        }
-        return sb.toString();
-    }
-
-    protected String getQueryAsString(String query, Object[] args, int rowCount, String type) {
-
-        Connection conn = null;
-        PreparedStatement ps = null;
-        ResultSet rs = null;
+    /**
+     * Run a query as above for a background job, handing the job its statement before it is executed so a cancel
+     * can stop it in the database, and stopping between rows once the job is cancelled.
+     */
+    protected long writeQuery(String query, Object[] args, int rowCount, int timeout, String type, Writer out,
+                              ReportJob job) throws SQLException, IOException {
+        Connection conn = sqlService.borrowConnection();
         try {
-            conn = sqlService.borrowConnection();
             conn.setReadOnly(true);
 
-            ps = conn.prepareStatement(query, ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-
-            if (rowCount > 0) {
-                ps.setMaxRows(rowCount);
-            }
+            try (PreparedStatement ps = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                ps.setFetchSize(fetchSize());
+                if (rowCount > 0) {
+                    ps.setMaxRows(rowCount);
+                }
+                if (timeout > 0) {
+                    ps.setQueryTimeout(timeout);
+                }
 
-            for (int i = 0; i < args.length; i++) {
-                if (args[i] instanceof String) {
-                    ps.setString(i + 1, (String) args[i]);
-                } else if (args[i] instanceof java.util.Date) {
-                    // select * from sakai_event where event_date between to_date('2001-12-12 12:12','YYYY-MM-DD HH24:MI') and to_date('2017-12-12 12:12','YYYY-MM-DD HH24:MI')
-                    if (sqlService.getVendor().equals("oracle")) {
-                        ps.setString(i + 1, df.format(args[i]));
-                        // select * from sakai_event where event_date between '2001-12-12 12:12' and '2017-12-12 12:12';
-                    } else {
-                        ps.setString(i + 1, df.format(args[i]));
+                for (int i = 0; i < args.length; i++) {
+                    if (args[i] instanceof String) {
+                        ps.setString(i + 1, (String) args[i]);
+                    } else if (args[i] instanceof java.sql.Date || args[i] instanceof java.sql.Timestamp) {
+                        // typed report parameters are bound as they are
+                        ps.setObject(i + 1, args[i]);
+                    } else if (args[i] instanceof java.util.Date) {
+                        // select * from sakai_event where event_date between to_date('2001-12-12 12:12','YYYY-MM-DD HH24:MI') and to_date('2017-12-12 12:12','YYYY-MM-DD HH24:MI')
+                        if (sqlService.getVendor().equals("oracle")) {
+                            ps.setString(i + 1, df.format(args[i]));
+                            // select * from sakai_event where event_date between '2001-12-12 12:12' and '2017-12-12 12:12';
+                        } else {
+                            ps.setString(i + 1, df.format(args[i]));
+                        }
+                    } else if (args[i] != null) {
+                        ps.setObject(i + 1, args[i]);
                     }
                 }
-            }
-            log.info("preparing query: " + ps.toString());
-
-            rs = ps.executeQuery();
-            //return toJsonString(rs);
-            if (type == TYPE_CSV) {
-                return stripInvalidXmlCharacters(toCsvString(rs));
-            }
-            if (type == TYPE_CSV_WITH_HEADER_ROW) {
-                return stripInvalidXmlCharacters(toCsvString(rs, true));
-            }
-
-            if (type == TYPE_JSON) {
-                return stripInvalidXmlCharacters(toJsonString(rs));
-            }
-
-            return Xml.writeDocumentToString(toDocument(rs));
-
-        } catch (Exception e) {
-            log.error(e.getMessage(), e);
-            throw new RuntimeException(e.getMessage(), e);
-        } finally {
-            if (rs != null) {
-                try {
-                    rs.close();
-                } catch (SQLException e) {
+                log.info("preparing query: " + ps.toString());
+                ReportWriter writer = ReportWriter.forFormat(ReportFormat.of(type));
+                if (job != null) {
+                    job.setStatement(ps);
+                    writer.cancelWhen(job::isCancelRequested);
                 }
-            }
 
-            if (ps != null) {
-                try {
-                    ps.close();
-                } catch (SQLException e) {
+                try (ResultSet rs = ps.executeQuery()) {
+                    return writer.write(rs, out);
+                } finally {
+                    if (job != null) {
+                        // Before the statement is closed, so a cancel never reaches it closed or back in the pool
+                        job.setStatement(null);
+                    }
                 }
             }
-            if (conn != null) {
-                try {
-                    conn.close();
-                } catch (SQLException e) {
-                }
+        } finally {
+            try {
+                conn.setReadOnly(false);
+            } catch (SQLException e) {
             }
+            sqlService.returnConnection(conn);
         }
     }
 
@@ -604,4 +670,19 @@ public class SakaiReport extends AbstractWebService {
     public void setSqlService(SqlService sqlService) {
         this.sqlService = sqlService;
     }
+
+    @WebMethod(exclude = true)
+    public void setReportRegistry(ReportRegistry reportRegistry) {
+        this.reportRegistry = reportRegistry;
+    }
+
+    @WebMethod(exclude = true)
+    public void setReportCache(ReportCache reportCache) {
+        this.reportCache = reportCache;
+    }
+
+    @WebMethod(exclude = true)
+    public void setReportJobService(ReportJobService reportJobService) {
+        this.reportJobService = reportJobService;
+    }
 }
@@ -15,6 +15,8 @@
  */
 package org.sakaiproject.webservices;
 
+import java.io.IOException;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -23,6 +25,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -35,16 +38,23 @@ import javax.jws.WebParam;
 import javax.jws.WebService;
 import javax.jws.soap.SOAPBinding;
 import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.commons.lang3.LocaleUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.cxf.message.Message;
 import org.apache.cxf.phase.PhaseInterceptorChain;
 import org.apache.cxf.transport.http.AbstractHTTPDestination;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.sakaiproject.authz.api.AuthzGroup;
 import org.sakaiproject.authz.api.Member;
 import org.sakaiproject.authz.api.Role;
@@ -80,6 +90,8 @@ import org.sakaiproject.util.ArrayUtil;
 import org.sakaiproject.util.ResourceLoader;
 import org.sakaiproject.util.Web;
 import org.sakaiproject.util.Xml;
+import org.sakaiproject.webservices.job.AdminJob;
+import org.sakaiproject.webservices.job.AdminJobTask;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -99,8 +111,71 @@ import lombok.extern.slf4j.Slf4j;
 public class SakaiScript extends AbstractWebService {
 
     private static final String ADMIN_SITE_REALM = "/site/!admin";
-    private static final String SESSION_ATTR_NAME_ORIGIN = "origin";
-    private static final String SESSION_ATTR_VALUE_ORIGIN_WS = "sakai-axis";
+    private static final int USER_PAGE_SIZE = 1000;
+    private static final String JOB_ADD_TOOL_TO_WORKSPACES = "addNewToolToAllWorkspaces";
+    private static final String JOB_RESET_USER_WORKSPACES = "resetAllUserWorkspace";
+
+    // The operations runBatch() can run, see there for their parameters
+    private static final Set<String> BATCH_OPERATIONS = new HashSet<>(Arrays.asList(
+            "addNewSite", "addNewPageToSite", "addNewToolToPage", "addConfigPropertyToTool", "setSiteProperty"));
+
+    /**
+     * Register the background jobs this service offers
+     */
+    @WebMethod(exclude = true)
+    public void init() {
+        adminJobService.registerType(JOB_ADD_TOOL_TO_WORKSPACES, job -> new AdminJobTask() {
+            private List<String> userIds;
+
+            @Override
+            public long count() {
+                userIds = getWorkspaceUserIds();
+                return userIds.size();
+            }
+
+            @Override
+            public void read(String after, ItemSink sink) throws InterruptedException {
+                if (userIds == null) userIds = getWorkspaceUserIds();
+                for (String userId : userIds) {
+                    if ((after == null || userId.compareTo(after) > 0) && !sink.accept(userId)) {
+                        return;
+                    }
+                }
+            }
+
+            @Override
+            public boolean process(String userId) throws Exception {
+                return addToolToWorkspace(userId, job.getParam("toolid"), job.getParam("pagetitle"), job.getParam("tooltitle"),
+                        Integer.parseInt(job.getParam("pagelayout")), Integer.parseInt(job.getParam("position")),
+                        Boolean.parseBoolean(job.getParam("popup")), true);
+            }
+        });
+
+        adminJobService.registerType(JOB_RESET_USER_WORKSPACES, job -> new AdminJobTask() {
+            private List<String> siteIds;
+
+            @Override
+            public long count() {
+                siteIds = getWorkspaceSiteIds();
+                return siteIds.size();
+            }
+
+            @Override
+            public void read(String after, ItemSink sink) throws InterruptedException {
+                if (siteIds == null) siteIds = getWorkspaceSiteIds();
+                for (String siteId : siteIds) {
+                    if ((after == null || siteId.compareTo(after) > 0) && !sink.accept(siteId)) {
+                        return;
+                    }
+                }
+            }
+
+            @Override
+            public boolean process(String siteId) throws Exception {
+                return resetWorkspace(siteId);
+            }
+        });
+    }
 
     /**
      * Check if a session is active
@@ -1303,6 +1378,138 @@ public class SakaiScript extends AbstractWebService {
         return "success";
     }
 
+    /**
+     * Make a site's membership match a list of users and roles, eg from a student information system.
+     * <p>
+     * Users in the list who are not members are added, members with a different role or who are inactive are updated
+     * and members who are not in the list are removed. Eids are matched whatever their case, and a member whose eid is
+     * in the list is never removed, even if their user or role can't be found. Provided members are left to the
+     * provider. All the eids are looked up at once and the changes are saved with a single save of the site.
+     *
+     * @param sessionid the id of a valid session for a super user
+     * @param siteid    the id of the site
+     * @param members   the membership the site should have, as eid:roleid pairs separated by commas
+     * @param removeall must be true for an empty list of members, which removes every member who isn't provided
+     * @return XML with the action taken for each eid: added, updated, removed, unchanged, provided, usernotfound or
+     * rolenotfound, or the exception message if the site could not be read or saved
+     */
+    @WebMethod(operationName = "syncSiteMembership")
+    @Path("/syncSiteMembership")
+    @Produces("text/plain")
+    @Consumes({MediaType.APPLICATION_FORM_URLENCODED})
+    @POST
+    public String syncSiteMembership(
+            @WebParam(name = "sessionid", partName = "sessionid") @FormParam("sessionid") String sessionid,
+            @WebParam(name = "siteid", partName = "siteid") @FormParam("siteid") String siteid,
+            @WebParam(name = "members", partName = "members") @FormParam("members") String members,
+            @WebParam(name = "removeall", partName = "removeall") @FormParam("removeall") boolean removeall) {
+
+        Session session = establishSession(sessionid);
+
+        if (!securityService.isSuperUser(session.getUserId())) {
+            log.warn("NonSuperUser trying to syncSiteMembership: " + session.getUserId());
+            throw new RuntimeException("NonSuperUser trying to syncSiteMembership: " + session.getUserId());
+        }
+
+        // A missing or empty list is more likely a broken feed than a site that should be emptied
+        if (StringUtils.isBlank(members) && !removeall) {
+            throw new RuntimeException("WS syncSiteMembership(): no members given for " + siteid + ", set removeall to remove every member");
+        }
+
+        // The wanted role for each eid, in the order given
+        Map<String, String> wanted = new LinkedHashMap<>();
+        if (StringUtils.isNotBlank(members)) {
+            for (String pair : members.split(",")) {
+                int colon = pair.lastIndexOf(':');
+                if (colon <= 0 || colon == pair.length() - 1) {
+                    throw new RuntimeException("WS syncSiteMembership(): expected eid:roleid but got " + pair);
+                }
+                wanted.put(pair.substring(0, colon).trim(), pair.substring(colon + 1).trim());
+            }
+        }
+
+        // eid and action, in the order of the members given followed by the members removed
+        Map<String, String> report = new LinkedHashMap<>();
+
+        try {
+            Site site = siteService.getSite(siteid);
+
+            // Keyed by lower case eid, as the eids found may not have the case they were asked for with
+            Map<String, String> userIds = new HashMap<>();
+            for (User user : userDirectoryService.getUsersByEids(wanted.keySet())) {
+                userIds.put(StringUtils.lowerCase(user.getEid()), user.getId());
+            }
+            Set<String> listed = new HashSet<>();
+            for (String eid : wanted.keySet()) {
+                listed.add(StringUtils.lowerCase(eid));
+            }
+
+            Map<String, Member> current = new HashMap<>();
+            for (Member member : site.getMembers()) {
+                current.put(member.getUserId(), member);
+            }
+
+            String source = userAuditRegistration.getDatabaseSourceKey();
+            String currentUserId = userDirectoryService.getCurrentUser().getId();
+            List<String[]> userAuditList = new ArrayList<String[]>();
+
+            for (Entry<String, String> entry : wanted.entrySet()) {
+                String eid = entry.getKey();
+                String roleid = entry.getValue();
+                String userid = userIds.get(StringUtils.lowerCase(eid));
+                if (userid == null) {
+                    report.put(eid, "usernotfound");
+                    continue;
+                }
+                Member member = current.remove(userid);
+                if (member != null && member.isProvided()) {
+                    report.put(eid, "provided");
+                } else if (site.getRole(roleid) == null) {
+                    report.put(eid, "rolenotfound");
+                } else if (member == null) {
+                    site.addMember(userid, roleid, true, false);
+                    userAuditList.add(new String[]{siteid, userid, roleid, UserAuditService.USER_AUDIT_ACTION_ADD, source, currentUserId});
+                    report.put(eid, "added");
+                } else if (!roleid.equals(member.getRole().getId()) || !member.isActive()) {
+                    site.addMember(userid, roleid, true, false);
+                    userAuditList.add(new String[]{siteid, userid, roleid, UserAuditService.USER_AUDIT_ACTION_UPDATE, source, currentUserId});
+                    report.put(eid, "updated");
+                } else {
+                    report.put(eid, "unchanged");
+                }
+            }
+
+            // Anyone left who isn't provided or listed is no longer wanted
+            for (Member member : current.values()) {
+                if (member.isProvided() || listed.contains(StringUtils.lowerCase(member.getUserEid()))) {
+                    continue;
+                }
+                site.removeMember(member.getUserId());
+                userAuditList.add(new String[]{siteid, member.getUserId(), member.getRole().getId(), UserAuditService.USER_AUDIT_ACTION_REMOVE, source, currentUserId});
+                report.put(member.getUserEid(), "removed");
+            }
+
+            if (!userAuditList.isEmpty()) {
+                siteService.save(site);
+                userAuditRegistration.addToUserAuditing(userAuditList);
+            }
+        } catch (Exception e) {
+            log.error("WS syncSiteMembership(): " + e.getClass().getName() + " : " + e.getMessage());
+            return e.getClass().getName() + " : " + e.getMessage();
+        }
+
+        return XmlResponseWriter.writeToString(xml -> {
+            xml.start("members");
+            for (Entry<String, String> entry : report.entrySet()) {
+                xml.start("member");
+                xml.element("eid", entry.getKey());
+                xml.element("action", entry.getValue());
+                xml.end();
+            }
+            xml.end();
+        });
+    }
+
     /**
      * Create a new site
      *
@@ -1345,28 +1552,8 @@ public class SakaiScript extends AbstractWebService {
 
         try {
 
-            // check description
-            if (description != null) {
-                StringBuilder alertMsg = new StringBuilder();
-                description = formattedText.processFormattedText(description, alertMsg);
-                if (description == null) {
-                    throw new RuntimeException("Site description markup rejected: " + alertMsg.toString());
-                }
-            }
-
-            Site siteEdit = null;
-            siteEdit = siteService.addSite(siteid, type);
-            siteEdit.setTitle(title);
-            siteEdit.setDescription(description);
-            siteEdit.setShortDescription(shortdesc);
-            siteEdit.setIconUrl(iconurl);
-            siteEdit.setInfoUrl(infourl);
-            siteEdit.setJoinable(joinable);
-            siteEdit.setJoinerRole(joinerrole);
-            siteEdit.setPublished(published);
-            siteEdit.setPubView(publicview);
-            siteEdit.setSkin(skin);
-            siteEdit.setType(type);
+            Site siteEdit = createSite(siteid, title, description, shortdesc, iconurl, infourl, joinable, joinerrole,
+                    published, publicview, skin, type);
             siteService.save(siteEdit);
 
         } catch (Exception e) {
@@ -1376,6 +1563,36 @@ public class SakaiScript extends AbstractWebService {
         return "success";
     }
 
+    /**
+     * Add a site and set its details, the caller saves it
+     */
+    private Site createSite(String siteid, String title, String description, String shortdesc, String iconurl, String infourl,
+                            boolean joinable, String joinerrole, boolean published, boolean publicview, String skin, String type) throws Exception {
+        // check description
+        if (description != null) {
+            StringBuilder alertMsg = new StringBuilder();
+            description = formattedText.processFormattedText(description, alertMsg);
+            if (description == null) {
+                throw new RuntimeException("Site description markup rejected: " + alertMsg.toString());
+            }
+        }
+
+        Site siteEdit = null;
+        siteEdit = siteService.addSite(siteid, type);
+        siteEdit.setTitle(title);
+        siteEdit.setDescription(description);
+        siteEdit.setShortDescription(shortdesc);
+        siteEdit.setIconUrl(iconurl);
+        siteEdit.setInfoUrl(infourl);
+        siteEdit.setJoinable(joinable);
+        siteEdit.setJoinerRole(joinerrole);
+        siteEdit.setPublished(published);
+        siteEdit.setPubView(publicview);
+        siteEdit.setSkin(skin);
+        siteEdit.setType(type);
+        return siteEdit;
+    }
+
     /**
      * Remove a site
      *
@@ -1509,11 +1726,8 @@ public class SakaiScript extends AbstractWebService {
         try {
 
             Site siteEdit = null;
-            SitePage sitePageEdit = null;
             siteEdit = siteService.getSite(siteid);
-            sitePageEdit = siteEdit.addPage();
-            sitePageEdit.setTitle(pagetitle);
-            sitePageEdit.setLayout(pagelayout);
+            addPage(siteEdit, pagetitle, pagelayout);
             siteService.save(siteEdit);
 
         } catch (Exception e) {
@@ -1523,6 +1737,15 @@ public class SakaiScript extends AbstractWebService {
         return "success";
     }
 
+    /**
+     * Add a page to a site, the caller saves the site
+     */
+    private void addPage(Site siteEdit, String pagetitle, int pagelayout) {
+        SitePage sitePageEdit = siteEdit.addPage();
+        sitePageEdit.setTitle(pagetitle);
+        sitePageEdit.setLayout(pagelayout);
+    }
+
     /**
      * Remove a page from a site
      *
@@ -1601,62 +1824,68 @@ public class SakaiScript extends AbstractWebService {
         try {
 
             Site siteEdit = siteService.getSite(siteid);
+            addTool(session, siteEdit, pagetitle, tooltitle, toolid, layouthints);
+            siteService.save(siteEdit);
 
-            // Check that the tool is visible (not stealthed) and available for this site type (category)
-            if (!securityService.isSuperUser(session.getUserId())) {
+        } catch (Exception e) {
+            log.error("WS addNewToolToPage(): " + e.getClass().getName() + " : " + e.getMessage());
+            return e.getClass().getName() + " : " + e.getMessage();
+        }
+        return "success";
+    }
 
-                Set categories = new HashSet<String>();
-                Set<Tool> visibleTools = toolManager.findTools(categories, null);
+    /**
+     * Add a tool to every page in the site with the given title, the caller saves the site
+     */
+    private void addTool(Session session, Site siteEdit, String pagetitle, String tooltitle, String toolid, String layouthints) {
+        // Check that the tool is visible (not stealthed) and available for this site type (category)
+        if (!securityService.isSuperUser(session.getUserId())) {
 
-                boolean toolVisible = false;
-                for (Tool tool : visibleTools) {
-                    if (tool.getId().equals(toolid)) {
-                        toolVisible = true;
-                    }
-                }
+            Set categories = new HashSet<String>();
+            Set<Tool> visibleTools = toolManager.findTools(categories, null);
 
-                if (!toolVisible) {
-                    log.warn("WS addNewToolToPage(): Permission denied. Must be super user to add a stealthed tool to a site.");
-                    throw new RuntimeException("WS addNewToolToPage(): Permission denied. Must be super user to add a stealthed tool to a site.");
+            boolean toolVisible = false;
+            for (Tool tool : visibleTools) {
+                if (tool.getId().equals(toolid)) {
+                    toolVisible = true;
                 }
+            }
 
-                categories.add(siteEdit.getType());
-                Set<Tool> availableTools = toolManager.findTools(categories, null);
+            if (!toolVisible) {
+                log.warn("WS addNewToolToPage(): Permission denied. Must be super user to add a stealthed tool to a site.");
+                throw new RuntimeException("WS addNewToolToPage(): Permission denied. Must be super user to add a stealthed tool to a site.");
+            }
 
-                boolean toolAvailable = false;
-                for (Tool tool : availableTools) {
-                    if (tool.getId().equals(toolid)) {
-                        toolAvailable = true;
-                    }
-                }
+            categories.add(siteEdit.getType());
+            Set<Tool> availableTools = toolManager.findTools(categories, null);
 
-                if (!toolAvailable) {
-                    log.warn("WS addNewToolToPage(): Permission denied. Must be super user to add a tool which is not available for this site type.");
-                    throw new RuntimeException("WS addNewToolToPage(): Permission denied. Must be super user to add a tool which is not available for this site type.");
+            boolean toolAvailable = false;
+            for (Tool tool : availableTools) {
+                if (tool.getId().equals(toolid)) {
+                    toolAvailable = true;
                 }
             }
 
-            List pageEdits = siteEdit.getPages();
-            for (Iterator i = pageEdits.iterator(); i.hasNext(); ) {
-                SitePage pageEdit = (SitePage) i.next();
-                if (pageEdit.getTitle().equals(pagetitle)) {
-                    ToolConfiguration tool = pageEdit.addTool();
-                    Tool t = tool.getTool();
-
-                    tool.setTool(toolid, toolManager.getTool(toolid));
-                    tool.setTitle(tooltitle);
-                    //toolEdit.setTitle(tooltitle);
-                    //toolEdit.setToolId(toolid);
-                    tool.setLayoutHints(layouthints);
-                }
+            if (!toolAvailable) {
+                log.warn("WS addNewToolToPage(): Permission denied. Must be super user to add a tool which is not available for this site type.");
+                throw new RuntimeException("WS addNewToolToPage(): Permission denied. Must be super user to add a tool which is not available for this site type.");
             }
-            siteService.save(siteEdit);
+        }
 
-        } catch (Exception e) {
-            log.error("WS addNewToolToPage(): " + e.getClass().getName() + " : " + e.getMessage());
-            return e.getClass().getName() + " : " + e.getMessage();
+        List pageEdits = siteEdit.getPages();
+        for (Iterator i = pageEdits.iterator(); i.hasNext(); ) {
+            SitePage pageEdit = (SitePage) i.next();
+            if (pageEdit.getTitle().equals(pagetitle)) {
+                ToolConfiguration tool = pageEdit.addTool();
+                Tool t = tool.getTool();
+
+                tool.setTool(toolid, toolManager.getTool(toolid));
+                tool.setTitle(tooltitle);
+                //toolEdit.setTitle(tooltitle);
+                //toolEdit.setToolId(toolid);
+                tool.setLayoutHints(layouthints);
+            }
         }
-        return "success";
     }
 
 
@@ -1689,21 +1918,7 @@ public class SakaiScript extends AbstractWebService {
         try {
 
             Site siteEdit = siteService.getSite(siteid);
-            List pageEdits = siteEdit.getPages();
-            for (Iterator i = pageEdits.iterator(); i.hasNext(); ) {
-                SitePage pageEdit = (SitePage) i.next();
-                if (pageEdit.getTitle().equals(pagetitle)) {
-                    List toolEdits = pageEdit.getTools();
-                    for (Iterator j = toolEdits.iterator(); j.hasNext(); ) {
-                        ToolConfiguration tool = (ToolConfiguration) j.next();
-                        Tool t = tool.getTool();
-                        if (tool.getTitle().equals(tooltitle)) {
-                            Properties propsedit = tool.getPlacementConfig();
-                            propsedit.setProperty(propname, propvalue);
-                        }
-                    }
-                }
-            }
+            setToolProperty(siteEdit, pagetitle, tooltitle, propname, propvalue);
             siteService.save(siteEdit);
 
         } catch (Exception e) {
@@ -1713,6 +1928,26 @@ public class SakaiScript extends AbstractWebService {
         return "success";
     }
 
+    /**
+     * Set a placement property on the matching tools, the caller saves the site
+     */
+    private void setToolProperty(Site siteEdit, String pagetitle, String tooltitle, String propname, String propvalue) {
+        List pageEdits = siteEdit.getPages();
+        for (Iterator i = pageEdits.iterator(); i.hasNext(); ) {
+            SitePage pageEdit = (SitePage) i.next();
+            if (pageEdit.getTitle().equals(pagetitle)) {
+                List toolEdits = pageEdit.getTools();
+                for (Iterator j = toolEdits.iterator(); j.hasNext(); ) {
+                    ToolConfiguration tool = (ToolConfiguration) j.next();
+                    if (tool.getTitle().equals(tooltitle)) {
+                        Properties propsedit = tool.getPlacementConfig();
+                        propsedit.setProperty(propname, propvalue);
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Add a property to a page in a site
      *
@@ -1884,21 +2119,13 @@ public class SakaiScript extends AbstractWebService {
         Session s = establishSession(sessionid);
 
         try {
-            List allSites = siteService.getSites(SelectionType.ACCESS, null, null,
-                    null, SortType.TITLE_ASC, null);
-            List moreSites = siteService.getSites(SelectionType.UPDATE, null, null,
-                    null, SortType.TITLE_ASC, null);
-
-            if ((allSites == null || moreSites == null) || (allSites.size() == 0 && moreSites.size() == 0)) {
+            List<SiteListService.SiteSummary> allSites = siteListService.getSitesForCurrentUser(null);
+            if (allSites.isEmpty()) {
                 return "<list/>";
             }
 
-            // Remove duplicates and combine two lists
-            allSites.removeAll(moreSites);
-            allSites.addAll(moreSites);
+            return XmlResponseWriter.writeToString(xml -> SiteListService.writeXml(xml, allSites, -1));
 
-            return getSiteListXml(allSites);
-            
         } catch (Exception e) {
             log.error("WS getSitesCurrentUserCanAccess(): " + e.getClass().getName() + " : " + e.getMessage());
             return "<exception/>";
@@ -2405,6 +2632,148 @@ public class SakaiScript extends AbstractWebService {
         return "success";
     }
 
+    /**
+     * Run a list of site operations in order under a single session.
+     * <p>
+     * Each operation is a JSON object with an <code>op</code> naming the operation and the same parameters as the
+     * single operation, eg:
+     * <pre>
+     * [{"op":"addNewSite","siteid":"s1","title":"Site 1","type":"project","published":true},
+     *  {"op":"addNewPageToSite","siteid":"s1","pagetitle":"Resources","pagelayout":0},
+     *  {"op":"addNewToolToPage","siteid":"s1","pagetitle":"Resources","tooltitle":"Resources","toolid":"sakai.resources"},
+     *  {"op":"setSiteProperty","siteid":"s1","propname":"term","propvalue":"FALL"}]
+     * </pre>
+     * The supported operations are addNewSite, addNewPageToSite, addNewToolToPage, addConfigPropertyToTool and
+     * setSiteProperty. Consecutive operations on the same site are applied to one copy of the site, which is saved
+     * once when the batch moves on to another site or finishes. If that save fails every operation in the run is
+     * reported with the error.
+     *
+     * @param sessionid  the id of a valid session
+     * @param operations a JSON array of operations
+     * @return XML with the result of each operation, success or the error, in the order given
+     */
+    @WebMethod(operationName = "runBatch")
+    @Path("/runBatch")
+    @Produces("text/plain")
+    @Consumes({MediaType.APPLICATION_FORM_URLENCODED})
+    @POST
+    public String runBatch(
+            @WebParam(name = "sessionid", partName = "sessionid") @FormParam("sessionid") String sessionid,
+            @WebParam(name = "operations", partName = "operations") @FormParam("operations") String operations) {
+        Session session = establishSession(sessionid);
+
+        JSONArray ops;
+        try {
+            ops = new JSONArray(operations);
+        } catch (Exception e) {
+            log.warn("WS runBatch(): " + e.getClass().getName() + " : " + e.getMessage());
+            throw new RuntimeException("WS runBatch(): operations must be a JSON array: " + e.getMessage());
+        }
+
+        int max = serverConfigurationService.getInt("webservices.batch.max-operations", 500);
+        if (ops.length() > max) {
+            log.warn("WS runBatch(): " + ops.length() + " operations is more than the limit of " + max);
+            throw new RuntimeException("WS runBatch(): " + ops.length() + " operations is more than the limit of " + max);
+        }
+
+        String[] opNames = new String[ops.length()];
+        String[] results = new String[ops.length()];
+
+        // The site being edited and the operations applied to it since it was last saved
+        Site site = null;
+        List<Integer> pending = new ArrayList<>();
+
+        for (int i = 0; i < ops.length(); i++) {
+            JSONObject op = ops.optJSONObject(i);
+            if (op == null) {
+                results[i] = "java.lang.IllegalArgumentException : operation is not a JSON object";
+                continue;
+            }
+            String name = op.optString("op", null);
+            String siteid = op.optString("siteid", null);
+            opNames[i] = name;
+
+            if (!BATCH_OPERATIONS.contains(name)) {
+                results[i] = "java.lang.IllegalArgumentException : unsupported operation: " + name;
+                continue;
+            }
+
+            if (site != null && !site.getId().equals(siteid)) {
+                saveBatchSite(site, pending, results);
+                site = null;
+            }
+
+            try {
+                if ("addNewSite".equals(name)) {
+                    if (site != null) {
+                        // Adding a site that is already being edited fails, let the site service say so
+                        saveBatchSite(site, pending, results);
+                        site = null;
+                    }
+                    site = createSite(siteid, op.optString("title", null), op.optString("description", null),
+                            op.optString("shortdesc", null), op.optString("iconurl", null), op.optString("infourl", null),
+                            op.optBoolean("joinable"), op.optString("joinerrole", null), op.optBoolean("published"),
+                            op.optBoolean("publicview"), op.optString("skin", null), op.optString("type", null));
+                } else {
+                    if ("setSiteProperty".equals(name) && !securityService.isSuperUser()) {
+                        log.warn("WS setSiteProperty(): Permission denied. Restricted to super users.");
+                        throw new RuntimeException("WS setSiteProperty(): Permission denied. Restricted to super users.");
+                    }
+                    if (site == null) {
+                        site = siteService.getSite(siteid);
+                    }
+                    if ("addNewPageToSite".equals(name)) {
+                        addPage(site, op.optString("pagetitle", null), op.optInt("pagelayout"));
+                    } else if ("addNewToolToPage".equals(name)) {
+                        addTool(session, site, op.optString("pagetitle", null), op.optString("tooltitle", null),
+                                op.optString("toolid", null), op.optString("layouthints", null));
+                    } else if ("addConfigPropertyToTool".equals(name)) {
+                        setToolProperty(site, op.optString("pagetitle", null), op.optString("tooltitle", null),
+                                op.optString("propname", null), op.optString("propvalue", null));
+                    } else {
+                        site.getPropertiesEdit().addProperty(op.optString("propname", null), op.optString("propvalue", null));
+                    }
+                }
+                pending.add(i);
+            } catch (Exception e) {
+                log.error("WS runBatch(): " + name + " " + e.getClass().getName() + " : " + e.getMessage());
+                results[i] = e.getClass().getName() + " : " + e.getMessage();
+            }
+        }
+        if (site != null) {
+            saveBatchSite(site, pending, results);
+        }
+
+        return XmlResponseWriter.writeToString(xml -> {
+            xml.start("results");
+            for (int i = 0; i < results.length; i++) {
+                xml.start("result");
+                xml.element("index", Integer.toString(i));
+                xml.element("op", opNames[i]);
+                xml.element("status", results[i]);
+                xml.end();
+            }
+            xml.end();
+        });
+    }
+
+    /**
+     * Save a site edited by a batch and record the outcome for each of the operations applied to it
+     */
+    private void saveBatchSite(Site site, List<Integer> pending, String[] results) {
+        String result = "success";
+        try {
+            siteService.save(site);
+        } catch (Exception e) {
+            log.error("WS runBatch(): saving " + site.getId() + " " + e.getClass().getName() + " : " + e.getMessage());
+            result = e.getClass().getName() + " : " + e.getMessage();
+        }
+        for (Integer i : pending) {
+            results[i] = result;
+        }
+        pending.clear();
+    }
+
 
     /**
      * Remove a custom property for a site
@@ -3127,43 +3496,126 @@ public class SakaiScript extends AbstractWebService {
             //now add a page to each site, and the tool to that page
             for (Iterator j = allUsers.iterator(); j.hasNext(); ) {
                 String userid = StringUtils.trim((String) j.next());
+                addToolToWorkspace(userid, toolid, pagetitle, tooltitle, pagelayout, position, popup, false);
+            }
+            return "success";
+        } catch (Exception e) {
+            log.error("WS addNewToolToAllWorkspaces(): " + e.getClass().getName() + " : " + e.getMessage());
+            return e.getClass().getName() + " : " + e.getMessage();
+        }
+    }
 
-                log.info("Processing user:" + userid);
+    /**
+     * Adds a tool to all My Workspace sites as a background job, see getAdminJobStatus to follow its progress.
+     * Workspaces that already have the tool are skipped, so a job that is resumed after a restart does not add
+     * the tool twice.
+     *
+     * @param pagelayout single or double column (0 or 1). Any other value will revert to 0.
+     * @param sessionid  the id of a valid session for the admin user
+     * @param toolid     the id of the tool you want to add (ie sakai.profile2)
+     * @param pagetitle  the title of the page shown in the site navigation
+     * @param tooltitle  the title of the tool shown in the main portlet
+     * @param position   integer specifying the position within other pages on the site (0 means top, for right at the bottom a large enough number, ie 99)
+     * @param popup      boolean for if it should be a popup window or not
+     * @return the job id
+     * @throws RuntimeException if not called by a super user
+     */
+    @WebMethod
+    @Path("/addNewToolToAllWorkspacesAsync")
+    @Produces("text/plain")
+    @GET
+    public String addNewToolToAllWorkspacesAsync(
+            @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid,
+            @WebParam(name = "toolid", partName = "toolid") @QueryParam("toolid") String toolid,
+            @WebParam(name = "pagetitle", partName = "pagetitle") @QueryParam("pagetitle") String pagetitle,
+            @WebParam(name = "tooltitle", partName = "tooltitle") @QueryParam("tooltitle") String tooltitle,
+            @WebParam(name = "pagelayout", partName = "pagelayout") @QueryParam("pagelayout") int pagelayout,
+            @WebParam(name = "position", partName = "position") @QueryParam("position") int position,
+            @WebParam(name = "popup", partName = "popup") @QueryParam("popup") boolean popup) {
+        Session session = establishSession(sessionid);
 
-                String myWorkspaceId = siteService.getUserSiteId(userid);
+        if (!securityService.isSuperUser(session.getUserId())) {
+            log.warn("WS addNewToolToAllWorkspacesAsync() failed. Restricted to admin users.");
+            throw new RuntimeException("WS failed. Restricted to admin users.");
+        }
 
-                Site siteEdit = null;
-                SitePage sitePageEdit = null;
+        Map<String, String> params = new HashMap<>();
+        params.put("toolid", toolid);
+        params.put("pagetitle", pagetitle);
+        params.put("tooltitle", tooltitle);
+        params.put("pagelayout", Integer.toString(pagelayout));
+        params.put("position", Integer.toString(position));
+        params.put("popup", Boolean.toString(popup));
+        return adminJobService.start(JOB_ADD_TOOL_TO_WORKSPACES, session.getUserId(), session.getUserEid(), params).getId();
+    }
 
-                try {
-                    siteEdit = siteService.getSite(myWorkspaceId);
-                } catch (IdUnusedException e) {
-                    log.error("No workspace for user: " + myWorkspaceId + ", skipping...");
-                    continue;
-                }
+    /**
+     * Add a page with the tool to the user's My Workspace
+     *
+     * @param skipIfPresent do nothing if the workspace already has the tool
+     * @return false if the user has no workspace or it was skipped
+     */
+    private boolean addToolToWorkspace(String userid, String toolid, String pagetitle, String tooltitle, int pagelayout,
+                                       int position, boolean popup, boolean skipIfPresent) throws Exception {
+        log.info("Processing user:" + userid);
 
-                sitePageEdit = siteEdit.addPage();
-                sitePageEdit.setTitle(pagetitle);
-                sitePageEdit.setLayout(pagelayout);
+        String myWorkspaceId = siteService.getUserSiteId(userid);
 
-                sitePageEdit.setPosition(position);
-                sitePageEdit.setPopup(popup);
+        Site siteEdit = null;
+        SitePage sitePageEdit = null;
 
-                ToolConfiguration tool = sitePageEdit.addTool();
-                Tool t = tool.getTool();
+        try {
+            siteEdit = siteService.getSite(myWorkspaceId);
+        } catch (IdUnusedException e) {
+            log.error("No workspace for user: " + myWorkspaceId + ", skipping...");
+            return false;
+        }
 
-                tool.setTool(toolid, toolManager.getTool(toolid));
-                tool.setTitle(tooltitle);
+        if (skipIfPresent && siteEdit.getToolForCommonId(toolid) != null) {
+            return false;
+        }
+
+        sitePageEdit = siteEdit.addPage();
+        sitePageEdit.setTitle(pagetitle);
+        sitePageEdit.setLayout(pagelayout);
+
+        sitePageEdit.setPosition(position);
+        sitePageEdit.setPopup(popup);
 
-                siteService.save(siteEdit);
-                log.info("Page added for user:" + userid);
+        ToolConfiguration tool = sitePageEdit.addTool();
 
+        tool.setTool(toolid, toolManager.getTool(toolid));
+        tool.setTitle(tooltitle);
+
+        siteService.save(siteEdit);
+        log.info("Page added for user:" + userid);
+        return true;
+    }
+
+    /**
+     * The ids of every user apart from the special users, in id order.
+     */
+    private List<String> getWorkspaceUserIds() {
+        String config = serverConfigurationService.getString("webservice.specialUsers", "admin,postmaster");
+        Set<String> specialUsers = new HashSet<>(Arrays.asList(StringUtils.split(config, ',')));
+
+        List<String> userIds = new ArrayList<>();
+        for (int first = 1; ; first += USER_PAGE_SIZE) {
+            List<User> page = userDirectoryService.getUsers(first, first + USER_PAGE_SIZE - 1);
+            if (page == null) {
+                break;
+            }
+            for (User user : page) {
+                if (!specialUsers.contains(user.getId())) {
+                    userIds.add(StringUtils.trim(user.getId()));
+                }
+            }
+            if (page.size() < USER_PAGE_SIZE) {
+                break;
             }
-            return "success";
-        } catch (Exception e) {
-            log.error("WS addNewToolToAllWorkspaces(): " + e.getClass().getName() + " : " + e.getMessage());
-            return e.getClass().getName() + " : " + e.getMessage();
         }
+        Collections.sort(userIds);
+        return userIds;
     }
 
     /**
@@ -3349,11 +3801,32 @@ public class SakaiScript extends AbstractWebService {
      *                          webservice.specialUsers=admin,postmaster
      */
     @WebMethod
+    public String getAllUsers(
+            @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid) {
+        XmlResponseWriter.Body body = getAllUsersBody(sessionid);
+        try {
+            return XmlResponseWriter.writeToString(body);
+        } catch (Exception e) {
+            log.error("WS getAllUsers(): " + e.getClass().getName() + " : " + e.getMessage());
+            return "<exception/>";
+        }
+    }
+
+    /**
+     * REST form of getAllUsers, users are read a page at a time and streamed to the client as they are read.
+     *
+     * @param sessionid the id of a valid session for the admin user
+     * @return XML or exception
+     */
+    @WebMethod(exclude = true)
     @Path("/getAllUsers")
     @Produces("text/plain")
     @GET
-    public String getAllUsers(
-            @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid) {
+    public StreamingOutput getAllUsersStream(@QueryParam("sessionid") String sessionid) {
+        return XmlResponseWriter.stream(getAllUsersBody(sessionid));
+    }
+
+    private XmlResponseWriter.Body getAllUsersBody(String sessionid) {
         Session session = establishSession(sessionid);
 
         //check that ONLY admin is accessing this	
@@ -3369,47 +3842,48 @@ public class SakaiScript extends AbstractWebService {
             String[] items = StringUtils.split(config, ',');
             List<String> specialUsers = Arrays.asList(items);
 
-            //get all users
-            List<User> allUsers = userDirectoryService.getUsers();
+            //get the first page of users
+            List<User> firstPage = userDirectoryService.getUsers(1, USER_PAGE_SIZE);
 
             //check size
-            if (allUsers == null || allUsers.size() == 0) {
-                return "<list/>";
+            if (firstPage == null || firstPage.size() == 0) {
+                return XmlResponseWriter.literal("<list/>");
             }
 
-            Document dom = Xml.createDocument();
-            Node list = dom.createElement("list");
-            dom.appendChild(list);
-            for (Iterator i = allUsers.iterator(); i.hasNext(); ) {
-                User user = (User) i.next();
+            return xml -> {
+                xml.start("list");
+                List<User> page = firstPage;
+                int first = 1;
+                while (true) {
+                    for (User user : page) {
 
-                //skip if this user is in the specialUser list
-                if (specialUsers.contains(user.getEid())) {
-                    continue;
-                }
-
-                Node item = dom.createElement("item");
-                Node userId = dom.createElement("userId");
-                userId.appendChild(dom.createTextNode(user.getId()));
-                Node eid = dom.createElement("eid");
-                eid.appendChild(dom.createTextNode(user.getEid()));
-                Node displayName = dom.createElement("displayName");
-                displayName.appendChild(dom.createTextNode(user.getDisplayName()));
-                Node type = dom.createElement("type");
-                type.appendChild(dom.createTextNode(user.getType()));
-
-                item.appendChild(userId);
-                item.appendChild(eid);
-                item.appendChild(displayName);
-                item.appendChild(type);
-                list.appendChild(item);
-            }
+                        //skip if this user is in the specialUser list
+                        if (specialUsers.contains(user.getEid())) {
+                            continue;
+                        }
 
-            return Xml.writeDocumentToString(dom);
+                        xml.start("item")
+                                .element("userId", user.getId())
+                                .element("eid", user.getEid())
+                                .element("displayName", user.getDisplayName())
+                                .element("type", user.getType())
+                                .end();
+                    }
+                    if (page.size() < USER_PAGE_SIZE) {
+                        break;
+                    }
+                    first += USER_PAGE_SIZE;
+                    page = userDirectoryService.getUsers(first, first + USER_PAGE_SIZE - 1);
+                    if (page == null || page.isEmpty()) {
+                        break;
+                    }
+                }
+                xml.end();
+            };
 
         } catch (Exception e) {
             log.error("WS getAllUsers(): " + e.getClass().getName() + " : " + e.getMessage());
-            return "<exception/>";
+            return XmlResponseWriter.literal("<exception/>");
         }
 
     }
@@ -3459,17 +3933,10 @@ public class SakaiScript extends AbstractWebService {
             //if dealing with web service sessions, re-use is ok
             if (wsonly) {
                 //do we already have a web service session for the given user? If so, reuse it.
-                List<Session> existingSessions = sessionManager.getSessions();
-                for (Session existingSession : existingSessions) {
-                    if (StringUtils.equals(existingSession.getUserEid(), eid)) {
-
-                        //check if the origin attribute, if set, is set for web services
-                        String origin = (String) existingSession.getAttribute(SESSION_ATTR_NAME_ORIGIN);
-                        if (StringUtils.equals(origin, SESSION_ATTR_VALUE_ORIGIN_WS)) {
-                            log.warn("WS getSessionForUser() reusing existing session for: " + eid + ", session=" + existingSession.getId());
-                            return existingSession.getId();
-                        }
-                    }
+                Session existingSession = webServiceSessionIndex.find(eid);
+                if (existingSession != null) {
+                    log.warn("WS getSessionForUser() reusing existing session for: " + eid + ", session=" + existingSession.getId());
+                    return existingSession.getId();
                 }
             }
 
@@ -3489,7 +3956,8 @@ public class SakaiScript extends AbstractWebService {
 
             //if wsonly, inject the origin attribute
             if (wsonly) {
-                newsession.setAttribute(SESSION_ATTR_NAME_ORIGIN, SESSION_ATTR_VALUE_ORIGIN_WS);
+                newsession.setAttribute(WebServiceSessionIndex.SESSION_ATTR_NAME_ORIGIN, WebServiceSessionIndex.SESSION_ATTR_VALUE_ORIGIN_WS);
+                webServiceSessionIndex.add(newsession);
                 log.warn("WS getSessionForUser() set origin attribute on session: " + newsession.getId());
             }
 
@@ -4745,15 +5213,8 @@ public class SakaiScript extends AbstractWebService {
         }
 
         try {
-            List<String> siteList = siteService.getSiteIds(SelectionType.ANY, null, null,
-                    null, SortType.NONE, null);
-            if (siteList != null && siteList.size() > 0) {
-                for (Iterator i = siteList.iterator(); i.hasNext(); ) {
-                    String siteId =  (String) i.next();
-                    if (siteService.isUserSite(siteId) && !(siteId.equals("~admin"))){
-                        siteService.removeSite(siteService.getSite(siteId));
-                    }
-                }
+            for (String siteId : getWorkspaceSiteIds()) {
+                resetWorkspace(siteId);
             }
         } catch (Throwable t) {
             log.warn(this + ".resetAllUserWorkspace: Error encountered" + t.getMessage(), t);
@@ -4763,6 +5224,188 @@ public class SakaiScript extends AbstractWebService {
         return true;
     }
 
+    /**
+     * The ids of every My Workspace site apart from the admin workspace, in id order.
+     */
+    private List<String> getWorkspaceSiteIds() {
+        List<String> ids = new ArrayList<>();
+        for (String siteId : siteService.getSiteIds(SelectionType.ANY, null, null, null, SortType.NONE, null)) {
+            if (siteService.isUserSite(siteId) && !siteId.equals("~admin")) {
+                ids.add(siteId);
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Remove a My Workspace site, it is recreated the next time its user logs in.
+     *
+     * @return false if the site has already gone
+     */
+    private boolean resetWorkspace(String siteId) throws Exception {
+        try {
+            siteService.removeSite(siteService.getSite(siteId));
+            return true;
+        } catch (IdUnusedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Removes every My Workspace site apart from the admin workspace as a background job, see getAdminJobStatus
+     * to follow its progress. Each workspace is recreated the next time its user logs in.
+     *
+     * @param sessionid the id of a valid session for a super user
+     * @return the job id
+     * @throws RuntimeException if not called by a super user
+     */
+    @WebMethod
+    @Path("/resetAllUserWorkspaceAsync")
+    @Produces("text/plain")
+    @GET
+    public String resetAllUserWorkspaceAsync(
+            @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid) {
+        Session session = establishSession(sessionid);
+        if (!securityService.isSuperUser(session.getUserId())) {
+            log.warn("WS resetAllUserWorkspaceAsync(): Permission denied. Restricted to super users.");
+            throw new RuntimeException("WS resetAllUserWorkspaceAsync(): Permission denied. Restricted to super users.");
+        }
+        return adminJobService.start(JOB_RESET_USER_WORKSPACES, session.getUserId(), session.getUserEid(), Collections.emptyMap()).getId();
+    }
+
+    /**
+     * Get the status and progress of a background job
+     *
+     * @param sessionid the id of a valid session for a super user
+     * @param jobid     the id returned when the job was started
+     * @return XML describing the job
+     * @throws RuntimeException if not called by a super user or there is no such job
+     */
+    @WebMethod
+    @Path("/getAdminJobStatus")
+    @Produces("text/plain")
+    @GET
+    public String getAdminJobStatus(
+            @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid,
+            @WebParam(name = "jobid", partName = "jobid") @QueryParam("jobid") String jobid) {
+        AdminJob job = getAdminJob(sessionid, jobid, "getAdminJobStatus");
+        return XmlResponseWriter.writeToString(xml -> writeAdminJob(xml, job));
+    }
+
+    /**
+     * Get the items a background job could not process, the first 1000 are kept
+     *
+     * @param sessionid the id of a valid session for a super user
+     * @param jobid     the id returned when the job was started
+     * @return XML listing the item keys and errors
+     * @throws RuntimeException if not called by a super user or there is no such job
+     */
+    @WebMethod
+    @Path("/getAdminJobFailures")
+    @Produces("text/plain")
+    @GET
+    public String getAdminJobFailures(
+            @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid,
+            @WebParam(name = "jobid", partName = "jobid") @QueryParam("jobid") String jobid) {
+        AdminJob job = getAdminJob(sessionid, jobid, "getAdminJobFailures");
+        return XmlResponseWriter.writeToString(xml -> {
+            xml.start("failures");
+            for (AdminJob.Failure failure : job.getFailures()) {
+                xml.start("failure")
+                        .element("key", failure.getKey())
+                        .element("message", failure.getMessage())
+                        .end();
+            }
+            xml.end();
+        });
+    }
+
+    /**
+     * Stop a background job once it has finished the batch of items it is working on
+     *
+     * @param sessionid the id of a valid session for a super user
+     * @param jobid     the id returned when the job was started
+     * @return success, or failure if the job has already finished
+     * @throws RuntimeException if not called by a super user or there is no such job
+     */
+    @WebMethod
+    @Path("/cancelAdminJob")
+    @Produces("text/plain")
+    @GET
+    public String cancelAdminJob(
+            @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid,
+            @WebParam(name = "jobid", partName = "jobid") @QueryParam("jobid") String jobid) {
+        AdminJob job = getAdminJob(sessionid, jobid, "cancelAdminJob");
+        return adminJobService.cancel(job.getId()) ? "success" : "failure";
+    }
+
+    /**
+     * List running and recently finished background jobs, newest first
+     *
+     * @param sessionid the id of a valid session for a super user
+     * @return XML describing each job
+     * @throws RuntimeException if not called by a super user
+     */
+    @WebMethod
+    @Path("/getAdminJobs")
+    @Produces("text/plain")
+    @GET
+    public String getAdminJobs(
+            @WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid) {
+        Session session = establishSession(sessionid);
+        if (!securityService.isSuperUser(session.getUserId())) {
+            log.warn("WS getAdminJobs(): Permission denied. Restricted to super users.");
+            throw new RuntimeException("WS getAdminJobs(): Permission denied. Restricted to super users.");
+        }
+        List<AdminJob> jobs = adminJobService.getJobs();
+        return XmlResponseWriter.writeToString(xml -> {
+            xml.start("jobs");
+            for (AdminJob job : jobs) {
+                writeAdminJob(xml, job);
+            }
+            xml.end();
+        });
+    }
+
+    private AdminJob getAdminJob(String sessionid, String jobid, String operation) {
+        Session session = establishSession(sessionid);
+        if (!securityService.isSuperUser(session.getUserId())) {
+            log.warn("WS " + operation + "(): Permission denied. Restricted to super users.");
+            throw new RuntimeException("WS " + operation + "(): Permission denied. Restricted to super users.");
+        }
+        AdminJob job = adminJobService.getJob(jobid);
+        if (job == null) {
+            throw new RuntimeException("WS " + operation + "(): No job with id " + jobid);
+        }
+        return job;
+    }
+
+    private void writeAdminJob(XmlResponseWriter xml, AdminJob job) throws IOException {
+        xml.start("job")
+                .element("id", job.getId())
+                .element("type", job.getType())
+                .element("status", job.getStatus().name())
+                .element("owner", job.getOwnerEid())
+                .element("total", Long.toString(job.getTotal()))
+                .element("processed", Long.toString(job.getProcessed()))
+                .element("skipped", Long.toString(job.getSkipped()))
+                .element("failed", Long.toString(job.getFailed()))
+                .element("lastKey", job.getLastKey())
+                .element("resumed", Boolean.toString(job.isResumed()))
+                .element("dryRun", Boolean.toString(job.isDryRun()))
+                .element("created", formatJobTime(job.getCreated()))
+                .element("started", formatJobTime(job.getStarted()))
+                .element("finished", formatJobTime(job.getFinished()))
+                .element("error", job.getError())
+                .end();
+    }
+
+    private String formatJobTime(long time) {
+        return (time > 0) ? Instant.ofEpochMilli(time).toString() : null;
+    }
+
+
 
     @Path("/changeSitePublishStatus")
     @Produces("text/plain")
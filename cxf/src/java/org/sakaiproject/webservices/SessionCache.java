@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices;
+
+import java.util.concurrent.TimeUnit;
+
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Caches the result of looking up a web service session id so that integrations making many calls with the same
+ * session don't go to the session store on every call, and limits how often the session is marked active.
+ * <p>
+ * Entries live for a short time (<code>webservices.session-cache.ttl</code>, seconds) and the cache holds at most
+ * <code>webservices.session-cache.size</code> sessions, dropping the least recently used to make room for new ones.
+ * <code>Session.setActive()</code> is only called when the session was last active more than
+ * <code>webservices.session-cache.active-interval</code> seconds ago, however often its entry is looked up again,
+ * which is plenty given session timeouts are measured in minutes. Sessions ended through {@link SakaiLogin} are
+ * removed straight away; a session ended some other way may be returned until its entry expires, unless it has also
+ * passed its inactive interval. The whole cache can be turned off with
+ * <code>webservices.session-cache.enabled=false</code>.
+ */
+@Slf4j
+public class SessionCache {
+
+    @Setter
+    private SessionManager sessionManager;
+
+    @Setter
+    private ServerConfigurationService serverConfigurationService;
+
+    @Setter
+    private boolean enabled = true;
+
+    // How long a looked up session is trusted for, in seconds
+    @Setter
+    private int ttl = 10;
+
+    // The most sessions held at once
+    @Setter
+    private int size = 1000;
+
+    // The least time between calls to setActive for a session, in seconds
+    @Setter
+    private int activeInterval = 60;
+
+    private long activeIntervalMillis;
+
+    private final ExpiringCache<String, Session> sessions = new ExpiringCache<>(size, ttl);
+
+    public void init() {
+        enabled = serverConfigurationService.getBoolean("webservices.session-cache.enabled", enabled);
+        ttl = serverConfigurationService.getInt("webservices.session-cache.ttl", ttl);
+        size = serverConfigurationService.getInt("webservices.session-cache.size", size);
+        activeInterval = serverConfigurationService.getInt("webservices.session-cache.active-interval", activeInterval);
+
+        activeIntervalMillis = TimeUnit.SECONDS.toMillis(activeInterval);
+        sessions.configure(size, ttl);
+
+        log.info("Web services session cache enabled={} ttl={}s size={} active-interval={}s", enabled, ttl, size, activeInterval);
+    }
+
+    /**
+     * Find the session with the given id and mark it active if it hasn't been recently.
+     *
+     * @param sessionid the id of the session to retrieve
+     * @return the session or null if there is no active session with that id
+     */
+    public Session getActiveSession(String sessionid) {
+        if (!enabled || sessionid == null) {
+            Session s = sessionManager.getSession(sessionid);
+            if (s != null) s.setActive();
+            return s;
+        }
+
+        long now = System.currentTimeMillis();
+        Session s = sessions.get(sessionid, cached -> !isInactive(cached, now));
+        if (s == null) {
+            s = sessionManager.getSession(sessionid);
+            if (s == null) {
+                return null;
+            }
+            sessions.put(sessionid, s);
+        }
+
+        // The session's own last access time is kept when its entry expires and it is looked up again
+        if (now - s.getLastAccessedTime() >= activeIntervalMillis) {
+            s.setActive();
+        }
+        return s;
+    }
+
+    /**
+     * Forget a session, for example because it has been logged out.
+     */
+    public void invalidate(String sessionid) {
+        if (sessionid != null) {
+            sessions.invalidate(sessionid);
+        }
+    }
+
+    public long getHits() {
+        return sessions.getHits();
+    }
+
+    public long getMisses() {
+        return sessions.getMisses();
+    }
+
+    public int getCachedCount() {
+        return sessions.size();
+    }
+
+    private boolean isInactive(Session s, long now) {
+        int maxInactive = s.getMaxInactiveInterval();
+        return maxInactive > 0 && now - s.getLastAccessedTime() > TimeUnit.SECONDS.toMillis(maxInactive);
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.site.api.SiteService.SelectionType;
+import org.sakaiproject.site.api.SiteService.SortType;
+import org.sakaiproject.tool.api.SessionManager;
+
+import lombok.Setter;
+
+/**
+ * The sites the current user can access or update, as used by the getSitesUserCanAccess family of operations.
+ * <p>
+ * The ACCESS and UPDATE lists are merged by site id, access only sites first and then the sites the user can update,
+ * each in title order. Each user's merged list is cached for <code>webservices.site-list-cache.ttl</code> seconds, for
+ * at most <code>webservices.site-list-cache.size</code> lists, dropping the least recently used. A site being changed, removed or having its membership
+ * changed drops every cached list containing it, and any of those events drops the lists of the user who caused it.
+ * A user added to a site by someone else sees it once their list expires. The cache can be turned off with
+ * <code>webservices.site-list-cache.enabled=false</code>.
+ */
+public class SiteListService extends EventInvalidatedCache<String, SiteListService.Entry> {
+
+    private static final String SITE_REFERENCE = "/site/";
+    private static final String SITE_REALM_REFERENCE = "/realm//site/";
+
+    @Setter
+    private SiteService siteService;
+
+    @Setter
+    private SessionManager sessionManager;
+
+    public SiteListService() {
+        super("webservices.site-list-cache", 60, 2000, SiteService.SECURE_ADD_SITE, SiteService.SECURE_UPDATE_SITE,
+                SiteService.SECURE_UPDATE_SITE_MEMBERSHIP, SiteService.SECURE_REMOVE_SITE, AuthzGroupService.SECURE_UPDATE_AUTHZ_GROUP);
+    }
+
+    /**
+     * Get the sites the current user can access or update.
+     *
+     * @param propertyCriteria site properties the sites must have, or null for all sites
+     * @return the merged list, which must not be changed
+     */
+    public List<SiteSummary> getSitesForCurrentUser(Map<String, String> propertyCriteria) {
+        String userId = sessionManager.getCurrentSessionUserId();
+        if (!enabled || userId == null) {
+            return loadSites(propertyCriteria);
+        }
+
+        // Sorted so the same criteria always make the same key
+        String key = userId + "|" + ((propertyCriteria != null) ? new TreeMap<>(propertyCriteria) : "");
+        Entry entry = cache.get(key);
+        if (entry != null) {
+            return entry.sites;
+        }
+
+        List<SiteSummary> sites = loadSites(propertyCriteria);
+        cache.put(key, new Entry(userId, sites));
+        return sites;
+    }
+
+    /**
+     * Write sites in the &lt;list&gt;&lt;item&gt;&lt;siteId/&gt;&lt;siteTitle/&gt;&lt;/item&gt;&lt;/list&gt; form
+     * the getSitesUserCanAccess operations have always returned.
+     *
+     * @param total the number of sites in all if this is a page of them, added to the list as an attribute, or -1
+     */
+    public static void writeXml(XmlResponseWriter xml, List<SiteSummary> sites, int total) throws IOException {
+        Map<String, String> attributes = null;
+        if (total >= 0) {
+            attributes = new LinkedHashMap<>();
+            attributes.put("total", Integer.toString(total));
+        }
+        xml.start("list", attributes);
+        for (SiteSummary site : sites) {
+            xml.start("item")
+                .element("siteId", site.getId())
+                .element("siteTitle", site.getTitle())
+                .end();
+        }
+        xml.end();
+    }
+
+    /**
+     * Sites as JSON: <code>{"total":n,"sites":[{"siteId":"...","siteTitle":"..."}]}</code>
+     */
+    public static String toJson(List<SiteSummary> sites, int total) {
+        JSONArray array = new JSONArray();
+        for (SiteSummary site : sites) {
+            JSONObject item = new JSONObject();
+            item.put("siteId", site.getId());
+            item.put("siteTitle", site.getTitle());
+            array.put(item);
+        }
+        JSONObject json = new JSONObject();
+        json.put("total", total);
+        json.put("sites", array);
+        return json.toString();
+    }
+
+    @Override
+    protected void invalidate(Event event) {
+        String siteId = siteIdFromReference(event.getResource());
+        String userId = event.getUserId();
+        cache.invalidateIf((key, e) -> e.userId.equals(userId) || (siteId != null && e.siteIds.contains(siteId)));
+    }
+
+    private List<SiteSummary> loadSites(Map<String, String> propertyCriteria) {
+        List<Site> accessSites = siteService.getSites(SelectionType.ACCESS, null, null, propertyCriteria, SortType.TITLE_ASC, null);
+        List<Site> updateSites = siteService.getSites(SelectionType.UPDATE, null, null, propertyCriteria, SortType.TITLE_ASC, null);
+        if (accessSites == null || updateSites == null) {
+            return Collections.emptyList();
+        }
+
+        Map<String, SiteSummary> merged = new LinkedHashMap<>();
+        Set<String> updateIds = new HashSet<>();
+        for (Site site : updateSites) {
+            updateIds.add(site.getId());
+        }
+        for (Site site : accessSites) {
+            if (!updateIds.contains(site.getId())) {
+                merged.put(site.getId(), new SiteSummary(site.getId(), site.getTitle()));
+            }
+        }
+        for (Site site : updateSites) {
+            merged.put(site.getId(), new SiteSummary(site.getId(), site.getTitle()));
+        }
+        return Collections.unmodifiableList(new ArrayList<>(merged.values()));
+    }
+
+    /**
+     * @return the site id from a site or site realm reference, including those of a group in the site
+     */
+    static String siteIdFromReference(String ref) {
+        if (ref == null) {
+            return null;
+        }
+        String rest;
+        if (ref.startsWith(SITE_REALM_REFERENCE)) {
+            rest = ref.substring(SITE_REALM_REFERENCE.length());
+        } else if (ref.startsWith(SITE_REFERENCE)) {
+            rest = ref.substring(SITE_REFERENCE.length());
+        } else {
+            return null;
+        }
+        int slash = rest.indexOf('/');
+        return (slash >= 0) ? rest.substring(0, slash) : rest;
+    }
+
+    /**
+     * The id and title of a site in a user's list
+     */
+    public static final class SiteSummary {
+        private final String id;
+        private final String title;
+
+        SiteSummary(String id, String title) {
+            this.id = id;
+            this.title = title;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+    }
+
+    static final class Entry {
+        private final String userId;
+        private final List<SiteSummary> sites;
+        private final Set<String> siteIds = new HashSet<>();
+
+        private Entry(String userId, List<SiteSummary> sites) {
+            this.userId = userId;
+            this.sites = sites;
+            for (SiteSummary site : sites) {
+                siteIds.add(site.getId());
+            }
+        }
+    }
+}
@@ -5,6 +5,8 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONWriter;
 import org.sakaiproject.api.app.messageforums.SynopticMsgcntrItem;
 import org.sakaiproject.api.app.messageforums.SynopticMsgcntrManager;
 import org.sakaiproject.api.app.messageforums.cover.SynopticMsgcntrManagerCover;
@@ -56,10 +58,14 @@ import org.sakaiproject.tool.assessment.facade.PublishedAssessmentFacadeQueries;
 import org.sakaiproject.tool.assessment.services.assessment.PublishedAssessmentService;
 import org.sakaiproject.user.api.Preferences;
 import org.sakaiproject.user.api.User;
+import org.sakaiproject.user.api.UserDirectoryService;
 import org.sakaiproject.user.api.UserEdit;
 import org.sakaiproject.user.api.UserNotDefinedException;
 import org.sakaiproject.util.ArrayUtil;
 import org.sakaiproject.util.Xml;
+import org.sakaiproject.webservices.db.SqlExecutor;
+import org.sakaiproject.webservices.job.AdminJob;
+import org.sakaiproject.webservices.job.AdminJobTask;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
@@ -71,26 +77,46 @@ import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * WSLongsight
@@ -105,10 +131,11 @@ public class WSLongsight extends AbstractWebService {
 	private static final Log LOG = LogFactory.getLog(WSLongsight.class);
 	private static final String EVENT_REMOVE_CALENDAR = "calendar.delete";
 	private static final String ADMIN_SITE_REALM = "/site/!admin";
-	private static final String SESSION_ATTR_NAME_ORIGIN = "origin";
-	private static final String SESSION_ATTR_VALUE_ORIGIN_WS = "sakai-axis";
 	private static final String CACHE_MANAGER = "org.sakaiproject.memory.api.MemoryService.cacheManager";
 	private static final String ID_EID_CACHE = "org.sakaiproject.user.api.UserDirectoryService";
+	// Key prefixes in the id-eid cache, see DbUserService
+	private static final String ID_EID_CACHE_EID = "eid:";
+	private static final String ID_EID_CACHE_ID = "id:";
 
 	/* 
 	 * Copied from edu-services/sections-service/sections-impl/sakai/model/src/java/org/sakaiproject/component/section/sakai/CourseImpl.java
@@ -119,6 +146,81 @@ public class WSLongsight extends AbstractWebService {
 	private static final String STUDENT_SWITCHING_ALLOWED = "sections_student_switching_allowed";
 	private static final String STUDENT_OPEN_DATE = "sections_student_open_date";
 
+	private static final String JOB_DELETE_WORKSPACES = "deleteAllMyWorkspaceSites";
+
+	// The users read at a time by the workspace jobs
+	private static final int USER_PAGE_SIZE = 1000;
+
+	// Shared by all grade exports, so the number of sites being read at once is bounded across requests
+	private ExecutorService gradeExportExecutor;
+	private int gradeExportThreads;
+
+	/**
+	 * Register the background jobs this service offers and start the grade export threads
+	 */
+	@WebMethod(exclude = true)
+	public void init() {
+		gradeExportThreads = Math.max(1, serverConfigurationService.getInt("webservices.grade-export.threads", 4));
+		AtomicInteger threadCount = new AtomicInteger();
+		gradeExportExecutor = Executors.newFixedThreadPool(gradeExportThreads, r -> {
+			Thread t = new Thread(r, "webservices-grade-export-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+
+		adminJobService.registerType(JOB_DELETE_WORKSPACES, job -> new AdminJobTask() {
+			private final Set<String> specialUsers = getSpecialUsers();
+
+			@Override
+			public long count() throws SQLException {
+				long total = sqlExecutor.queryForObject("SELECT COUNT(*) FROM SAKAI_USER_ID_MAP", rs -> rs.getLong(1));
+				if (!specialUsers.isEmpty()) {
+					total -= sqlExecutor.queryForObject("SELECT COUNT(*) FROM SAKAI_USER_ID_MAP WHERE user_id IN ("
+							+ StringUtils.repeat("?", ",", specialUsers.size()) + ")", rs -> rs.getLong(1), specialUsers.toArray());
+				}
+				return total;
+			}
+
+			@Override
+			public void read(String after, ItemSink sink) throws SQLException, InterruptedException {
+				// A page at a time after the last id read, so the whole table is never held in memory and the
+				// connection is given back while the workers get through each page
+				String last = after;
+				List<String> page;
+				do {
+					page = (last == null)
+						? sqlExecutor.queryForList("SELECT user_id FROM SAKAI_USER_ID_MAP ORDER BY user_id",
+							USER_PAGE_SIZE, rs -> rs.getString(1))
+						: sqlExecutor.queryForList("SELECT user_id FROM SAKAI_USER_ID_MAP WHERE user_id > ? ORDER BY user_id",
+							USER_PAGE_SIZE, rs -> rs.getString(1), last);
+					for (String userid : page) {
+						if (!specialUsers.contains(userid) && !sink.accept(userid)) {
+							return;
+						}
+					}
+					if (!page.isEmpty()) {
+						last = page.get(page.size() - 1);
+					}
+				} while (page.size() == USER_PAGE_SIZE);
+			}
+
+			@Override
+			public boolean process(String userid) throws Exception {
+				return removeMyWorkspace(StringUtils.trim(userid));
+			}
+
+			@Override
+			public boolean check(String userid) {
+				return siteService.siteExists(siteService.getUserSiteId(StringUtils.trim(userid)));
+			}
+		});
+	}
+
+	@WebMethod(exclude = true)
+	public void destroy() {
+		if (gradeExportExecutor != null) gradeExportExecutor.shutdownNow();
+	}
+
 	@WebMethod
 	@Path("/longsightSiteExists")
 	@Produces("text/plain")
@@ -1292,6 +1394,166 @@ public class WSLongsight extends AbstractWebService {
 		return searchResults;
 	}
 
+	/**
+	 * Get the events in a site's calendar between two dates, a page at a time. Recurring events are expanded into
+	 * their occurrences in the range.
+	 *
+	 * @param sessionid the id of a valid session
+	 * @param siteId    the id of the site
+	 * @param startdate the first day to include, yyyy-mm-dd in the server's time zone
+	 * @param enddate   the last day to include, yyyy-mm-dd in the server's time zone
+	 * @param title     only include events whose title contains this, ignoring case, or blank for all events
+	 * @param offset    how many matching events to skip, ignored if there is a cursor
+	 * @param limit     the most events to return, 100 if not given
+	 * @param cursor    the nextCursor from the previous page, or blank for the first page
+	 * @return JSON with the events and a nextCursor if there are more
+	 */
+	@WebMethod
+	public String getCalendarEventsInRange(
+			@WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid,
+			@WebParam(name = "siteId", partName = "siteId") @QueryParam("siteId") String siteId,
+			@WebParam(name = "startdate", partName = "startdate") @QueryParam("startdate") String startdate,
+			@WebParam(name = "enddate", partName = "enddate") @QueryParam("enddate") String enddate,
+			@WebParam(name = "title", partName = "title") @QueryParam("title") String title,
+			@WebParam(name = "offset", partName = "offset") @QueryParam("offset") int offset,
+			@WebParam(name = "limit", partName = "limit") @QueryParam("limit") int limit,
+			@WebParam(name = "cursor", partName = "cursor") @QueryParam("cursor") String cursor) {
+		Session session = establishSession(sessionid);
+
+		StringWriter out = new StringWriter();
+		try {
+			writeCalendarEventsInRange(siteId, startdate, enddate, title, offset, limit, cursor, out);
+		} catch (Exception e) {
+			LOG.error("WS getCalendarEventsInRange(): error " + e.getClass().getName() + " : " + e.getMessage());
+			return e.getClass().getName() + " : " + e.getMessage();
+		}
+		return out.toString();
+	}
+
+	/**
+	 * REST form of getCalendarEventsInRange, the events are streamed to the client as they are read.
+	 */
+	@WebMethod(exclude = true)
+	@Path("/getCalendarEventsInRange")
+	@Produces("text/plain")
+	@GET
+	public StreamingOutput getCalendarEventsInRangeStream(@QueryParam("sessionid") String sessionid, @QueryParam("siteId") String siteId,
+			@QueryParam("startdate") String startdate, @QueryParam("enddate") String enddate, @QueryParam("title") String title,
+			@QueryParam("offset") int offset, @QueryParam("limit") int limit, @QueryParam("cursor") String cursor) {
+		Session session = establishSession(sessionid);
+
+		return output -> {
+			Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+			try {
+				writeCalendarEventsInRange(siteId, startdate, enddate, title, offset, limit, cursor, out);
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				LOG.error("WS getCalendarEventsInRange(): error " + e.getClass().getName() + " : " + e.getMessage());
+				out.write(e.getClass().getName() + " : " + e.getMessage());
+			}
+			out.flush();
+		};
+	}
+
+	private void writeCalendarEventsInRange(String siteId, String startdate, String enddate, String title,
+			int offset, int limit, String cursor, Writer out) throws Exception {
+		int maxLimit = serverConfigurationService.getInt("webservices.calendar.max-limit", 1000);
+		if (limit <= 0) limit = 100;
+		limit = Math.min(limit, maxLimit);
+
+		// Checked before anything is written so a bad request gets just the error
+		Time rangeStart = parseLocalDate(startdate, false);
+		Time rangeEnd = parseLocalDate(enddate, true);
+
+		// A cursor is the start time and id of the last event on the previous page
+		long cursorTime = -1;
+		String cursorId = null;
+		if (StringUtils.isNotBlank(cursor)) {
+			int bar = cursor.indexOf('|');
+			if (bar <= 0) throw new IllegalArgumentException("Invalid cursor: " + cursor);
+			cursorTime = Long.parseLong(cursor.substring(0, bar));
+			cursorId = cursor.substring(bar + 1);
+			offset = 0;
+			if (cursorTime > rangeStart.getTime()) {
+				rangeStart = timeService.newTime(cursorTime);
+			}
+		}
+		String titleFilter = StringUtils.isNotBlank(title) ? title.toLowerCase() : null;
+
+		Calendar calendar = CalendarService.getCalendar("/calendar/calendar/" + siteId + "/main");
+		TimeRange range = timeService.newTimeRange(rangeStart, rangeEnd, true, true);
+		// Paged by start time then id, so sort on both rather than rely on the order the calendar returns them in
+		List<CalendarEvent> eventList = new ArrayList<>(calendar.getEvents(range, null));
+		eventList.sort(Comparator.comparingLong((CalendarEvent event) -> event.getRange().firstTime().getTime())
+			.thenComparing(CalendarEvent::getId));
+
+		JSONWriter json = new JSONWriter(out);
+		json.object().key("events").array();
+
+		int skipped = 0;
+		int written = 0;
+		String lastWritten = null;
+		String nextCursor = null;
+		for (CalendarEvent event : eventList) {
+			String displayName = event.getDisplayName();
+			if (titleFilter != null && (displayName == null || !displayName.toLowerCase().contains(titleFilter))) {
+				continue;
+			}
+			long start = event.getRange().firstTime().getTime();
+			if (cursorId != null && (start < cursorTime || (start == cursorTime && event.getId().compareTo(cursorId) <= 0))) {
+				continue;
+			}
+			if (skipped < offset) {
+				skipped++;
+				continue;
+			}
+			if (written == limit) {
+				// There is at least one more, so carry on after the last one written
+				nextCursor = lastWritten;
+				break;
+			}
+
+			json.object()
+				.key("id").value(event.getId())
+				.key("title").value(displayName)
+				.key("start").value(Instant.ofEpochMilli(start).toString())
+				.key("end").value(Instant.ofEpochMilli(event.getRange().lastTime().getTime()).toString())
+				.key("range").value(event.getRange().toStringHR())
+				.key("type").value(event.getType())
+				.key("location").value(event.getLocation());
+			RecurrenceRule rule = event.getRecurrenceRule();
+			if (rule != null) {
+				json.key("frequency").value(rule.getFrequencyDescription())
+					.key("interval").value(rule.getInterval());
+				if (rule.getUntil() != null) {
+					json.key("until").value(rule.getUntil().toStringLocalFull());
+				}
+			}
+			json.endObject();
+			written++;
+			lastWritten = start + "|" + event.getId();
+		}
+		json.endArray();
+		json.key("count").value(written);
+		if (nextCursor != null) {
+			json.key("nextCursor").value(nextCursor);
+		}
+		json.endObject();
+	}
+
+	/**
+	 * Parse a yyyy-mm-dd date in the server's time zone, as the start of the day or the end of it
+	 */
+	private Time parseLocalDate(String date, boolean endOfDay) {
+		if (StringUtils.isBlank(date)) throw new IllegalArgumentException("A yyyy-mm-dd date is required");
+		String dateArr[] = date.split("-");
+		if (dateArr.length != 3) throw new IllegalArgumentException("Invalid yyyy-mm-dd date: " + date);
+		return endOfDay
+			? timeService.newTimeLocal(Integer.parseInt(dateArr[0]), Integer.parseInt(dateArr[1]), Integer.parseInt(dateArr[2]), 23, 59, 59, 999)
+			: timeService.newTimeLocal(Integer.parseInt(dateArr[0]), Integer.parseInt(dateArr[1]), Integer.parseInt(dateArr[2]), 0, 0, 0, 0);
+	}
+
 	@WebMethod
 	@Path("/createCalendarEvent")
 	@Produces("text/plain")
@@ -1590,21 +1852,64 @@ public class WSLongsight extends AbstractWebService {
 
 		Session s = establishSession(sessionid); 
 
-		List<Map<String, String>> returnList = dbRead("SELECT realm_id FROM SAKAI_REALM WHERE PROVIDER_ID LIKE ?",
-			new String[]{ "%" + providerid + "%" }, new String[]{"realm_id"});
+		JSONArray array = new JSONArray(findSitesWithProvider(providerid));
+		return array.toString();
+    }
 
-		Set<String> sites = new HashSet<String>();
-		for(Map<String, String> map : returnList){
-			String realmId = map.get("realm_id");
+	/**
+	 * Look up the sites for many provider ids at once
+	 *
+	 * @param providerids provider ids separated by commas, each may be several joined with +
+	 * @return a JSON object of each provider id to an array of the ids of its sites
+	 */
+	@WebMethod
+	@Path("/getSitesWithProviders")
+	@Produces("text/plain")
+	@GET
+	public String getSitesWithProviders(
+			@WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid,
+			@WebParam(name = "providerids", partName = "providerids") @QueryParam("providerids") String providerids) {
+
+		Session s = establishSession(sessionid);
 
-			if(!StringUtils.contains(realmId, "/group/")) {
-				sites.add(StringUtils.replace(realmId, "/site/", ""));
+		JSONObject json = new JSONObject();
+		for (String providerid : StringUtils.split(StringUtils.trimToEmpty(providerids), ',')) {
+			providerid = providerid.trim();
+			if (!providerid.isEmpty() && !json.has(providerid)) {
+				json.put(providerid, new JSONArray(findSitesWithProvider(providerid)));
 			}
 		}
+		return json.toString();
+	}
 
-		JSONArray array = new JSONArray(sites);
-		return array.toString();
-    }
+	/**
+	 * The sites a provider id is attached to, from the provider id index or the database while it is being built
+	 */
+	private Set<String> findSitesWithProvider(String providerid) {
+		Set<String> sites = providerIdIndex.getSites(providerid);
+		if (sites != null) {
+			return sites;
+		}
+
+		// LIKE only narrows the realms down, each is then matched on its ids as the index would match it
+		Set<String> found = new HashSet<String>();
+		String[] ids = ProviderIdIndex.split(providerid);
+		if (ids.length == 0) {
+			return found;
+		}
+		try {
+			sqlExecutor.query("SELECT realm_id, PROVIDER_ID FROM SAKAI_REALM WHERE PROVIDER_ID LIKE ?", rs -> {
+				String siteId = ProviderIdIndex.siteId(rs.getString(1));
+				if (siteId != null && ProviderIdIndex.provides(rs.getString(2), providerid)) {
+					found.add(siteId);
+				}
+				return true;
+			}, "%" + ids[0] + "%");
+		} catch (SQLException e) {
+			LOG.error("WS getSitesWithProvider(): " + e.getClass().getName() + " : " + e.getMessage());
+		}
+		return found;
+	}
 
 	@WebMethod
 	@Path("/copySiteWithProviderId")
@@ -1645,6 +1950,7 @@ public class WSLongsight extends AbstractWebService {
 			siteEdit.setType(type);
 			siteEdit.setProviderGroupId(providerid);
 			siteService.save(siteEdit);
+			providerIdIndex.refresh(siteEdit.getId());
 		}
 		catch (Exception e) {  
 			return e.getClass().getName() + " : " + e.getMessage();
@@ -1691,6 +1997,7 @@ public class WSLongsight extends AbstractWebService {
 			siteEdit.setType(type);
 			siteEdit.setProviderGroupId(providerid);
 			siteService.save(siteEdit);
+			providerIdIndex.refresh(siteEdit.getId());
 
 		}
 		catch (Exception e) {
@@ -1966,38 +2273,11 @@ public class WSLongsight extends AbstractWebService {
 
 		try 
 		{
-			List allSites = siteService.getSites(SelectionType.ACCESS, null, null,
-					null, SortType.TITLE_ASC, null);
-			List moreSites = siteService.getSites(SelectionType.UPDATE, null, null,
-					null, SortType.TITLE_ASC, null);
-
-			if ( (allSites == null || moreSites == null) ||
-					(allSites.size() == 0 && moreSites.size() == 0) )
+			List<SiteListService.SiteSummary> allSites = siteListService.getSitesForCurrentUser(null);
+			if (allSites.isEmpty())
 				return "<list/>";
 
-			// Remove duplicates and combine two lists
-			allSites.removeAll( moreSites );
-			allSites.addAll( moreSites );
-
-			Document dom = Xml.createDocument();
-			Node list = dom.createElement("list");
-			dom.appendChild(list);
-
-			for (Iterator i = allSites.iterator(); i.hasNext();)
-			{
-				Site site = (Site)i.next();
-				Node item = dom.createElement("item");
-				Node siteId = dom.createElement("siteId");
-				siteId.appendChild( dom.createTextNode(site.getId()) );
-				Node siteTitle = dom.createElement("siteTitle");
-				siteTitle.appendChild( dom.createTextNode(site.getTitle()) );
-
-				item.appendChild(siteId);
-				item.appendChild(siteTitle);
-				list.appendChild(item);
-			}
-
-			return Xml.writeDocumentToString(dom);
+			return XmlResponseWriter.writeToString(xml -> SiteListService.writeXml(xml, allSites, -1));
 		}
 		catch (Exception e) 
 		{
@@ -2027,35 +2307,12 @@ public class WSLongsight extends AbstractWebService {
 			Map propertyCriteria = new HashMap();
 			propertyCriteria.put("term_eid", termid);
 
-			List allSites = siteService.getSites(SelectionType.ACCESS, null, null, propertyCriteria, SortType.TITLE_ASC, null);
-			List moreSites = siteService.getSites(SelectionType.UPDATE, null, null, propertyCriteria, SortType.TITLE_ASC, null);
-
-			if ( (allSites == null || moreSites == null) || (allSites.size() == 0 && moreSites.size() == 0) ) {
+			List<SiteListService.SiteSummary> allSites = siteListService.getSitesForCurrentUser(propertyCriteria);
+			if (allSites.isEmpty()) {
 				return "<list/>";
 			}
 
-			// Remove duplicates and combine two lists
-			allSites.removeAll( moreSites );
-			allSites.addAll( moreSites );
-
-			Document dom = Xml.createDocument();
-			Node list = dom.createElement("list");
-			dom.appendChild(list);
-
-			for (Iterator i = allSites.iterator(); i.hasNext();) {
-				Site site = (Site)i.next();
-				Node item = dom.createElement("item");
-				Node siteId = dom.createElement("siteId");
-				siteId.appendChild( dom.createTextNode(site.getId()) );
-				Node siteTitle = dom.createElement("siteTitle");
-				siteTitle.appendChild( dom.createTextNode(site.getTitle()) );
-
-				item.appendChild(siteId);
-				item.appendChild(siteTitle);
-				list.appendChild(item);
-			}
-
-			return Xml.writeDocumentToString(dom);
+			return XmlResponseWriter.writeToString(xml -> SiteListService.writeXml(xml, allSites, -1));
 		}
 		catch (Exception e)
 		{
@@ -2104,47 +2361,64 @@ public class WSLongsight extends AbstractWebService {
 				LOG.warn("Could not find preferences for this user");
 			}
 
-			List allSites = siteService.getSites(SelectionType.ACCESS, null, null,
-					null, SortType.TITLE_ASC, null);
-			List moreSites = siteService.getSites(SelectionType.UPDATE, null, null,
-					null, SortType.TITLE_ASC, null);
-
-			if ( (allSites == null || moreSites == null) ||
-					(allSites.size() == 0 && moreSites.size() == 0) )
+			// The exclude list holds site ids, which never matched the Site objects this used to be removed from,
+			// so it is still not applied
+			List<SiteListService.SiteSummary> allSites = siteListService.getSitesForCurrentUser(null);
+			if (allSites.isEmpty())
 				return "<list/>";
 
-			// Remove duplicates and combine two lists
-			allSites.removeAll( moreSites );
-
-			// remove all in exclude from mySites
-			allSites.removeAll(prefExclude);
-
-			allSites.addAll( moreSites );
+			return XmlResponseWriter.writeToString(xml -> SiteListService.writeXml(xml, allSites, -1));
+		}
+		catch (Exception e) 
+		{
+			e.printStackTrace();
+			return "<exception/>";
+		}
+	}
 
-			Document dom = Xml.createDocument();
-			Node list = dom.createElement("list");
-			dom.appendChild(list);
+	/**
+	 * A page of the sites the user of the session can access or update, in the same order as getSitesUserCanAccess
+	 *
+	 * @param sessionid the id of a valid session
+	 * @param termid    only include sites for this term_eid, or blank for all sites
+	 * @param offset    how many sites to skip
+	 * @param limit     the most sites to return, or 0 for all of them
+	 * @param format    json for JSON, otherwise the getSitesUserCanAccess XML with the total as an attribute of the list
+	 * @return the sites
+	 */
+	@WebMethod
+	@Path("/getSitesUserCanAccessPage")
+	@Produces("text/plain")
+	@GET
+	public String getSitesUserCanAccessPage(
+			@WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid,
+			@WebParam(name = "termid", partName = "termid") @QueryParam("termid") String termid,
+			@WebParam(name = "offset", partName = "offset") @QueryParam("offset") int offset,
+			@WebParam(name = "limit", partName = "limit") @QueryParam("limit") int limit,
+			@WebParam(name = "format", partName = "format") @QueryParam("format") String format)
+	{
+		Session s = establishSession(sessionid);
 
-			for (Iterator i = allSites.iterator(); i.hasNext();)
-			{
-				Site site = (Site)i.next();
-				Node item = dom.createElement("item");
-				Node siteId = dom.createElement("siteId");
-				siteId.appendChild( dom.createTextNode(site.getId()) );
-				Node siteTitle = dom.createElement("siteTitle");
-				siteTitle.appendChild( dom.createTextNode(site.getTitle()) );
-
-				item.appendChild(siteId);
-				item.appendChild(siteTitle);
-				list.appendChild(item);
+		try {
+			Map<String, String> propertyCriteria = null;
+			if (StringUtils.isNotBlank(termid)) {
+				propertyCriteria = new HashMap<>();
+				propertyCriteria.put("term_eid", termid);
 			}
 
+			List<SiteListService.SiteSummary> allSites = siteListService.getSitesForCurrentUser(propertyCriteria);
+			int from = Math.min(Math.max(offset, 0), allSites.size());
+			int to = (limit > 0) ? Math.min(from + limit, allSites.size()) : allSites.size();
+			List<SiteListService.SiteSummary> page = allSites.subList(from, to);
 
-			return Xml.writeDocumentToString(dom);
+			if ("json".equalsIgnoreCase(format)) {
+				return SiteListService.toJson(page, allSites.size());
+			}
+			return XmlResponseWriter.writeToString(xml -> SiteListService.writeXml(xml, page, allSites.size()));
 		}
-		catch (Exception e) 
+		catch (Exception e)
 		{
-			e.printStackTrace();
+			LOG.error("WS getSitesUserCanAccessPage(): " + e.getClass().getName() + " : " + e.getMessage());
 			return "<exception/>";
 		}
 	}
@@ -2504,23 +2778,11 @@ public class WSLongsight extends AbstractWebService {
 
 	}
 
+	/**
+	 * @return the user id to display id of the students in a site, shared by the grade operations and not to be changed
+	 */
 	private Map<String, String> getGradeableStudentMap(final String siteId) {
-		Map<String, String> m = new HashMap<>();
-
-		try {
-			final Set<String> userUuids = siteService.getSite(siteId).getUsersIsAllowed("section.role.student");
-			final List<User> users = userDirectoryService.getUsers(userUuids);
-			
-			for (User u : users) {
-				if (userUuids.contains(u.getId())) {
-					m.put(u.getId(), u.getDisplayId());
-				}
-			}
-		} catch (IdUnusedException e) {
-			e.printStackTrace();
-		}
-
-		return m;
+		return gradeableStudentCache.getStudents(siteId);
 	}
 
 	@WebMethod
@@ -2582,86 +2844,343 @@ public class WSLongsight extends AbstractWebService {
 	}
 
 	@WebMethod
-	@Path("/getManyCourseGrades")
-	@Produces("text/plain")
-	@GET
 	public String getManyCourseGrades(
 			@WebParam(name = "sessionId", partName = "sessionId") @QueryParam("sessionId") String sessionId,
 			@WebParam(name = "siteIds", partName = "siteIds") @QueryParam("siteIds") String siteIds) 
+	{
+		XmlResponseWriter.Body body = getManyCourseGradesBody(sessionId, siteIds);
+		try {
+			return XmlResponseWriter.writeToString(body);
+		} catch (Exception e) {
+			return e.getClass().getName() + " : " + e.getMessage();
+		}
+	}
+
+	/**
+	 * REST form of getManyCourseGrades, each course is streamed to the client as its grades are calculated.
+	 */
+	@WebMethod(exclude = true)
+	@Path("/getManyCourseGrades")
+	@Produces("text/plain")
+	@GET
+	public StreamingOutput getManyCourseGradesStream(@QueryParam("sessionId") String sessionId, @QueryParam("siteIds") String siteIds)
+	{
+		return XmlResponseWriter.stream(getManyCourseGradesBody(sessionId, siteIds));
+	}
+
+	private XmlResponseWriter.Body getManyCourseGradesBody(String sessionId, String siteIds)
 	{
 		Session session = establishSession(sessionId);
 
 		if (!securityService.isSuperUser()) {
 			LOG.warn("WS getManyCourseGrades(): Permission denied. Restricted to super users.");
-			return "FAILURE: getManyCourseGrades(): Permission denied. Restricted to super users.";
+			return XmlResponseWriter.literal("FAILURE: getManyCourseGrades(): Permission denied. Restricted to super users.");
 		}
 
-		String[] siteArray = siteIds.split(",");
-
-		String gradeResult = "";
-
-		try {
+		List<String> sites = splitSiteIds(siteIds);
 
-			Document dom = Xml.createDocument();
-			Node courses = dom.createElement("courses");
-			dom.appendChild(courses);
+		return xml -> {
+			xml.start("courses");
+			forEachCourseGrades(session, sites, course -> {
+				xml.start("course");
+				xml.element("course_id", course.siteId);
+				if (course.error != null) {
+					xml.element("error", course.error);
+				} else {
+					for (String[] student : course.students) {
+						xml.start("student")
+							.element("student_id", student[GRADE_EID])
+							.element("course_grade", student[GRADE_DISPLAY])
+							.end();
+					}
+				}
+				xml.end();
+				xml.flush();
+			});
+			xml.end();
+		};
+	}
 
-			for (int i=0; i<siteArray.length; i++) {
+	private List<String> splitSiteIds(String siteIds)
+	{
+		List<String> sites = new ArrayList<>();
+		for (String siteId : StringUtils.defaultString(siteIds).split(",")) {
+			if (!"".equals(siteId)) {
+				sites.add(siteId);
+			}
+		}
+		return sites;
+	}
 
-				String siteId = siteArray[i];
+	/**
+	 * Receives the grades of each course in an export
+	 */
+	private interface CourseGradesWriter {
+		void write(CourseGrades course) throws IOException;
+	}
 
-				if (!"".equals(siteId)) {
+	/**
+	 * Work out the course grades for many sites on the grade export threads, passing each site to the writer in the
+	 * order asked for as soon as it and the sites before it are done, so the response can be sent while the rest are
+	 * worked out.
+	 */
+	private void forEachCourseGrades(Session session, List<String> sites, CourseGradesWriter writer) throws IOException
+	{
+		// Keep a few courses in hand for each thread, rather than queueing every site up front
+		int window = gradeExportThreads * 2;
+		AtomicBoolean abandoned = new AtomicBoolean(false);
+		Deque<Future<CourseGrades>> running = new ArrayDeque<>(window);
+		int next = 0;
 
-					Gradebook gb = new Gradebook();
-					try {
-						gb = gradingService.getGradebook(siteId);
-					} catch (Exception e) {
-						//Node error = dom.createElement("error");
-						//error.appendChild(dom.createTextNode("Gradebook not enabled for course "+siteId+"."));
-						//dom.appendChild(error);
-						continue;
-					}
+		try {
+			while (next < sites.size() && running.size() < window) {
+				running.add(submitCourseGrades(session, sites.get(next++), abandoned));
+			}
 
-					Map<String, String> students = getGradeableStudentMap(siteId);
-					List<String> userUuids = new ArrayList<>(students.keySet());
+			while (!running.isEmpty()) {
+				CourseGrades course;
+				try {
+					course = running.poll().get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted exporting course grades", e);
+				} catch (ExecutionException e) {
+					// loadCourseGrades catches everything, so this is unexpected
+					throw new IOException(e.getCause());
+				}
+				if (next < sites.size()) {
+					running.add(submitCourseGrades(session, sites.get(next++), abandoned));
+				}
+				writer.write(course);
+			}
+		} finally {
+			// Stop any sites still queued if the client has gone away
+			abandoned.set(true);
+		}
+	}
 
-					// get the calculated grades
-					Map<String, CourseGradeTransferBean> courseGrades = gradingService.getCourseGradeForStudents(gb.getUid(), userUuids);
+	private Future<CourseGrades> submitCourseGrades(Session session, String siteId, AtomicBoolean abandoned)
+	{
+		return gradeExportExecutor.submit(() -> abandoned.get() ? new CourseGrades(siteId, null, "cancelled") : loadCourseGrades(session, siteId));
+	}
 
-					Node course = dom.createElement("course");
-					courses.appendChild(course);
+	/**
+	 * Work out the course grades for one site on an export thread, as the user of the given session
+	 */
+	private CourseGrades loadCourseGrades(Session session, String siteId)
+	{
+		// Start clean, so nothing an earlier task left on this thread leaks into this site
+		threadLocalManager.clear();
+		sessionManager.setCurrentSession(session);
+		try {
+			Gradebook gb = gradingService.getGradebook(siteId);
+			Map<String, String> students = getGradeableStudentMap(siteId);
+			List<String> userUuids = new ArrayList<>(students.keySet());
 
-					Node course_id = dom.createElement("course_id");
-					course.appendChild(course_id);
-					course_id.appendChild(dom.createTextNode(siteId));
+			// get the calculated grades
+			Map<String, CourseGradeTransferBean> courseGrades = gradingService.getCourseGradeForStudents(gb.getUid(), userUuids);
 
-					for (Entry<String, CourseGradeTransferBean> entry : courseGrades.entrySet()) {
-						final String studentEid = students.get(entry.getKey());
-						final CourseGradeTransferBean cg = entry.getValue();
+			List<String[]> rows = new ArrayList<>(courseGrades.size());
+			for (Entry<String, CourseGradeTransferBean> entry : courseGrades.entrySet()) {
+				final CourseGradeTransferBean cg = entry.getValue();
+				// A student without a course grade has nothing to export
+				if (cg != null) {
+					rows.add(new String[]{students.get(entry.getKey()), cg.getDisplayGrade(), cg.getCalculatedGrade(), cg.getEnteredGrade()});
+				}
+			}
+			return new CourseGrades(siteId, rows, null);
+		} catch (Exception e) {
+			LOG.warn("WS getManyCourseGrades(): " + siteId + " " + e.getClass().getName() + " : " + e.getMessage());
+			return new CourseGrades(siteId, null, e.getClass().getName() + " : " + e.getMessage());
+		} finally {
+			threadLocalManager.clear();
+		}
+	}
 
-						Node student = dom.createElement("student");
-						course.appendChild(student);
+	// The columns of a student's row in CourseGrades
+	private static final int GRADE_EID = 0;
+	private static final int GRADE_DISPLAY = 1;
+	private static final int GRADE_CALCULATED = 2;
+	private static final int GRADE_ENTERED = 3;
 
-						Node student_id = dom.createElement("student_id");
-						student.appendChild(student_id);
-						student_id.appendChild(dom.createTextNode(studentEid));
+	/**
+	 * The course grades for one site, or why they couldn't be found
+	 */
+	private static class CourseGrades {
+		private final String siteId;
+		private final List<String[]> students;
+		private final String error;
 
-						Node course_grade = dom.createElement("course_grade");
-						student.appendChild(course_grade);
+		CourseGrades(String siteId, List<String[]> students, String error) {
+			this.siteId = siteId;
+			this.students = students;
+			this.error = error;
+		}
+	}
 
-						course_grade.appendChild(dom.createTextNode(cg.getDisplayGrade()));
-					}
+	/**
+	 * Export the course grades of many sites in one call, eg every section in a term. Each student's row is written
+	 * once, with the instructor's override alongside the calculated grade when exporting numerical grades.
+	 *
+	 * @param sessionId the id of a valid session for a super user
+	 * @param siteIds   the site ids separated by commas
+	 * @param grades    letter for the grade shown to the student, as getManyCourseGrades, or numerical for the
+	 *                  calculated grade and any override, as getNumericalCourseGrades
+	 * @param format    xml, csv for rows of siteId,eid,grade[,override] or ndjson for a JSON object a line. A site
+	 *                  whose grades could not be read gets an error element, a siteId,ERROR,message row or an
+	 *                  error property.
+	 */
+	@WebMethod
+	public String exportCourseGrades(
+			@WebParam(name = "sessionId", partName = "sessionId") @QueryParam("sessionId") String sessionId,
+			@WebParam(name = "siteIds", partName = "siteIds") @QueryParam("siteIds") String siteIds,
+			@WebParam(name = "grades", partName = "grades") @QueryParam("grades") String grades,
+			@WebParam(name = "format", partName = "format") @QueryParam("format") String format)
+	{
+		Session session = establishSession(sessionId);
 
-				}
+		if (!securityService.isSuperUser()) {
+			LOG.warn("WS exportCourseGrades(): Permission denied. Restricted to super users.");
+			return "FAILURE: exportCourseGrades(): Permission denied. Restricted to super users.";
+		}
 
+		boolean numerical = "numerical".equalsIgnoreCase(grades);
+		List<String> sites = splitSiteIds(siteIds);
+		try {
+			if (isTextExport(format)) {
+				StringWriter out = new StringWriter();
+				writeCourseGradesExport(session, sites, numerical, format, out);
+				return out.toString();
 			}
-			gradeResult = Xml.writeDocumentToString(dom);
-
+			return XmlResponseWriter.writeToString(courseGradesExportXml(session, sites, numerical));
 		} catch (Exception e) {
 			return e.getClass().getName() + " : " + e.getMessage();
 		}
+	}
 
-		return gradeResult;
+	/**
+	 * REST form of exportCourseGrades, each course is streamed to the client as its grades are calculated.
+	 */
+	@WebMethod(exclude = true)
+	@Path("/exportCourseGrades")
+	@Produces("text/plain")
+	@GET
+	public StreamingOutput exportCourseGradesStream(@QueryParam("sessionId") String sessionId, @QueryParam("siteIds") String siteIds,
+			@QueryParam("grades") String grades, @QueryParam("format") String format)
+	{
+		Session session = establishSession(sessionId);
+
+		if (!securityService.isSuperUser()) {
+			LOG.warn("WS exportCourseGrades(): Permission denied. Restricted to super users.");
+			return output -> output.write("FAILURE: exportCourseGrades(): Permission denied. Restricted to super users.".getBytes(StandardCharsets.UTF_8));
+		}
+
+		boolean numerical = "numerical".equalsIgnoreCase(grades);
+		List<String> sites = splitSiteIds(siteIds);
+		if (!isTextExport(format)) {
+			return XmlResponseWriter.stream(courseGradesExportXml(session, sites, numerical));
+		}
+		return output -> {
+			Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+			writeCourseGradesExport(session, sites, numerical, format, out);
+			out.flush();
+		};
+	}
+
+	private boolean isTextExport(String format)
+	{
+		return "csv".equalsIgnoreCase(format) || "ndjson".equalsIgnoreCase(format);
+	}
+
+	private XmlResponseWriter.Body courseGradesExportXml(Session session, List<String> sites, boolean numerical)
+	{
+		return xml -> {
+			xml.start("courses");
+			forEachCourseGrades(session, sites, course -> {
+				xml.start("course");
+				xml.element("course_id", course.siteId);
+				if (course.error != null) {
+					xml.element("error", course.error);
+				} else {
+					for (String[] student : course.students) {
+						if (!numerical) {
+							xml.start("student")
+								.element("student_id", student[GRADE_EID])
+								.element("course_grade", student[GRADE_DISPLAY])
+								.end();
+							continue;
+						}
+						if (StringUtils.isBlank(student[GRADE_EID])) {
+							continue;
+						}
+						if (StringUtils.isNotBlank(student[GRADE_ENTERED])) {
+							xml.start("override")
+								.element("student_id", student[GRADE_EID])
+								.element("course_grade", student[GRADE_ENTERED])
+								.end();
+						}
+						xml.start("student")
+							.element("student_id", student[GRADE_EID])
+							.element("course_grade", StringUtils.defaultString(student[GRADE_CALCULATED]))
+							.end();
+					}
+				}
+				xml.end();
+				xml.flush();
+			});
+			xml.end();
+		};
+	}
+
+	private void writeCourseGradesExport(Session session, List<String> sites, boolean numerical, String format, Writer out) throws IOException
+	{
+		boolean csv = "csv".equalsIgnoreCase(format);
+		forEachCourseGrades(session, sites, course -> {
+			if (course.error != null) {
+				if (csv) {
+					out.write(csvValue(course.siteId) + ",ERROR," + csvValue(course.error) + "\r\n");
+				} else {
+					out.write(new JSONObject().put("course_id", course.siteId).put("error", course.error).toString());
+					out.write('\n');
+				}
+				out.flush();
+				return;
+			}
+			for (String[] student : course.students) {
+				String grade = student[GRADE_DISPLAY];
+				String override = null;
+				if (numerical) {
+					if (StringUtils.isBlank(student[GRADE_EID])) {
+						continue;
+					}
+					grade = StringUtils.defaultString(student[GRADE_CALCULATED]);
+					override = StringUtils.trimToNull(student[GRADE_ENTERED]);
+				}
+				if (csv) {
+					out.write(csvValue(course.siteId));
+					out.write(',');
+					out.write(csvValue(student[GRADE_EID]));
+					out.write(',');
+					out.write(csvValue(grade));
+					if (numerical) {
+						out.write(',');
+						out.write(csvValue(override));
+					}
+					out.write("\r\n");
+				} else {
+					JSONObject row = new JSONObject();
+					row.put("course_id", course.siteId);
+					row.put("student_id", student[GRADE_EID]);
+					row.put("course_grade", grade);
+					if (override != null) {
+						row.put("override", override);
+					}
+					out.write(row.toString());
+					out.write('\n');
+				}
+			}
+			out.flush();
+		});
 	}
 
 	@WebMethod
@@ -2852,17 +3371,10 @@ public class WSLongsight extends AbstractWebService {
 			//if dealing with web service sessions, re-use is ok
 			if(wsonly) {
 				//do we already have a web service session for the given user? If so, reuse it.
-				List<Session> existingSessions = sessionManager.getSessions();
-				for(Session existingSession: existingSessions){
-					if(StringUtils.equals(existingSession.getUserEid(), eid)) {
-
-						//check if the origin attribute, if set, is set for web services
-						String origin = (String)existingSession.getAttribute(SESSION_ATTR_NAME_ORIGIN);
-						if(StringUtils.equals(origin, SESSION_ATTR_VALUE_ORIGIN_WS)) {
-							LOG.warn("WS getSessionForUser() reusing existing session for: " + eid + ", session=" + existingSession.getId());
-							return existingSession.getId() + "." + serverId;
-						}
-					}
+				Session existingSession = webServiceSessionIndex.find(eid);
+				if (existingSession != null) {
+					LOG.warn("WS getSessionForUser() reusing existing session for: " + eid + ", session=" + existingSession.getId());
+					return existingSession.getId() + "." + serverId;
 				}
 			}
 
@@ -2880,7 +3392,8 @@ public class WSLongsight extends AbstractWebService {
 
 			//if wsonly, inject the origin attribute
 			if(wsonly) {
-				newsession.setAttribute(SESSION_ATTR_NAME_ORIGIN, SESSION_ATTR_VALUE_ORIGIN_WS);
+				newsession.setAttribute(WebServiceSessionIndex.SESSION_ATTR_NAME_ORIGIN, WebServiceSessionIndex.SESSION_ATTR_VALUE_ORIGIN_WS);
+				webServiceSessionIndex.add(newsession);
 				LOG.warn("WS getSessionForUser() set origin attribute on session: " + newsession.getId());
 			}
 
@@ -2973,6 +3486,15 @@ public class WSLongsight extends AbstractWebService {
 		}
 	}
 
+	/**
+	 * Delete every My Workspace site, waiting until they are all gone. This runs the same background job as
+	 * deleteAllMyWorkspaceSitesAsync, so the users are read a page at a time and the sites removed by the job workers
+	 * at no more than <code>webservices.jobs.max-per-second</code>. If the job is still running after
+	 * <code>webservices.jobs.sync-wait</code> seconds, 300 by default, it carries on in the background.
+	 *
+	 * @return "success" once every workspace is deleted, "FAILURE: ..." if the job failed or some couldn't be deleted,
+	 *         or "RUNNING: &lt;jobId&gt;" if the job is still running, to follow with SakaiScript.getAdminJobStatus
+	 */
 	@WebMethod
 	@Path("/deleteAllMyWorkspaceSites")
 	@Produces("text/plain")
@@ -2982,48 +3504,82 @@ public class WSLongsight extends AbstractWebService {
 
 		try {
 			if (securityService.isSuperUser()) {
-				//get special users
-				String config = serverConfigurationService.getString("webservice.specialUsers", "admin,postmaster");
-				String[] items = StringUtils.split(config, ',');
-				List<String> specialUsers = Arrays.asList(items);
-
-				//now get all users
-				List<String> allUsers = new ArrayList<String>();
-				List<Map<String, String>> returnList = dbRead("SELECT user_id FROM SAKAI_USER_ID_MAP", new String[]{}, new String[]{"user_id"});
-				for(Map<String, String> map : returnList){
-					allUsers.add(map.get("user_id"));
+				AdminJob job = adminJobService.start(JOB_DELETE_WORKSPACES, session.getUserId(), session.getUserEid(), new HashMap<String, String>());
+				if (!job.awaitFinished(TimeUnit.SECONDS.toMillis(serverConfigurationService.getInt("webservices.jobs.sync-wait", 300)))) {
+					return "RUNNING: " + job.getId();
 				}
-
-				//remove special users
-				allUsers.removeAll(specialUsers);
-
-				//now add a page to each site, and the tool to that page
-				for (Iterator j = allUsers.iterator(); j.hasNext();) { 
-					String userid = StringUtils.trim((String)j.next());
-
-					LOG.info("deleteAllMyWorkspaceSites: processing user:" + userid);
-
-					String myWorkspaceId = siteService.getUserSiteId(userid);
-
-					Site siteEdit = null;
-
-					try {
-						siteEdit = siteService.getSite(myWorkspaceId);
-						siteService.removeSite(siteEdit);
-					} catch (IdUnusedException e) {
-						LOG.info("No workspace for user: " + myWorkspaceId + ", skipping...");
-						continue;
-					}
+				if (job.getStatus() != AdminJob.Status.COMPLETED) {
+					return "FAILURE: job " + job.getId() + " " + job.getStatus() + (job.getError() != null ? " : " + job.getError() : "");
+				}
+				if (job.getFailed() > 0) {
+					return "FAILURE: " + job.getFailed() + " workspaces could not be deleted, see getAdminJobStatus for job " + job.getId();
 				}
 				return "success";
 			}else{
 				return "FAILURE: to deleteAllMyWorkspaceSites is restricted to super admins";
 			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			return "FAILURE: " + e.toString();
+		}catch(Exception e){
+			return "FAILURE: " + e.toString();
+		}
+	}
+
+	/**
+	 * Delete every My Workspace site as a background job. The job id is returned straight away, 
+	 * SakaiScript.getAdminJobStatus reports its progress.
+	 *
+	 * @param dryRun       only count the workspaces that would be deleted, as the job's processed items
+	 * @param maxPerSecond the most sites to delete a second, or 0 for <code>webservices.jobs.max-per-second</code>
+	 */
+	@WebMethod
+	@Path("/deleteAllMyWorkspaceSitesAsync")
+	@Produces("text/plain")
+	@GET
+	public String deleteAllMyWorkspaceSitesAsync(
+			@WebParam(name = "sessionId", partName = "sessionId") @QueryParam("sessionId") String sessionId,
+			@WebParam(name = "dryRun", partName = "dryRun") @QueryParam("dryRun") boolean dryRun,
+			@WebParam(name = "maxPerSecond", partName = "maxPerSecond") @QueryParam("maxPerSecond") double maxPerSecond) {
+		Session session = establishSession(sessionId);
+		if (!securityService.isSuperUser()) {
+			return "FAILURE: to deleteAllMyWorkspaceSitesAsync is restricted to super admins";
+		}
+		try {
+			Map<String, String> params = new HashMap<String, String>();
+			params.put(AdminJob.PARAM_DRY_RUN, Boolean.toString(dryRun));
+			if (maxPerSecond > 0) {
+				params.put(AdminJob.PARAM_MAX_PER_SECOND, Double.toString(maxPerSecond));
+			}
+			return adminJobService.start(JOB_DELETE_WORKSPACES, session.getUserId(), session.getUserEid(), params).getId();
 		}catch(Exception e){
 			return "FAILURE: " + e.toString();
 		}
 	}
 
+	private Set<String> getSpecialUsers() {
+		String config = serverConfigurationService.getString("webservice.specialUsers", "admin,postmaster");
+		return new HashSet<String>(Arrays.asList(StringUtils.split(config, ',')));
+	}
+
+	/**
+	 * @return false if the user had no workspace
+	 */
+	private boolean removeMyWorkspace(String userid) throws Exception {
+		LOG.info("deleteAllMyWorkspaceSites: processing user:" + userid);
+
+		String myWorkspaceId = siteService.getUserSiteId(userid);
+
+		try {
+			Site siteEdit = siteService.getSite(myWorkspaceId);
+			siteService.removeSite(siteEdit);
+			return true;
+		} catch (IdUnusedException e) {
+			LOG.info("No workspace for user: " + myWorkspaceId + ", skipping...");
+			return false;
+		}
+	}
+
 	@WebMethod
 	@Path("/findDeletedTest")
 	@Produces("text/plain")
@@ -3047,14 +3603,24 @@ public class WSLongsight extends AbstractWebService {
 						"where PUBLISHEDASSESSMENTID = ? " +
 						"and SUBMITTEDDATE is not null group by AGENTID) counttable";
 
-				List<Map<String, String>> returnList = dbRead(DELETED_TEST_SQL, new String[]{siteId, siteId, siteId}, new String[]{"ID", "TITLE", "DESCRIPTION", "CREATEDBY", "CREATEDDATE", "LASTMODIFIEDBY", "LASTMODIFIEDDATE"});
+				String[] cols = new String[]{"ID", "TITLE", "DESCRIPTION", "CREATEDBY", "CREATEDDATE", "LASTMODIFIEDBY", "LASTMODIFIEDDATE"};
+				List<Map<String, String>> returnList = sqlExecutor.withConnection(statements -> {
+					List<Map<String, String>> tests = statements.queryForList(DELETED_TEST_SQL, rs -> {
+						Map<String, String> map = new LinkedHashMap<>();
+						for (String col : cols) {
+							map.put(col, rs.getString(col));
+						}
+						return map;
+					}, siteId, siteId, siteId);
 
-				for(Map<String, String> map : returnList){
-					List<Map<String, String>> returnList2 = dbRead(SUBMISSIONS_SQL, new String[]{map.get("ID")}, new String[]{"SUB_COUNT"});
-				if(returnList2 != null && returnList2.size() == 1) {
-						map.put("SUBMISSIONS", returnList2.get(0).get("SUB_COUNT"));
+					for (Map<String, String> map : tests) {
+						String count = statements.queryForObject(SUBMISSIONS_SQL, rs -> rs.getString("SUB_COUNT"), map.get("ID"));
+						if (count != null) {
+							map.put("SUBMISSIONS", count);
+						}
 					}
-				}
+					return tests;
+				});
 
 			Document dom = Xml.createDocument();
 			Node xml = dom.createElement("sites");
@@ -3088,7 +3654,7 @@ public class WSLongsight extends AbstractWebService {
 			Session session = establishSession(sessionId);
 			if (securityService.isSuperUser()) {
 				String SQL = "Update SAM_PUBLISHEDASSESSMENT_T Set STATUS = 1 where ID = ? limit 1";
-				dbUpdate(SQL, new String[]{publishedAssessmentId});
+				sqlExecutor.update(SQL, publishedAssessmentId);
 			}else{
 				LOG.warn("Access to recoverDeletedTest is restricted to super admins");
 			}
@@ -3109,53 +3675,9 @@ public class WSLongsight extends AbstractWebService {
 		try{
 			Session session = establishSession(sessionId);
 			if (securityService.isSuperUser()) {
-				// make sure it is lower case when going into db
-				newEid = newEid.toLowerCase();
-
-				String COUNT_SQL = "select count(*) c from SAKAI_USER_ID_MAP where EID = ?";
-				List<Map<String, String>> existingEidList = dbRead(COUNT_SQL, new String[]{newEid}, new String[]{"c"});
-				boolean existingNewEid = existingEidList != null && existingEidList.size() > 0 && !"0".equals(existingEidList.get(0).get("c"));
-				if(existingNewEid && !force) {
-					return "A user with eid : " + newEid + " already exists.";
-				} else {
-					if(existingNewEid && force){
-						// drop the old new eid (probably user already signed in and created a blank user)
-						String DELETE_SQL = "Delete from SAKAI_USER_ID_MAP where EID = ?";
-						int success = dbUpdate(DELETE_SQL, new String[]{newEid});
-						if(success <= 0) {
-							return "Failed to delete existing new eid: " + newEid;
-						}
-					}
-					String UPDATE_SQL = "update SAKAI_USER_ID_MAP set EID = ? where EID = ?";
-					int success = dbUpdate(UPDATE_SQL, new String[]{newEid, currentEid});
-					if(success > 0) {
-						// Need to clear the id - eid cache
-						boolean clearedCache = clearCache(ID_EID_CACHE);
-						LOG.info("Cache cleared because of eid update: " + ID_EID_CACHE + ":" + clearedCache);
-
-						// EST-3 clear out jldap_immutable and CM tables if it exists
-						try {
-							int cme = dbUpdate("UPDATE CM_ENROLLMENT_T SET USER_ID=? WHERE USER_ID=?", new String[] { newEid, currentEid } );
-							LOG.info("UPDATE CM_ENROLLMENT_T where eid=" + currentEid + " to new eid=" + newEid + " : " + cme);
-
-							int cmoi = dbUpdate("UPDATE CM_OFFICIAL_INSTRUCTORS_T SET INSTRUCTOR_ID=? WHERE INSTRUCTOR_ID=?", new String[] { newEid, currentEid } );
-							LOG.info("UPDATE CM_OFFICIAL_INSTRUCTORS_T where eid=" + currentEid + " to new eid=" + newEid + " : " + cmoi);
-
-							int cmt = dbUpdate("UPDATE CM_MEMBERSHIP_T SET USER_ID=? WHERE USER_ID=?", new String[] { newEid, currentEid } );
-							LOG.info("UPDATE CM_MEMBERSHIP_T where eid=" + currentEid + " to new eid=" + newEid + " : " + cmt);
-
-							int jldap = dbUpdate("DELETE IGNORE FROM jldap_immutable WHERE eid=? OR eid=?", new String[]{currentEid,newEid});
-							LOG.info("Deleted from jldap_immutable where eid=" + currentEid + " or eid=" + newEid + " : " + jldap);
-						} catch (Exception eee) {
-							LOG.error("changeUserEidForce: No table jldap_immutable " + eee.getMessage());
-						}
-
-						return "Successfully updated eid: " + currentEid + " to eid: " + newEid + ";cacheCleared=" + clearedCache;
-					}
-					else {
-						return "Update failed for changing from eid: " + currentEid + " to eid: " + newEid;
-					}
-				}
+				EidChange change = new EidChange(currentEid, newEid);
+				changeEids(Collections.singletonList(change), force);
+				return change.result;
 			} 
 			else {
 				return "FAILURE: Access to changeUserEidForce is restricted to super admins";
@@ -3165,6 +3687,188 @@ public class WSLongsight extends AbstractWebService {
 		}
 	}
 
+	/**
+	 * Change the eids of many users at once, as changeUserEidForce does for one. All the changes are made in one
+	 * transaction, so if the database fails or any rename doesn't change exactly one row, none of them are made.
+	 *
+	 * @param sessionId the id of a valid session for a super user
+	 * @param eids      currentEid:newEid pairs separated by commas
+	 * @param force     replace a user who already has the new eid
+	 * @return XML with the outcome of each change, in the changeUserEidForce form
+	 */
+	@WebMethod
+	@Path("/changeUserEidsForce")
+	@Produces("text/plain")
+	@GET
+	public String changeUserEidsForce(
+			@WebParam(name = "sessionId", partName = "sessionId") @QueryParam("sessionId") String sessionId,
+			@WebParam(name = "eids", partName = "eids") @QueryParam("eids") String eids,
+			@WebParam(name = "force", partName = "force") @QueryParam("force") boolean force) {
+		try {
+			Session session = establishSession(sessionId);
+			if (!securityService.isSuperUser()) {
+				return "FAILURE: Access to changeUserEidsForce is restricted to super admins";
+			}
+
+			List<EidChange> changes = new ArrayList<>();
+			for (String pair : StringUtils.split(eids, ',')) {
+				int colon = pair.indexOf(':');
+				if (colon <= 0 || colon == pair.length() - 1) {
+					return "FAILURE: expected currentEid:newEid but got " + pair;
+				}
+				changes.add(new EidChange(pair.substring(0, colon).trim(), pair.substring(colon + 1).trim()));
+			}
+			changeEids(changes, force);
+
+			return XmlResponseWriter.writeToString(xml -> {
+				xml.start("results");
+				for (EidChange change : changes) {
+					xml.start("result")
+						.element("currentEid", change.currentEid)
+						.element("newEid", change.newEid)
+						.element("status", change.result)
+						.end();
+				}
+				xml.end();
+			});
+		} catch (Exception e) {
+			return "FAILURE: " + e.toString();
+		}
+	}
+
+	private static final String USER_ID_FOR_EID_SQL = "select USER_ID from SAKAI_USER_ID_MAP where EID = ?";
+
+	/**
+	 * One eid change, and how it went
+	 */
+	private static class EidChange {
+		private final String currentEid;
+		private final String newEid;
+		private String userId;
+		// The user who already had the new eid, replaced when forced
+		private String replacedUserId;
+		private String result;
+
+		EidChange(String currentEid, String newEid) {
+			this.currentEid = currentEid;
+			// make sure it is lower case when going into db
+			this.newEid = newEid.toLowerCase();
+		}
+	}
+
+	/**
+	 * Make eid changes on one connection in one transaction, each statement run as a batch over all the changes,
+	 * then drop just the changed users from the id-eid cache. Sets the result of every change.
+	 */
+	private void changeEids(List<EidChange> changes, boolean force) throws SQLException {
+		// A change that touches an eid another change uses would depend on the order they ran in
+		Map<String, Integer> uses = new HashMap<>();
+		for (EidChange change : changes) {
+			uses.merge(change.currentEid, 1, Integer::sum);
+			uses.merge(change.newEid, 1, Integer::sum);
+		}
+
+		List<EidChange> toApply = new ArrayList<>();
+		try {
+			sqlExecutor.inTransaction(statements -> {
+				for (EidChange change : changes) {
+					if (uses.get(change.currentEid) > 1 || uses.get(change.newEid) > 1) {
+						change.result = "FAILURE: eid " + change.currentEid + " or " + change.newEid + " is in more than one change";
+						continue;
+					}
+					change.userId = statements.queryForObject(USER_ID_FOR_EID_SQL, rs -> rs.getString(1), change.currentEid);
+					change.replacedUserId = statements.queryForObject(USER_ID_FOR_EID_SQL, rs -> rs.getString(1), change.newEid);
+					if (change.replacedUserId != null && change.replacedUserId.equals(change.userId)) {
+						// Only the case of the eid changes, which a case insensitive collation finds as the user themselves
+						change.replacedUserId = null;
+					}
+					if (change.userId == null) {
+						change.result = "Update failed for changing from eid: " + change.currentEid + " to eid: " + change.newEid;
+					} else if (change.replacedUserId != null && !force) {
+						change.result = "A user with eid : " + change.newEid + " already exists.";
+					} else {
+						toApply.add(change);
+					}
+				}
+
+				if (toApply.isEmpty()) {
+					return null;
+				}
+
+				// drop the old new eid (probably user already signed in and created a blank user)
+				List<EidChange> replacing = new ArrayList<>();
+				List<Object[]> replacingParams = new ArrayList<>();
+				for (EidChange change : toApply) {
+					if (change.replacedUserId != null) {
+						replacing.add(change);
+						replacingParams.add(new Object[]{change.newEid});
+					}
+				}
+				int[] deleted = statements.batch("Delete from SAKAI_USER_ID_MAP where EID = ?", replacingParams);
+				for (int i = 0; i < deleted.length; i++) {
+					if (deleted[i] == 0) {
+						replacing.get(i).result = "Failed to delete existing new eid: " + replacing.get(i).newEid;
+						toApply.remove(replacing.get(i));
+					}
+				}
+
+				List<Object[]> renames = new ArrayList<>();
+				List<Object[]> immutables = new ArrayList<>();
+				for (EidChange change : toApply) {
+					renames.add(new Object[]{change.newEid, change.currentEid});
+					immutables.add(new Object[]{change.currentEid, change.newEid});
+				}
+				int[] updated = statements.batch("update SAKAI_USER_ID_MAP set EID = ? where EID = ?", renames);
+				for (int i = 0; i < updated.length; i++) {
+					if (updated[i] != 1) {
+						// Throwing rolls back every change, so none is left half made
+						throw new SQLException("Expected to update one SAKAI_USER_ID_MAP row for eid " + toApply.get(i).currentEid
+								+ " but updated " + updated[i]);
+					}
+				}
+				LOG.info("changeEids: updated SAKAI_USER_ID_MAP for " + updated.length + " eids");
+
+				// EST-3 clear out jldap_immutable and CM tables if they exist, each is left out on its own if it fails
+				statements.optionally(s -> s.batch("UPDATE CM_ENROLLMENT_T SET USER_ID=? WHERE USER_ID=?", renames));
+				statements.optionally(s -> s.batch("UPDATE CM_OFFICIAL_INSTRUCTORS_T SET INSTRUCTOR_ID=? WHERE INSTRUCTOR_ID=?", renames));
+				statements.optionally(s -> s.batch("UPDATE CM_MEMBERSHIP_T SET USER_ID=? WHERE USER_ID=?", renames));
+				statements.optionally(s -> s.batch("DELETE IGNORE FROM jldap_immutable WHERE eid=? OR eid=?", immutables));
+				return null;
+			});
+		} catch (SQLException e) {
+			LOG.error("changeEids: rolled back eid changes", e);
+			throw e;
+		}
+
+		if (toApply.isEmpty()) {
+			return;
+		}
+
+		// Need to clear the id - eid cache, but only for these users
+		Cache cache = memoryService.getCache(ID_EID_CACHE);
+		for (EidChange change : toApply) {
+			cache.remove(ID_EID_CACHE_EID + change.currentEid);
+			cache.remove(ID_EID_CACHE_EID + change.newEid);
+			cache.remove(ID_EID_CACHE_ID + change.userId);
+			if (change.replacedUserId != null) {
+				cache.remove(ID_EID_CACHE_ID + change.replacedUserId);
+			}
+			change.result = "Successfully updated eid: " + change.currentEid + " to eid: " + change.newEid + ";cacheCleared=true";
+		}
+		LOG.info("Cache entries removed because of eid update: " + ID_EID_CACHE + " for " + toApply.size() + " users");
+
+		// The map was changed underneath the user directory, so say the users changed for anything that keeps their eids,
+		// such as the gradeable student rosters, on every node
+		for (EidChange change : toApply) {
+			eventTrackingService.post(eventTrackingService.newEvent(UserDirectoryService.SECURE_UPDATE_USER_ANY,
+					userDirectoryService.userReference(change.userId), true));
+			if (change.replacedUserId != null) {
+				eventTrackingService.post(eventTrackingService.newEvent(UserDirectoryService.SECURE_UPDATE_USER_ANY,
+						userDirectoryService.userReference(change.replacedUserId), true));
+			}
+		}
+	}
+
   protected Map<String, String> transferCopyEntities(String toolId, String fromContext, String toContext) {
         Map<String, String> transversalMap = new HashMap<>();
 
@@ -3588,99 +4292,99 @@ public class WSLongsight extends AbstractWebService {
 	}
 
 	@WebMethod
-	@Path("/getScoresForSite")
-	@Produces("text/plain")
-	@GET
 	public String getScoresForSite(
 			@WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid,
 			@WebParam(name = "siteid", partName = "siteid") @QueryParam("siteid") String siteid) {
-		Session session = establishSession(sessionid); 
-
-		// establish the xml document
-		Document dom = Xml.createDocument();
-		Node list = dom.createElement("list");
-		dom.appendChild(list);
-
-		PublishedAssessmentService publishedAssessmentService = new PublishedAssessmentService();
-
-		try {
-
-			Site site = siteService.getSite(siteid);
-			Set users = site.getUsersHasRole("Student");
-			if (users.size() == 0) users = site.getUsersHasRole("access");
-
-			for (Iterator u = users.iterator(); u.hasNext();) {
-				String userid = (String) u.next();
-
-				List scores = publishedAssessmentService.getBasicInfoOfLastOrHighestOrAverageSubmittedAssessmentsByScoringOption(userid, siteid, true);
-
-				for (int i = 0; i < scores.size(); i++) {
-					AssessmentGradingData agf = (AssessmentGradingData) scores.get(i);
-
-					Node item = dom.createElement("item");
-
-					Node assessmentId = dom.createElement("assessmentId");
-					assessmentId.appendChild( dom.createTextNode(agf.getPublishedAssessmentId().toString()));
-					item.appendChild(assessmentId);
-
-					Node title = dom.createElement("title");
-					title.appendChild( dom.createTextNode(agf.getPublishedAssessmentTitle()));
-					item.appendChild(title);
-
-					Node finalScore = dom.createElement("finalScore");
-					finalScore.appendChild( dom.createTextNode(agf.getFinalScore().toString()));
-					item.appendChild(finalScore);
+		return XmlResponseWriter.writeToString(getScoresForSiteBody(sessionid, siteid));
+	}
 
-					Node autoScore = dom.createElement("autoScore");
-					autoScore.appendChild( dom.createTextNode(agf.getTotalAutoScore().toString()));
-					item.appendChild(autoScore);
+	/**
+	 * REST form of getScoresForSite, each student's scores are streamed to the client as they are read.
+	 */
+	@WebMethod(exclude = true)
+	@Path("/getScoresForSite")
+	@Produces("text/plain")
+	@GET
+	public StreamingOutput getScoresForSiteStream(@QueryParam("sessionid") String sessionid, @QueryParam("siteid") String siteid) {
+		return XmlResponseWriter.stream(getScoresForSiteBody(sessionid, siteid));
+	}
 
-					Node overrideScore = dom.createElement("overrideScore");
-					overrideScore.appendChild( dom.createTextNode(agf.getTotalOverrideScore().toString()));
-					item.appendChild(overrideScore);
+	private XmlResponseWriter.Body getScoresForSiteBody(String sessionid, String siteid) {
+		Session session = establishSession(sessionid); 
 
-					Node attemptDate = dom.createElement("attemptDate");
-					attemptDate.appendChild( dom.createTextNode(agf.getAttemptDate().toString()));
-					item.appendChild(attemptDate);
+		return xml -> {
+			xml.start("list");
 
-					Node comments = dom.createElement("comments");
-					comments.appendChild( dom.createTextNode(agf.getComments()));
-					item.appendChild(comments);
+			PublishedAssessmentService publishedAssessmentService = new PublishedAssessmentService();
 
-					Node sakaiUserId = dom.createElement("userId");
-					sakaiUserId.appendChild( dom.createTextNode(agf.getAgentId()));
-					item.appendChild(sakaiUserId);
+			try {
+				long started = System.currentTimeMillis();
 
-					Node username = dom.createElement("username");
-					try {
-						User user = userDirectoryService.getUser(agf.getAgentId());
-						String eid = user.getEid();
-						username.appendChild( dom.createTextNode(eid) );
+				Site site = siteService.getSite(siteid);
+				Set<String> users = site.getUsersHasRole("Student");
+				if (users.size() == 0) users = site.getUsersHasRole("access");
 
-						Node firstName = dom.createElement("firstName");
-						firstName.appendChild( dom.createTextNode(user.getFirstName()));
-						item.appendChild(firstName);
+				// Every score is a student's own, so the students are looked up together rather than once a score
+				Map<String, User> students = new HashMap<>();
+				for (User user : userDirectoryService.getUsers(users)) {
+					students.put(user.getId(), user);
+				}
+				long looked = System.currentTimeMillis();
+
+				int items = 0;
+				for (String userid : users) {
+					// Samigo decides which submission counts from the assessment's scoring option
+					List scores = publishedAssessmentService.getBasicInfoOfLastOrHighestOrAverageSubmittedAssessmentsByScoringOption(userid, siteid, true);
+
+					for (int i = 0; i < scores.size(); i++) {
+						AssessmentGradingData agf = (AssessmentGradingData) scores.get(i);
+
+						// Read every value before writing so a failure part way leaves no partial item, as the DOM did
+						String assessmentId = agf.getPublishedAssessmentId().toString();
+						String title = agf.getPublishedAssessmentTitle();
+						String finalScore = agf.getFinalScore().toString();
+						String autoScore = agf.getTotalAutoScore().toString();
+						String overrideScore = agf.getTotalOverrideScore().toString();
+						String attemptDate = agf.getAttemptDate().toString();
+						String comments = agf.getComments();
+						User user = students.get(agf.getAgentId());
+
+						xml.start("item")
+							.element("assessmentId", assessmentId)
+							.element("title", title)
+							.element("finalScore", finalScore)
+							.element("autoScore", autoScore)
+							.element("overrideScore", overrideScore)
+							.element("attemptDate", attemptDate)
+							.element("comments", comments)
+							.element("userId", agf.getAgentId());
+
+						if (user != null) {
+							xml.element("firstName", user.getFirstName())
+								.element("lastName", user.getLastName())
+								.element("username", user.getEid());
+						}
+						else {
+							xml.element("username", "nouser");
+						}
 
-						Node lastName = dom.createElement("lastName");
-						lastName.appendChild( dom.createTextNode(user.getLastName()));
-						item.appendChild(lastName);
+						xml.end();
+						items++;
 					}
-					catch (Exception ee) {
-						username.appendChild( dom.createTextNode("nouser") );
-					}
-					item.appendChild(username);
-
-
-
-					list.appendChild(item);
 				}
+
+				LOG.debug("getScoresForSite() " + siteid + " items=" + items + " users=" + students.size()
+					+ " userLookupMs=" + (looked - started) + " scoresMs=" + (System.currentTimeMillis() - looked));
+			}
+			catch (IOException e) {
+				throw e;
+			}
+			catch (Exception e) {
+				LOG.error("getScoresForSite() failed for site " + siteid + ": " + e.getMessage(), e);
 			}
-		}
-		catch (Exception e) {
-			e.printStackTrace();
-		}
 
-		return Xml.writeDocumentToString(dom);
+			xml.end();
+		};
 	}
 
 	@WebMethod
@@ -3872,6 +4576,7 @@ public class WSLongsight extends AbstractWebService {
                     Site siteEdit = siteService.getSite(siteid);
                     siteEdit.setProviderGroupId(providerid);
                     siteService.save(siteEdit);
+                    providerIdIndex.refresh(siteid);
                 }
                 catch (Exception e) {
                     return "failure: " + e.getClass().getName() + " : " + e.getMessage();
@@ -3894,86 +4599,6 @@ public class WSLongsight extends AbstractWebService {
 		return true;
 	}
 
-	@WebMethod(exclude = true)
-	private int dbUpdate(String SQL, String[] params){
-		Connection connection = null;
-		PreparedStatement ps = null;
-		ResultSet rs = null;
-
-		try{
-			connection = sqlService.borrowConnection();
-			ps = connection.prepareStatement(SQL);
-			int i = 1;
-			for(String param : params){
-				ps.setString(i, param);
-				i++;
-			}
-			int returnVal = ps.executeUpdate();
-			connection.commit();
-			return returnVal;
-		}catch(Exception e){
-			LOG.error("Could not dbUpdate", e);
-		}finally{
-			if(ps != null){
-				try{
-					ps.close();
-				}catch(Exception e){}
-			}
-			if(rs != null){
-				try{
-					rs.close();
-				}catch(Exception e){}
-			}
-			sqlService.returnConnection(connection);
-		}
-
-		return 0;
-	}
-
-	@WebMethod(exclude = true)
-	private List<Map<String, String>> dbRead(String SQL, String[] params, String[] cols){
-		List<Map<String, String>> returnList = new ArrayList<Map<String, String>>();	
-		Connection connection = null;
-		PreparedStatement ps = null;
-		ResultSet rs = null;
-
-		try{
-			connection = sqlService.borrowConnection();
-			ps = connection.prepareStatement(SQL);
-			int i = 1;
-			for(String param : params){
-				ps.setString(i, param);
-				i++;
-			}
-			rs = ps.executeQuery();
-
-			if(rs != null){
-				while(rs.next()){
-					Map<String, String> resultMap = new HashMap<String, String>();
-					for(String col : cols){
-						resultMap.put(col, rs.getString(col));
-					}
-					returnList.add(resultMap);
-				}
-			}
-		}catch(Exception e){
-			e.printStackTrace();
-		}finally{
-			if(ps != null){
-				try{
-					ps.close();
-				}catch(Exception e){}
-			}
-			if(rs != null){
-				try{
-					rs.close();
-				}catch(Exception e){}
-			}
-			sqlService.returnConnection(connection);
-		}
-
-		return returnList;
-	}
 
 	@WebMethod
 	@Path("/getCourseGradesWhenAssignmentsComplete")
@@ -3984,83 +4609,178 @@ public class WSLongsight extends AbstractWebService {
 			@WebParam(name = "siteId", partName = "siteId") @QueryParam("siteId") String siteId) 
 	{
 		Session s = establishSession(sessionid);
-		String retval = "";
+		StringWriter retval = new StringWriter();
 
 		try {
 			if (gradingService == null) return "Cannot get Gradebook service!";
 
-			List<Assignment> itemList = gradingService.getAssignments(siteId);
-			if (itemList == null) return "No gradebook items for site";
+			if (!writeCourseGradesWhenAssignmentsComplete(siteId, null, retval)) return "No gradebook items for site";
+		} catch (Exception e) {
+			return e.getClass().getName() + " : " + e.getMessage();
+		}
 
-            Gradebook gb = (Gradebook) gradingService.getGradebook(siteId);
-            Map<String, String> students = getGradeableStudentMap(siteId);
-            List<String> userUuids = new ArrayList<>(students.keySet());
+		return retval.toString();
+	}
 
-			List<Long> gradableObjectIds = new ArrayList<Long>();
-			for (Assignment a: itemList) {
-				boolean isExtraCredit = a.getExtraCredit();
-				double points = a.getPoints();
-				boolean isCounted = a.getCounted();
+	/**
+	 * As getCourseGradesWhenAssignmentsComplete for many sites at once, eg every section in a term.
+	 *
+	 * @param sessionid the id of a valid session for a super user
+	 * @param siteIds   the site ids separated by commas
+	 * @return CSV rows of siteId,eid,grade, or siteId,ERROR,message for a site whose grades could not be read
+	 */
+	@WebMethod
+	public String getManyCourseGradesWhenAssignmentsComplete(
+			@WebParam(name = "sessionid", partName = "sessionid") @QueryParam("sessionid") String sessionid,
+			@WebParam(name = "siteIds", partName = "siteIds") @QueryParam("siteIds") String siteIds)
+	{
+		Session s = establishSession(sessionid);
 
-				if (!isExtraCredit && isCounted && points >= 1.0) {
-					gradableObjectIds.add(a.getId());
-				}
+		if (!securityService.isSuperUser()) {
+			LOG.warn("WS getManyCourseGradesWhenAssignmentsComplete(): Permission denied. Restricted to super users.");
+			return "FAILURE: getManyCourseGradesWhenAssignmentsComplete(): Permission denied. Restricted to super users.";
+		}
+
+		StringWriter retval = new StringWriter();
+		try {
+			writeManyCourseGradesWhenAssignmentsComplete(siteIds, retval);
+		} catch (IOException e) {
+			return e.getClass().getName() + " : " + e.getMessage();
+		}
+		return retval.toString();
+	}
+
+	/**
+	 * REST form of getManyCourseGradesWhenAssignmentsComplete, each site's rows are streamed to the client as they
+	 * are worked out.
+	 */
+	@WebMethod(exclude = true)
+	@Path("/getManyCourseGradesWhenAssignmentsComplete")
+	@Produces("text/plain")
+	@GET
+	public StreamingOutput getManyCourseGradesWhenAssignmentsCompleteStream(@QueryParam("sessionid") String sessionid, @QueryParam("siteIds") String siteIds)
+	{
+		Session s = establishSession(sessionid);
+
+		if (!securityService.isSuperUser()) {
+			LOG.warn("WS getManyCourseGradesWhenAssignmentsComplete(): Permission denied. Restricted to super users.");
+			return output -> output.write("FAILURE: getManyCourseGradesWhenAssignmentsComplete(): Permission denied. Restricted to super users.".getBytes(StandardCharsets.UTF_8));
+		}
+
+		return output -> {
+			Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+			writeManyCourseGradesWhenAssignmentsComplete(siteIds, out);
+			out.flush();
+		};
+	}
+
+	private void writeManyCourseGradesWhenAssignmentsComplete(String siteIds, Writer out) throws IOException
+	{
+		for (String siteId : siteIds.split(",")) {
+			if ("".equals(siteId)) {
+				continue;
 			}
-			
-			// This only fetches completed gradebook items
-			Map<Long, List<GradeDefinition>> gradesMap = gradingService.getGradesWithoutCommentsForStudentsForItems(siteId, gradableObjectIds, userUuids);
-
-			// Map to track completion below
-			Map<String, Set<Long>> studentCompletion = new HashMap<>();
-
-			// Now loop through all graded items
-			for (Map.Entry<Long, List<GradeDefinition>> gboGradeDef : gradesMap.entrySet()) {
-				long key = gboGradeDef.getKey();
-				List<GradeDefinition> gradeDefs = gboGradeDef.getValue();
-
-				for (GradeDefinition gradeDef : gradeDefs) {
-					String userId = gradeDef.getStudentUid();
-					String progress = gradeDef.getGrade();
-
-					if (StringUtils.isNotBlank(progress)) {
-						Set<Long> completedGrades = new HashSet<>();
-						if (studentCompletion.containsKey(userId)) completedGrades = studentCompletion.get(userId);
-						completedGrades.add(key);
-						studentCompletion.put(userId, completedGrades);
-					}
+			// Each site is worked out in full before any of it is written, so a failure leaves no partial rows
+			StringWriter rows = new StringWriter();
+			try {
+				if (!writeCourseGradesWhenAssignmentsComplete(siteId, siteId, rows)) {
+					rows.write(csvValue(siteId) + ",ERROR,No gradebook items for site\r\n");
 				}
+			} catch (Exception e) {
+				LOG.warn("WS getManyCourseGradesWhenAssignmentsComplete(): " + siteId + " " + e.getClass().getName() + " : " + e.getMessage());
+				rows.write(csvValue(siteId) + ",ERROR," + csvValue(e.getClass().getName() + " : " + e.getMessage()) + "\r\n");
 			}
+			out.write(rows.toString());
+			out.flush();
+		}
+	}
 
-			// Now remove students who didn't complete all gradable items
-			Set<String> incompleteUsers = new HashSet<>();
-			for (Map.Entry<String, Set<Long>> u : studentCompletion.entrySet()) {
-				String userId = u.getKey();
-				Set<Long> finishedItems = u.getValue();
-
-				boolean finishedAllItems = true;
-				for (Long item : gradableObjectIds) {
-					if (!finishedItems.contains(item)) {
-						finishedAllItems = false;
-						LOG.info("getCourseGradesWhenAssignmentsComplete not returning " + userId + " because " + item + " is not complete");
-						break;
-					}
+	/**
+	 * Write eid,grade rows for the students in a site who have a grade for every counted gradebook item worth at
+	 * least a point, other than extra credit.
+	 *
+	 * @param prefix a value to write as the first column of each row, or null for none
+	 * @return false if the site has no gradebook items
+	 */
+	private boolean writeCourseGradesWhenAssignmentsComplete(String siteId, String prefix, Writer out) throws Exception
+	{
+		List<Assignment> itemList = gradingService.getAssignments(siteId);
+		if (itemList == null) return false;
+
+		Gradebook gb = (Gradebook) gradingService.getGradebook(siteId);
+		Map<String, String> students = getGradeableStudentMap(siteId);
+		List<String> userUuids = new ArrayList<>(students.keySet());
+
+		// Each gradable item gets a bit, so a student's completion is a bitset with one bit per item they've done
+		List<Long> gradableObjectIds = new ArrayList<Long>();
+		Map<Long, Integer> itemBits = new HashMap<>();
+		for (Assignment a: itemList) {
+			boolean isExtraCredit = a.getExtraCredit();
+			double points = a.getPoints();
+			boolean isCounted = a.getCounted();
+
+			if (!isExtraCredit && isCounted && points >= 1.0) {
+				itemBits.put(a.getId(), gradableObjectIds.size());
+				gradableObjectIds.add(a.getId());
+			}
+		}
+
+		// This only fetches completed gradebook items
+		Map<Long, List<GradeDefinition>> gradesMap = gradingService.getGradesWithoutCommentsForStudentsForItems(siteId, gradableObjectIds, userUuids);
+
+		Map<String, BitSet> studentCompletion = new HashMap<>();
+		for (Map.Entry<Long, List<GradeDefinition>> gboGradeDef : gradesMap.entrySet()) {
+			Integer bit = itemBits.get(gboGradeDef.getKey());
+			if (bit == null) continue;
+
+			for (GradeDefinition gradeDef : gboGradeDef.getValue()) {
+				if (StringUtils.isNotBlank(gradeDef.getGrade())) {
+					studentCompletion.computeIfAbsent(gradeDef.getStudentUid(), k -> new BitSet(gradableObjectIds.size())).set(bit);
 				}
+			}
+		}
 
-				if (finishedAllItems) {
-					final CourseGradeTransferBean cg = gradingService.getCourseGradeForStudent(gb.getUid(), userId);
-					final String grade = cg.getDisplayGrade();
+		// Only students who completed all gradable items
+		List<String> completeUsers = new ArrayList<>();
+		for (Map.Entry<String, BitSet> u : studentCompletion.entrySet()) {
+			BitSet finishedItems = u.getValue();
+			if (finishedItems.cardinality() == gradableObjectIds.size()) {
+				completeUsers.add(u.getKey());
+			} else if (LOG.isDebugEnabled()) {
+				LOG.debug("getCourseGradesWhenAssignmentsComplete not returning " + u.getKey() + " because " + gradableObjectIds.get(finishedItems.nextClearBit(0)) + " is not complete");
+			}
+		}
+		if (completeUsers.isEmpty()) return true;
 
-					if (StringUtils.isNotBlank(grade)) {
-						final String eid = students.get(userId);
-						retval += eid + "," + grade + "\r\n";
-					}
+		Map<String, CourseGradeTransferBean> courseGrades = gradingService.getCourseGradeForStudents(gb.getUid(), completeUsers);
+		for (String userId : completeUsers) {
+			final CourseGradeTransferBean cg = courseGrades.get(userId);
+			final String grade = (cg != null) ? cg.getDisplayGrade() : null;
+
+			if (StringUtils.isNotBlank(grade)) {
+				if (prefix != null) {
+					out.write(csvValue(prefix));
+					out.write(',');
 				}
+				out.write(csvValue(students.get(userId)));
+				out.write(',');
+				out.write(csvValue(grade));
+				out.write("\r\n");
 			}
-		} catch (Exception e) {
-			return e.getClass().getName() + " : " + e.getMessage();
 		}
+		return true;
+	}
 
-		return retval;
+	/**
+	 * Quote a CSV value if it needs it
+	 */
+	private static String csvValue(String value)
+	{
+		if (value == null) return "";
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\r') < 0 && value.indexOf('\n') < 0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
 	}
 
 	@WebMethod
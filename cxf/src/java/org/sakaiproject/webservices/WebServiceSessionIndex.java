@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionBindingEvent;
+import org.sakaiproject.tool.api.SessionBindingListener;
+import org.sakaiproject.tool.api.SessionManager;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Finds the web service session started for a user by getSessionForUser with <code>wsonly=true</code>, so it can be
+ * reused without looking through every session on the node. Users are looked up by eid whatever its case.
+ * <p>
+ * A session is added when it is started and removed when it is invalidated, through a binding listener set as one of
+ * its attributes. A session found in the index is still checked before it is reused, as it may have timed out
+ * without being invalidated yet.
+ */
+@Slf4j
+public class WebServiceSessionIndex {
+
+    // Set on sessions started for web services only, see getSessionForUser
+    static final String SESSION_ATTR_NAME_ORIGIN = "origin";
+    static final String SESSION_ATTR_VALUE_ORIGIN_WS = "sakai-axis";
+
+    private static final String SESSION_ATTR_INDEX = WebServiceSessionIndex.class.getName();
+
+    @Setter
+    private SessionManager sessionManager;
+
+    private final Map<String, String> sessionIds = new ConcurrentHashMap<>();
+
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+
+    /**
+     * Find a live web service session for a user.
+     *
+     * @param eid the user's eid
+     * @return the session or null if there isn't one to reuse
+     */
+    public Session find(String eid) {
+        String key = StringUtils.lowerCase(eid);
+        String sessionId = (key != null) ? sessionIds.get(key) : null;
+        if (sessionId == null) {
+            return null;
+        }
+
+        Session session = sessionManager.getSession(sessionId);
+        if (session == null || !StringUtils.equalsIgnoreCase(session.getUserEid(), eid)
+                || !SESSION_ATTR_VALUE_ORIGIN_WS.equals(session.getAttribute(SESSION_ATTR_NAME_ORIGIN))
+                || isInactive(session)) {
+            sessionIds.remove(key, sessionId);
+            stale.increment();
+            return null;
+        }
+        reused.increment();
+        return session;
+    }
+
+    /**
+     * Add a newly started web service session to the index, replacing any earlier session for the same user.
+     */
+    public void add(Session session) {
+        String key = StringUtils.lowerCase(session.getUserEid());
+        if (key == null) {
+            return;
+        }
+        sessionIds.put(key, session.getId());
+        session.setAttribute(SESSION_ATTR_INDEX, new Unbinder(key, session.getId()));
+        created.increment();
+    }
+
+    /**
+     * @return how many times a session was found and reused
+     */
+    public long getReused() {
+        return reused.sum();
+    }
+
+    /**
+     * @return how many sessions were added
+     */
+    public long getCreated() {
+        return created.sum();
+    }
+
+    /**
+     * @return how many sessions were found to have ended when they were looked up
+     */
+    public long getStale() {
+        return stale.sum();
+    }
+
+    public int getIndexedCount() {
+        return sessionIds.size();
+    }
+
+    private boolean isInactive(Session s) {
+        int maxInactive = s.getMaxInactiveInterval();
+        return maxInactive > 0 && System.currentTimeMillis() - s.getLastAccessedTime() > TimeUnit.SECONDS.toMillis(maxInactive);
+    }
+
+    /**
+     * Removes a session from the index when the session is invalidated, which unbinds all its attributes
+     */
+    private final class Unbinder implements SessionBindingListener {
+        private final String eid;
+        private final String sessionId;
+
+        private Unbinder(String eid, String sessionId) {
+            this.eid = eid;
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public void valueBound(SessionBindingEvent event) {
+        }
+
+        @Override
+        public void valueUnbound(SessionBindingEvent event) {
+            if (sessionIds.remove(eid, sessionId)) {
+                log.debug("Web service session {} for {} ended", sessionId, eid);
+            }
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Writes web service XML responses element by element, in the manner of a StAX writer, rather than building
+ * a DOM with {@link org.sakaiproject.util.Xml#createDocument()} and serializing it at the end.
+ * <p>
+ * The output is the same as {@link org.sakaiproject.util.Xml#writeDocumentToString(org.w3c.dom.Document)}
+ * gives for the equivalent DOM: an XML declaration with no trailing newline, no indentation, elements without
+ * content in their short <code>&lt;name/&gt;</code> form and the JDK serializer's escaping of markup and
+ * control characters. Escaping is done here rather than by a javax.xml.stream provider because CXF puts
+ * Woodstox on the classpath, which quotes the declaration and escapes text differently.
+ * <p>
+ * Attributes are written in the order they are supplied, so callers replacing <code>setAttribute</code>
+ * calls on a DOM element should pass a sorted map to keep the alphabetical order the DOM produced.
+ * <p>
+ * The same body can be rendered to a String for SOAP callers with {@link #writeToString(Body)} or streamed
+ * straight to the HTTP response for JAX-RS callers with {@link #stream(Body)}, in which case memory use does
+ * not depend on the number of rows written.
+ */
+@Slf4j
+public class XmlResponseWriter {
+
+    private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+    // Push buffered output to the client every so many closed elements when streaming
+    private static final int FLUSH_INTERVAL = 500;
+
+    /**
+     * Produces the content of a response, everything below the XML declaration.
+     */
+    public interface Body {
+        void write(XmlResponseWriter xml) throws IOException;
+    }
+
+    private final Writer out;
+    private final boolean streaming;
+    private final Deque<String> open = new ArrayDeque<>();
+
+    // A start tag is held back until we know whether the element has content, so empty elements come out as <name/>
+    private String pendingName;
+    private Map<String, String> pendingAttributes;
+    private int closedSinceFlush = 0;
+    private boolean stripInvalid = false;
+
+    private XmlResponseWriter(Writer out, boolean streaming) {
+        this.out = out;
+        this.streaming = streaming;
+    }
+
+    /**
+     * Render a response to a String, for SOAP operations.
+     */
+    public static String writeToString(Body body) {
+        StringWriter out = new StringWriter();
+        try {
+            render(out, false, body);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write XML response: " + e.getMessage(), e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Render a response directly to the HTTP output stream, for JAX-RS operations. Once the first bytes have
+     * been sent the status can no longer change, so errors part way through abort the response.
+     */
+    public static StreamingOutput stream(Body body) {
+        return (OutputStream output) -> {
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+                render(out, true, body);
+            } catch (IOException e) {
+                log.error("Streaming XML response failed: {}", e.getMessage());
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * Render a response to a writer the caller owns, flushing it every so often as it goes, for responses written
+     * somewhere other than the HTTP output stream. The writer is flushed but not closed.
+     */
+    public static void write(Writer out, Body body) throws IOException {
+        render(out, true, body);
+    }
+
+    /**
+     * A response written exactly as given, without the XML declaration, for the fixed strings such as
+     * <code>&lt;list/&gt;</code> or <code>&lt;exception/&gt;</code> that some operations return before any rows.
+     */
+    public static Body literal(String content) {
+        return new Literal(content);
+    }
+
+    private static void render(Writer out, boolean streaming, Body body) throws IOException {
+        // A literal is the whole response, so it has no declaration of its own
+        if (!(body instanceof Literal)) {
+            out.write(DECLARATION);
+        }
+        XmlResponseWriter xml = new XmlResponseWriter(out, streaming);
+        body.write(xml);
+        while (xml.pendingName != null || !xml.open.isEmpty()) {
+            xml.end();
+        }
+        // The container owns the underlying stream, so flush but do not close
+        out.flush();
+    }
+
+    /**
+     * Whether a character can appear in an XML document at all, even as a character reference. Surrogates are
+     * allowed, as a pair of them is a character outside the BMP.
+     */
+    public static boolean isXmlCharacter(char c) {
+        return (c >= 0x20) ? c <= 0xfffd : (c == '\t' || c == '\n' || c == '\r');
+    }
+
+    /**
+     * Leave out the characters that aren't allowed in XML from the text and attributes written from now on, rather
+     * than writing them as character references a strict parser would reject.
+     */
+    public XmlResponseWriter stripInvalidCharacters() {
+        stripInvalid = true;
+        return this;
+    }
+
+    /**
+     * Open an element.
+     */
+    public XmlResponseWriter start(String name) throws IOException {
+        return start(name, null);
+    }
+
+    /**
+     * Open an element with the given attributes, written in the map's iteration order. Null values are
+     * written as empty attributes.
+     */
+    public XmlResponseWriter start(String name, Map<String, String> attributes) throws IOException {
+        writePending(false);
+        pendingName = name;
+        pendingAttributes = attributes;
+        return this;
+    }
+
+    /**
+     * Write an element containing only text, the equivalent of appending <code>createTextNode(text)</code>.
+     * Null or empty text gives an empty element.
+     */
+    public XmlResponseWriter element(String name, String text) throws IOException {
+        start(name);
+        text(text);
+        return end();
+    }
+
+    /**
+     * Write text inside the current element.
+     */
+    public XmlResponseWriter text(String text) throws IOException {
+        if (text == null || text.isEmpty()) {
+            return this;
+        }
+        writePending(false);
+        escape(text, false);
+        return this;
+    }
+
+    /**
+     * Close the current element.
+     */
+    public XmlResponseWriter end() throws IOException {
+        if (pendingName != null) {
+            writePending(true);
+        } else {
+            out.write("</");
+            out.write(open.pop());
+            out.write('>');
+        }
+
+        if (streaming && ++closedSinceFlush >= FLUSH_INTERVAL) {
+            out.flush();
+            closedSinceFlush = 0;
+        }
+        return this;
+    }
+
+    /**
+     * Write markup exactly as given inside the current element, without escaping it.
+     */
+    public XmlResponseWriter raw(String markup) throws IOException {
+        writePending(false);
+        out.write(markup);
+        return this;
+    }
+
+    /**
+     * Send everything written so far to the client, for example at the end of a block that took a while to build.
+     */
+    public void flush() throws IOException {
+        if (streaming) {
+            out.flush();
+            closedSinceFlush = 0;
+        }
+    }
+
+    private void writePending(boolean empty) throws IOException {
+        if (pendingName == null) {
+            return;
+        }
+        out.write('<');
+        out.write(pendingName);
+        if (pendingAttributes != null) {
+            for (Map.Entry<String, String> attribute : pendingAttributes.entrySet()) {
+                out.write(' ');
+                out.write(attribute.getKey());
+                out.write("=\"");
+                if (attribute.getValue() != null) {
+                    escape(attribute.getValue(), true);
+                }
+                out.write('"');
+            }
+        }
+        if (empty) {
+            out.write("/>");
+        } else {
+            out.write('>');
+            open.push(pendingName);
+        }
+        pendingName = null;
+        pendingAttributes = null;
+    }
+
+    private void escape(String value, boolean attribute) throws IOException {
+        int length = value.length();
+        int from = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement = null;
+            if (stripInvalid && !isXmlCharacter(c)) {
+                out.write(value, from, i - from);
+                from = i + 1;
+                continue;
+            }
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                // Characters outside the BMP are written as character references
+                out.write(value, from, i - from);
+                out.write("&#" + Character.toCodePoint(c, value.charAt(i + 1)) + ";");
+                from = i + 2;
+                i++;
+                continue;
+            }
+            switch (c) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    if (attribute) replacement = "&quot;";
+                    break;
+                case '\t':
+                case '\n':
+                    if (attribute) replacement = "&#" + (int) c + ";";
+                    break;
+                default:
+                    if (c < 0x20 || (!attribute && c >= 0x7f && c <= 0x9f)) {
+                        replacement = "&#" + (int) c + ";";
+                    }
+            }
+            if (replacement != null) {
+                out.write(value, from, i - from);
+                out.write(replacement);
+                from = i + 1;
+            }
+        }
+        out.write(value, from, length - from);
+    }
+
+    private static final class Literal implements Body {
+        private final String content;
+
+        private Literal(String content) {
+            this.content = content;
+        }
+
+        @Override
+        public void write(XmlResponseWriter xml) throws IOException {
+            xml.raw(content);
+        }
+    }
+}
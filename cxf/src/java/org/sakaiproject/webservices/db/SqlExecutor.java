@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.db.api.SqlService;
+import org.sakaiproject.webservices.interceptor.OperationMetrics;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs SQL for the web services against Sakai's connection pool.
+ * <p>
+ * Each of the single statement methods borrows a connection, runs the statement and commits. To run several
+ * statements on one connection, optionally as one transaction, use {@link #withConnection(Work)} or
+ * {@link #inTransaction(Work)} and the {@link Statements} they are given. Query results are passed to a callback a
+ * row at a time, with the JDBC fetch size set from <code>webservices.jdbc.fetch-size</code>, so large tables can be
+ * read without holding them in memory.
+ * <p>
+ * Every statement is timed and recorded with the operation metrics as <code>sql</code> followed by the start of the
+ * statement, so slow queries show up in SakaiMetrics.getMetrics alongside the operations that run them.
+ */
+@Slf4j
+public class SqlExecutor {
+
+    @Setter
+    private SqlService sqlService;
+
+    @Setter
+    private ServerConfigurationService serverConfigurationService;
+
+    @Setter
+    private OperationMetrics operationMetrics;
+
+    // Rows fetched from the database at a time by queries
+    @Setter
+    private int fetchSize = 500;
+
+    // Statements are constants in the callers, so there are only ever a few of these
+    private final Map<String, String> labels = new ConcurrentHashMap<>();
+
+    /**
+     * Statements run on one connection.
+     */
+    public interface Work<T> {
+        T run(Statements statements) throws SQLException;
+    }
+
+    /**
+     * Handles one row of a query result.
+     */
+    public interface RowCallback {
+        /**
+         * @return false to stop reading rows
+         */
+        boolean row(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * Makes a value from the current row of a query result.
+     */
+    public interface RowMapper<T> {
+        T map(ResultSet rs) throws SQLException;
+    }
+
+    public void init() {
+        fetchSize = serverConfigurationService.getInt("webservices.jdbc.fetch-size", fetchSize);
+    }
+
+    /**
+     * Pass each row of a query to a callback.
+     */
+    public void query(String sql, RowCallback callback, Object... params) throws SQLException {
+        withConnection(s -> {
+            s.query(sql, callback, params);
+            return null;
+        });
+    }
+
+    /**
+     * Map each row of a query to a value.
+     */
+    public <T> List<T> queryForList(String sql, RowMapper<T> mapper, Object... params) throws SQLException {
+        return withConnection(s -> s.queryForList(sql, mapper, params));
+    }
+
+    /**
+     * Map at most the given number of rows of a query to values, eg to read a large table a page at a time without
+     * holding a connection between pages.
+     *
+     * @param maxRows the most rows to read, 0 for no limit
+     */
+    public <T> List<T> queryForList(String sql, int maxRows, RowMapper<T> mapper, Object... params) throws SQLException {
+        return withConnection(s -> s.queryForList(sql, maxRows, mapper, params));
+    }
+
+    /**
+     * Map the first row of a query to a value.
+     *
+     * @return the value or null if there are no rows
+     */
+    public <T> T queryForObject(String sql, RowMapper<T> mapper, Object... params) throws SQLException {
+        return withConnection(s -> s.queryForObject(sql, mapper, params));
+    }
+
+    /**
+     * Run an insert, update or delete and commit it.
+     *
+     * @return the number of rows changed
+     */
+    public int update(String sql, Object... params) throws SQLException {
+        return inTransaction(s -> s.update(sql, params));
+    }
+
+    /**
+     * Run statements on one connection, each committed as it runs.
+     */
+    public <T> T withConnection(Work<T> work) throws SQLException {
+        return run(work, true);
+    }
+
+    /**
+     * Run statements on one connection as one transaction, committed if the work returns and rolled back if it
+     * throws.
+     */
+    public <T> T inTransaction(Work<T> work) throws SQLException {
+        return run(work, false);
+    }
+
+    private <T> T run(Work<T> work, boolean autoCommit) throws SQLException {
+        Connection connection = sqlService.borrowConnection();
+        boolean wasAutoCommit = connection.getAutoCommit();
+        try {
+            if (wasAutoCommit != autoCommit) {
+                connection.setAutoCommit(autoCommit);
+            }
+            T result = work.run(new Statements(connection, this));
+            if (!autoCommit) {
+                connection.commit();
+            }
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            if (!autoCommit) {
+                try {
+                    connection.rollback();
+                } catch (SQLException ee) {
+                    log.warn("Rollback failed: {}", ee.getMessage());
+                }
+            }
+            throw e;
+        } finally {
+            try {
+                if (connection.getAutoCommit() != wasAutoCommit) {
+                    connection.setAutoCommit(wasAutoCommit);
+                }
+            } catch (SQLException e) {
+                log.warn("Unable to restore auto commit: {}", e.getMessage());
+            }
+            sqlService.returnConnection(connection);
+        }
+    }
+
+    int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Record how long a statement took.
+     */
+    void record(String sql, long startNanos, boolean error) {
+        if (operationMetrics != null) {
+            operationMetrics.get("sql", labels.computeIfAbsent(sql, SqlExecutor::label)).record((System.nanoTime() - startNanos) / 1000, 0, error);
+        }
+    }
+
+    /**
+     * The start of a statement with its white space collapsed, enough to tell statements apart in the metrics
+     */
+    static String label(String sql) {
+        String label = sql.trim().replaceAll("\\s+", " ");
+        return (label.length() > 80) ? label.substring(0, 80) : label;
+    }
+}
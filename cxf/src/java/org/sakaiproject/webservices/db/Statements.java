@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Statements run on the one connection borrowed by {@link SqlExecutor#withConnection} or
+ * {@link SqlExecutor#inTransaction}. Only valid until the work it was given to returns.
+ */
+@Slf4j
+public class Statements {
+
+    private final Connection connection;
+    private final SqlExecutor executor;
+
+    Statements(Connection connection, SqlExecutor executor) {
+        this.connection = connection;
+        this.executor = executor;
+    }
+
+    /**
+     * Pass each row of a query to a callback, until it returns false.
+     */
+    public void query(String sql, SqlExecutor.RowCallback callback, Object... params) throws SQLException {
+        query(sql, 0, callback, params);
+    }
+
+    /**
+     * Pass at most the given number of rows of a query to a callback, until it returns false. The database is told
+     * the limit, so it can stop there rather than the driver reading and throwing away the rest.
+     *
+     * @param maxRows the most rows to read, 0 for no limit
+     */
+    public void query(String sql, int maxRows, SqlExecutor.RowCallback callback, Object... params) throws SQLException {
+        long start = System.nanoTime();
+        boolean error = true;
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setFetchSize(executor.getFetchSize());
+            if (maxRows > 0) {
+                ps.setMaxRows(maxRows);
+            }
+            bind(ps, params);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (!callback.row(rs)) {
+                        break;
+                    }
+                }
+            }
+            error = false;
+        } finally {
+            executor.record(sql, start, error);
+        }
+    }
+
+    /**
+     * Map each row of a query to a value.
+     */
+    public <T> List<T> queryForList(String sql, SqlExecutor.RowMapper<T> mapper, Object... params) throws SQLException {
+        return queryForList(sql, 0, mapper, params);
+    }
+
+    /**
+     * Map at most the given number of rows of a query to values.
+     *
+     * @param maxRows the most rows to read, 0 for no limit
+     */
+    public <T> List<T> queryForList(String sql, int maxRows, SqlExecutor.RowMapper<T> mapper, Object... params) throws SQLException {
+        List<T> list = new ArrayList<>();
+        query(sql, maxRows, rs -> list.add(mapper.map(rs)), params);
+        return list;
+    }
+
+    /**
+     * Map the first row of a query to a value.
+     *
+     * @return the value or null if there are no rows
+     */
+    public <T> T queryForObject(String sql, SqlExecutor.RowMapper<T> mapper, Object... params) throws SQLException {
+        List<T> list = new ArrayList<>(1);
+        query(sql, rs -> {
+            list.add(mapper.map(rs));
+            return false;
+        }, params);
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    /**
+     * Run an insert, update or delete.
+     *
+     * @return the number of rows changed
+     */
+    public int update(String sql, Object... params) throws SQLException {
+        long start = System.nanoTime();
+        boolean error = true;
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            bind(ps, params);
+            int count = ps.executeUpdate();
+            error = false;
+            return count;
+        } finally {
+            executor.record(sql, start, error);
+        }
+    }
+
+    /**
+     * Run a statement once for each set of parameters as a JDBC batch.
+     *
+     * @return the number of rows changed by each, as {@link PreparedStatement#executeBatch()} reports them
+     */
+    public int[] batch(String sql, List<Object[]> paramsList) throws SQLException {
+        if (paramsList.isEmpty()) {
+            return new int[0];
+        }
+        long start = System.nanoTime();
+        boolean error = true;
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            for (Object[] params : paramsList) {
+                bind(ps, params);
+                ps.addBatch();
+            }
+            int[] counts = ps.executeBatch();
+            error = false;
+            return counts;
+        } finally {
+            executor.record(sql, start, error);
+        }
+    }
+
+    /**
+     * Run statements that are allowed to fail, such as those on optional tables. If they throw, everything they did
+     * is rolled back and the rest of the transaction carries on.
+     *
+     * @return the work's result, or null if it failed
+     */
+    public <T> T optionally(SqlExecutor.Work<T> work) throws SQLException {
+        Savepoint savepoint = connection.setSavepoint();
+        try {
+            return work.run(this);
+        } catch (SQLException e) {
+            log.warn("Skipping optional statements: {}", e.getMessage());
+            connection.rollback(savepoint);
+            return null;
+        }
+    }
+
+    private static void bind(PreparedStatement ps, Object[] params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            ps.setObject(i + 1, params[i]);
+        }
+    }
+}
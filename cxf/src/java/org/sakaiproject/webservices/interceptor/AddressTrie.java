@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2003 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.interceptor;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.regex.Pattern;
+
+/**
+ * A binary prefix trie of IPv4 and IPv6 networks in CIDR notation, for example <code>10.0.0.0/8</code> or
+ * <code>fd00::/8</code>. A lookup walks one node per bit of the address until it reaches a network, so it costs at
+ * most the length of the longest prefix added, however many networks there are.
+ * <p>
+ * Addresses are only ever parsed as literals, nothing here does a DNS lookup. IPv4-mapped IPv6 addresses
+ * (<code>::ffff:10.1.2.3</code>) are matched against the IPv4 networks.
+ */
+class AddressTrie {
+
+    private static final Pattern IPV4 = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+    private static final Pattern IPV6 = Pattern.compile("[0-9a-fA-F:.]*:[0-9a-fA-F:.]*");
+
+    private final Node ipv4 = new Node();
+    private final Node ipv6 = new Node();
+    private int size = 0;
+
+    /**
+     * Add a network if the entry is an address or CIDR network.
+     *
+     * @param entry an address such as <code>127.0.0.1</code> or a network such as <code>172.16.0.0/12</code>
+     * @return <code>false</code> if the entry isn't an address or network, so should be treated some other way
+     */
+    boolean add(String entry) {
+        String address = entry.trim();
+        int bits = -1;
+        int slash = address.indexOf('/');
+        if (slash > 0) {
+            try {
+                bits = Integer.parseInt(address.substring(slash + 1));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            address = address.substring(0, slash);
+        }
+
+        byte[] bytes = parse(address);
+        if (bytes == null) {
+            return false;
+        }
+        if (bytes.length == 4 && address.indexOf(':') >= 0) {
+            // An IPv4-mapped network such as ::ffff:10.0.0.0/104 is the IPv4 network 10.0.0.0/8
+            if (bits >= 0 && bits < 96) {
+                return false;
+            }
+            bits = (bits < 0) ? -1 : bits - 96;
+        }
+        if (bits < 0) {
+            bits = bytes.length * 8;
+        }
+        if (bits > bytes.length * 8) {
+            return false;
+        }
+
+        Node node = (bytes.length == 4) ? ipv4 : ipv6;
+        for (int i = 0; i < bits; i++) {
+            if (bit(bytes, i) == 0) {
+                if (node.zero == null) node.zero = new Node();
+                node = node.zero;
+            } else {
+                if (node.one == null) node.one = new Node();
+                node = node.one;
+            }
+        }
+        if (node.entry == null) {
+            node.entry = entry.trim();
+            size++;
+        }
+        return true;
+    }
+
+    /**
+     * Find a network containing the address.
+     *
+     * @param address raw address bytes, as returned by {@link #parse(String)}
+     * @return the entry for the shortest matching network or <code>null</code> if none match
+     */
+    String match(byte[] address) {
+        if (address == null) {
+            return null;
+        }
+        Node node = (address.length == 4) ? ipv4 : ipv6;
+        int length = address.length * 8;
+        for (int i = 0; node != null; i++) {
+            if (node.entry != null) {
+                return node.entry;
+            }
+            if (i == length) {
+                return null;
+            }
+            node = (bit(address, i) == 0) ? node.zero : node.one;
+        }
+        return null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Parse an IPv4 or IPv6 address literal without any name resolution.
+     *
+     * @return the address bytes, 4 for IPv4 (including IPv4-mapped IPv6 addresses) or 16 for IPv6, or
+     * <code>null</code> if the value isn't an address literal
+     */
+    static byte[] parse(String address) {
+        if (address == null) {
+            return null;
+        }
+        if (IPV4.matcher(address).matches()) {
+            String[] parts = address.split("\\.");
+            byte[] bytes = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                int part = Integer.parseInt(parts[i]);
+                if (part > 255) return null;
+                bytes[i] = (byte) part;
+            }
+            return bytes;
+        }
+
+        // Zone ids such as fe80::1%eth0 don't matter for matching
+        int zone = address.indexOf('%');
+        if (zone > 0) {
+            address = address.substring(0, zone);
+        }
+        if (address.startsWith("[") && address.endsWith("]")) {
+            address = address.substring(1, address.length() - 1);
+        }
+        if (!IPV6.matcher(address).matches()) {
+            return null;
+        }
+        try {
+            // Brackets make this an IPv6 literal, so an invalid one fails rather than being looked up
+            return InetAddress.getByName("[" + address + "]").getAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static int bit(byte[] bytes, int index) {
+        return (bytes[index >> 3] >> (7 - (index & 7))) & 1;
+    }
+
+    private static final class Node {
+        private Node zero;
+        private Node one;
+        private String entry;
+    }
+}
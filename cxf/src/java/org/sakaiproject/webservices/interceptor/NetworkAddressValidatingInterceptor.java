@@ -29,7 +29,9 @@ import org.apache.cxf.service.model.BindingOperationInfo;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.lang.reflect.Method;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This checks SOAP requests to make sure that they are permitted based on the IP restrictions and also checks the
@@ -43,6 +45,9 @@ public class NetworkAddressValidatingInterceptor extends AbstractPhaseIntercepto
 
     private RemoteHostMatcher remoteHostMatcher;
 
+    // Whether each endpoint method carries @NoIPRestriction, looked up once per method
+    private final Map<Method, Boolean> unrestricted = new ConcurrentHashMap<>();
+
     public NetworkAddressValidatingInterceptor(RemoteHostMatcher remoteHostHandler) {
         // This needs to be registered to a late phase so that the lookup to the final method has been done.
         super(Phase.USER_LOGICAL);
@@ -67,7 +72,11 @@ public class NetworkAddressValidatingInterceptor extends AbstractPhaseIntercepto
     }
 
     protected boolean hasAnnotation(Method method) {
-        return method.getAnnotation(NoIPRestriction.class) != null;
+        Boolean annotated = unrestricted.get(method);
+        if (annotated == null) {
+            annotated = unrestricted.computeIfAbsent(method, m -> m.getAnnotation(NoIPRestriction.class) != null);
+        }
+        return annotated;
     }
 
     protected Method getTargetMethod(Message m) {
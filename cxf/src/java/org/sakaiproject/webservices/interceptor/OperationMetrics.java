@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.interceptor;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Call counts, error counts, response sizes and latencies for each web service operation, recorded by
+ * {@link OperationMetricsInInterceptor} and {@link OperationMetricsOutInterceptor} and reported by
+ * {@link org.sakaiproject.webservices.SakaiMetrics}.
+ * <p>
+ * Operations are keyed by protocol (<code>soap</code> or <code>rest</code>), service class and method, for example
+ * <code>rest SakaiScript.getAllUsers</code>. Latencies are held in microseconds.
+ */
+public class OperationMetrics {
+
+    private final Map<String, Stats> operations = new ConcurrentHashMap<>();
+
+    public Stats get(String protocol, String operation) {
+        String key = protocol + " " + operation;
+        Stats stats = operations.get(key);
+        return (stats != null) ? stats : operations.computeIfAbsent(key, Stats::new);
+    }
+
+    public void reset() {
+        operations.clear();
+    }
+
+    /**
+     * One line per operation, sorted by operation, with latencies in milliseconds.
+     */
+    public String toText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-60s %10s %8s %10s %10s %10s %10s %10s %14s%n",
+                "operation", "calls", "errors", "mean_ms", "p50_ms", "p90_ms", "p99_ms", "max_ms", "bytes"));
+        for (Stats stats : sorted().values()) {
+            LatencyHistogram h = stats.latency;
+            sb.append(String.format("%-60s %10d %8d %10.2f %10.2f %10.2f %10.2f %10.2f %14d%n",
+                    stats.name, stats.calls.sum(), stats.errors.sum(), h.getMean() / 1000.0,
+                    h.getPercentile(50) / 1000.0, h.getPercentile(90) / 1000.0, h.getPercentile(99) / 1000.0,
+                    h.getMax() / 1000.0, stats.bytes.sum()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The same figures as {@link #toText()}, with latencies in microseconds.
+     */
+    public JSONArray toJson() {
+        JSONArray list = new JSONArray();
+        for (Stats stats : sorted().values()) {
+            LatencyHistogram h = stats.latency;
+            JSONObject item = new JSONObject();
+            item.put("operation", stats.name);
+            item.put("calls", stats.calls.sum());
+            item.put("errors", stats.errors.sum());
+            item.put("bytes", stats.bytes.sum());
+            item.put("mean_us", Math.round(h.getMean()));
+            item.put("p50_us", h.getPercentile(50));
+            item.put("p90_us", h.getPercentile(90));
+            item.put("p99_us", h.getPercentile(99));
+            item.put("max_us", h.getMax());
+            list.put(item);
+        }
+        return list;
+    }
+
+    private SortedMap<String, Stats> sorted() {
+        return new TreeMap<>(operations);
+    }
+
+    public static class Stats {
+        private final String name;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private Stats(String name) {
+            this.name = name;
+        }
+
+        public void record(long micros, long responseBytes, boolean error) {
+            calls.increment();
+            if (error) errors.increment();
+            if (responseBytes > 0) bytes.add(responseBytes);
+            latency.record(micros);
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+    }
+}
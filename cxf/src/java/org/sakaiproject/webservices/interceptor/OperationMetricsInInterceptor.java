@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.interceptor;
+
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.AbstractPhaseInterceptor;
+import org.apache.cxf.phase.Phase;
+
+/**
+ * Notes when a request arrived so that {@link OperationMetricsOutInterceptor} can record how long it took.
+ *
+ * @see OperationMetrics
+ */
+public class OperationMetricsInInterceptor extends AbstractPhaseInterceptor<Message> {
+
+    static final String START = OperationMetricsInInterceptor.class.getName() + ".start";
+
+    public OperationMetricsInInterceptor() {
+        // As early as possible so the time includes reading and unmarshalling the request
+        super(Phase.RECEIVE);
+    }
+
+    @Override
+    public void handleMessage(Message message) throws Fault {
+        message.getExchange().put(START, System.nanoTime());
+    }
+}
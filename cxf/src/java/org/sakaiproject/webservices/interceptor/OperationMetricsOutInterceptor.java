@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.interceptor;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.interceptor.StaxOutInterceptor;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.AbstractPhaseInterceptor;
+import org.apache.cxf.phase.Phase;
+import org.apache.cxf.service.Service;
+import org.apache.cxf.service.invoker.MethodDispatcher;
+import org.apache.cxf.service.model.BindingOperationInfo;
+
+/**
+ * Counts the bytes of each response and, once it has been sent, records the call against its operation in
+ * {@link OperationMetrics}. Registered on both the out and the out fault chains, responses on the fault chain
+ * and responses with a 5xx status are counted as errors.
+ *
+ * @see OperationMetricsInInterceptor
+ */
+public class OperationMetricsOutInterceptor extends AbstractPhaseInterceptor<Message> {
+
+    private final OperationMetrics metrics;
+    private final boolean fault;
+    private final EndingInterceptor ending = new EndingInterceptor();
+
+    public OperationMetricsOutInterceptor(OperationMetrics metrics, boolean fault) {
+        // The output stream is in place by now but nothing has been written to it
+        super(Phase.PRE_STREAM);
+        addBefore(StaxOutInterceptor.class.getName());
+        this.metrics = metrics;
+        this.fault = fault;
+    }
+
+    @Override
+    public void handleMessage(Message message) throws Fault {
+        if (message.getExchange().get(OperationMetricsInInterceptor.START) == null) {
+            return;
+        }
+        OutputStream os = message.getContent(OutputStream.class);
+        if (os != null) {
+            message.setContent(OutputStream.class, new CountingOutputStream(os));
+        }
+        message.getInterceptorChain().add(ending);
+    }
+
+    private void record(Message message) {
+        Exchange exchange = message.getExchange();
+        // Removed so a response that fails on the out chain and is then sent on the fault chain is only counted once
+        Long start = (Long) exchange.remove(OperationMetricsInInterceptor.START);
+        if (start == null) {
+            return;
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+
+        OutputStream os = message.getContent(OutputStream.class);
+        long bytes = (os instanceof CountingOutputStream) ? ((CountingOutputStream) os).count : 0;
+
+        Integer status = (Integer) message.get(Message.RESPONSE_CODE);
+        boolean error = fault || (status != null && status >= 500);
+
+        BindingOperationInfo bop = exchange.get(BindingOperationInfo.class);
+        Method method = getTargetMethod(exchange, bop);
+        String protocol = (bop != null) ? "soap" : "rest";
+        String operation = (method != null) ? method.getDeclaringClass().getSimpleName() + "." + method.getName() : "unmatched";
+
+        metrics.get(protocol, operation).record(micros, bytes, error);
+    }
+
+    private Method getTargetMethod(Exchange exchange, BindingOperationInfo bop) {
+        // SOAP
+        if (bop != null) {
+            Service service = exchange.getService();
+            MethodDispatcher md = (service != null) ? (MethodDispatcher) service.get(MethodDispatcher.class.getName()) : null;
+            return (md != null) ? md.getMethod(bop) : null;
+        }
+        // JAX-RS
+        Message in = exchange.getInMessage();
+        return (in != null) ? (Method) in.get("org.apache.cxf.resource.method") : null;
+    }
+
+    /**
+     * Runs after the response has been written and the stream closed.
+     */
+    private class EndingInterceptor extends AbstractPhaseInterceptor<Message> {
+
+        EndingInterceptor() {
+            super(OperationMetricsOutInterceptor.class.getName() + ".ending", Phase.PREPARE_SEND_ENDING);
+        }
+
+        @Override
+        public void handleMessage(Message message) throws Fault {
+            record(message);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -18,7 +18,9 @@ package org.sakaiproject.webservices.interceptor;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -31,18 +33,28 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang3.StringUtils;
 import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.webservices.ExpiringCache;
 
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * This service allows/denies requests based on comparing the remote
- * hostname and/or ip-address against a set of regular expressions configured in
- * the init parameters.
+ * ip-address, and optionally hostname, against a set of networks and regular
+ * expressions configured in the init parameters.
  * <p>
  * The <code>allow</code> and/or <code>deny</code> properties are expected
- * to be comma-delimited list of regular expressions indicating hostnames and/or
- * ip addresses of allowed/denied hosts. Here is the evaluation logic:
+ * to be comma-delimited lists. Entries that are an IPv4 or IPv6 address or CIDR
+ * network (<code>10.0.0.0/8</code>, <code>fd00::/8</code>) are compiled into a
+ * prefix trie and matched against the address. Anything else is treated as a
+ * regular expression indicating hostnames and/or ip addresses of allowed/denied
+ * hosts, as in earlier releases.
+ * <p>
+ * Regular expressions are matched against the hostname as well as the address,
+ * as in earlier releases, unless <code>match-hostname</code> is set to false.
+ * Looking up the hostname may mean a reverse DNS lookup for every request, so
+ * sites whose entries are all addresses and networks never do it, and sites
+ * that only use address expressions can turn it off. Here is the evaluation logic:
  * <ul>
  * <li>The hostname and address are first compared to the deny expressions
  * configured. If a match is found, the request is rejected.</li>
@@ -63,6 +75,14 @@ import lombok.extern.slf4j.Slf4j;
  *      else "Forbidden";
  * </pre>
  * 
+ * <code>match-hostname</code> defaults to true when there are regular expressions.
+ * <p>
+ * Decisions are cached by remote address, the hostname too when expressions are
+ * matched against it, and matching <code>allow-request</code> prefix, up to
+ * <code>decision-cache-size</code> entries (default 1024, 0 turns the cache off)
+ * for <code>decision-cache-ttl</code> seconds (default 3600). The cache is
+ * emptied whenever {@link #init()} reloads the configuration.
+ * <p>
  * <code>log-allowed</code> and <code>log-denied</code> may be specified to
  * true/false to log allowed/denied requests. <code>log-allowed</code>
  * defaults to false, and <code>log-denied</code> defaults to true;
@@ -77,16 +97,24 @@ public class RemoteHostMatcher {
     @Setter
     private List<String> allowRequests;
 
-    // The list of allowed hosts/addresses expressed as regular expressions
+    // The list of allowed hosts/addresses expressed as CIDR networks or regular expressions
     @Setter
     private List<String> allow;
+    private AddressTrie allowNetworks;
     private List<Pattern> allowPattern;
 
-    // The list of denied hosts/addresses expressed as regular expressions
+    // The list of denied hosts/addresses expressed as CIDR networks or regular expressions
     @Setter
     private List<String> deny;
+    private AddressTrie denyNetworks;
     private List<Pattern> denyPattern;
 
+    // Should regular expressions be matched against the remote hostname as well as the address, null to decide
+    // from the configured expressions
+    @Setter
+    private Boolean matchHostname;
+    private boolean hostnames;
+
     // Should allowed requests be logged
     @Setter
     private boolean logAllowed = false;
@@ -95,16 +123,81 @@ public class RemoteHostMatcher {
     @Setter
     private boolean logDenied = true;
 
+    // The most decisions to remember
+    @Setter
+    private int decisionCacheSize = 1024;
+
+    // How long a decision is remembered for, in seconds
+    @Setter
+    private int decisionCacheTtl = 3600;
+
     @Setter
     private ServerConfigurationService serverConfigurationService;
 
+    // Read without locking on every request, least recently used decisions are dropped once there are too many
+    private final ExpiringCache<String, Boolean> decisions = new ExpiringCache<>(decisionCacheSize, decisionCacheTtl);
+    private final LongAdder denials = new LongAdder();
+
     public void init() {
         allowRequests = serverConfigurationService.getStringList("webservices.allow-request", allowRequests);
-        allowPattern = serverConfigurationService.getPatternList("webservices.allow", allow);
-        denyPattern = serverConfigurationService.getPatternList("webservices.deny", deny);
+        String configured = StringUtils.trimToNull(serverConfigurationService.getString("webservices.match-hostname", null));
+        Boolean explicit = (configured != null) ? Boolean.valueOf(configured) : matchHostname;
+
+        allowNetworks = new AddressTrie();
+        allowPattern = compile(serverConfigurationService.getStringList("webservices.allow", allow), allowNetworks);
+        denyNetworks = new AddressTrie();
+        denyPattern = compile(serverConfigurationService.getStringList("webservices.deny", deny), denyNetworks);
+
+        // Earlier releases always matched expressions against the hostname, so keep doing that unless told not to
+        boolean expressions = !(allowPattern.isEmpty() && denyPattern.isEmpty());
+        hostnames = (explicit != null) ? explicit : expressions;
+        if (!hostnames) {
+            for (Pattern pattern : allowPattern) warnIfHostname(pattern);
+            for (Pattern pattern : denyPattern) warnIfHostname(pattern);
+        }
+        log.info("Web services remote host filter: {} networks, {} expressions, match-hostname={}",
+                allowNetworks.size() + denyNetworks.size(), allowPattern.size() + denyPattern.size(), hostnames);
 
         logAllowed = serverConfigurationService.getBoolean("webservices.log-allowed", logAllowed);
         logDenied = serverConfigurationService.getBoolean("webservices.log-denied", logDenied);
+        decisionCacheSize = serverConfigurationService.getInt("webservices.decision-cache-size", decisionCacheSize);
+        decisionCacheTtl = serverConfigurationService.getInt("webservices.decision-cache-ttl", decisionCacheTtl);
+
+        decisions.configure(decisionCacheSize, decisionCacheTtl);
+    }
+
+    /**
+     * Put the address and network entries in the trie and compile the rest as regular expressions.
+     */
+    private List<Pattern> compile(List<String> entries, AddressTrie networks) {
+        List<Pattern> patterns = new ArrayList<>();
+        if (entries == null) {
+            return patterns;
+        }
+        for (String entry : entries) {
+            if (StringUtils.isBlank(entry) || networks.add(entry)) {
+                continue;
+            }
+            if (entry.contains("/")) {
+                // Not a valid network, and no address or hostname has a slash in it for an expression to match
+                log.warn("Ignoring invalid web services network: {}", entry);
+                continue;
+            }
+            try {
+                patterns.add(Pattern.compile(entry.trim()));
+            } catch (PatternSyntaxException e) {
+                log.warn("Ignoring invalid web services host pattern: {}", entry);
+            }
+        }
+        return patterns;
+    }
+
+    private void warnIfHostname(Pattern pattern) {
+        // Letters past f can't be in an address once escapes such as \d are taken out
+        if (pattern.pattern().replaceAll("\\\\.", "").matches(".*[g-zG-Z].*")) {
+            log.warn("Web services host pattern {} looks like a hostname but webservices.match-hostname is false, "
+                    + "it will only be matched against addresses", pattern.pattern());
+        }
     }
 
     /**
@@ -114,36 +207,105 @@ public class RemoteHostMatcher {
      */
     public boolean isAllowed(HttpServletRequest request) {
 
-        String host = request.getRemoteHost();
         String addr = request.getRemoteAddr();
+        String uri = request.getRequestURI();
 
         // Check requests that are always allowed ...
-        String uri = request.getRequestURI();
-        for (String allowedUri : allowRequests) {
-            if (StringUtils.startsWith(uri, allowedUri)) {
-                if (logAllowed) log.info("Access granted for request ({}): {}/{}", uri, host, addr);
-                return true;
+        String allowedUri = null;
+        for (String prefix : allowRequests) {
+            if (StringUtils.startsWith(uri, prefix)) {
+                allowedUri = prefix;
+                break;
+            }
+        }
+
+        // Only ask for the hostname when it's needed, it may mean a reverse DNS lookup. Hosts sharing an address may
+        // be treated differently by an expression, so then the hostname is part of the key as well.
+        String host = addr;
+        String key = addr;
+        if (allowedUri != null) {
+            key = addr + " " + allowedUri;
+        } else if (hostnames && !(allowPattern.isEmpty() && denyPattern.isEmpty())) {
+            host = request.getRemoteHost();
+            key = addr + "/" + host;
+        }
+
+        Boolean cached = (decisionCacheSize > 0 && addr != null) ? decisions.get(key) : null;
+        if (cached != null) {
+            if (cached) {
+                if (logAllowed) log.info("Access granted (cached): {} {}", addr, uri);
+            } else {
+                denials.increment();
+                if (logDenied) log.info("Access denied (cached): {} {}", addr, uri);
             }
+            return cached;
+        }
+
+        boolean allowed = decide(addr, host, uri, allowedUri);
+        if (!allowed) {
+            denials.increment();
+        }
+        if (decisionCacheSize > 0 && addr != null) {
+            decisions.put(key, allowed);
+        }
+        return allowed;
+    }
+
+    public long getDecisionCacheHits() {
+        return decisions.getHits();
+    }
+
+    public long getDecisionCacheMisses() {
+        return decisions.getMisses();
+    }
+
+    public long getDenials() {
+        return denials.sum();
+    }
+
+    public int getDecisionCacheCount() {
+        return decisions.size();
+    }
+
+    private boolean decide(String addr, String host, String uri, String allowedUri) {
+
+        byte[] address = AddressTrie.parse(addr);
+
+        if (allowedUri != null) {
+            if (logAllowed) log.info("Access granted for request ({}): {}/{}", uri, host, addr);
+            return true;
         }
 
         // Check if explicit denied ...
+        String network = denyNetworks.match(address);
+        if (network != null) {
+            if (logDenied) log.info("Access denied ({}): {}/{}", network, host, addr);
+            return false;
+        }
         for (Pattern pattern : denyPattern) {
-            if (pattern.matcher(host).matches() || pattern.matcher(addr).matches()) {
+            if (pattern.matcher(addr).matches() || (hostnames && pattern.matcher(host).matches())) {
                 if (logDenied) log.info("Access denied ({}): {}/{}", pattern.pattern(), host, addr);
                 return false;
             }
         }
 
         // Check if explicitly allowed ...
+        network = allowNetworks.match(address);
+        if (network != null) {
+            if (logAllowed) log.info("Access granted ({}): {}/{}", network, host, addr);
+            return true;
+        }
         for (Pattern pattern : allowPattern) {
-            if (pattern.matcher(host).matches() || pattern.matcher(addr).matches()) {
+            if (pattern.matcher(addr).matches() || (hostnames && pattern.matcher(host).matches())) {
                 if (logAllowed) log.info("Access granted ({}): {}/{}", pattern.pattern(), host, addr);
                 return true;
             }
         }
 
         // Allow if allows is null, but denied is not
-        if ((!denyPattern.isEmpty()) && (allowPattern.isEmpty())) {
+        boolean denySet = !denyPattern.isEmpty() || !denyNetworks.isEmpty();
+        boolean allowSet = !allowPattern.isEmpty() || !allowNetworks.isEmpty();
+        if (denySet && !allowSet) {
             if (logAllowed) log.info("Access granted (implicit): {}/{}", host, addr);
             return true;
         }
@@ -0,0 +1,306 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.job;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of one asynchronous admin job: what it is, who started it, how far it has got and which items failed.
+ * Everything, including the failures kept for reporting, is saved in the job's checkpoint so it can carry on after a
+ * restart.
+ */
+public class AdminJob {
+
+    /**
+     * SUSPENDED is a job stopped by the node shutting down, it carries on from its checkpoint at the next startup.
+     */
+    public enum Status { QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED, SUSPENDED }
+
+    /**
+     * Set to true to only count the items a job would change, see {@link AdminJobTask#check(String)}
+     */
+    public static final String PARAM_DRY_RUN = "dryRun";
+
+    /**
+     * The most items the job processes a second, overriding <code>webservices.jobs.max-per-second</code>
+     */
+    public static final String PARAM_MAX_PER_SECOND = "maxPerSecond";
+
+    private static final String PARAM_PREFIX = "param.";
+    private static final String FAILURE_PREFIX = "failure.";
+
+    // The most failures kept for reporting, the count carries on past this
+    static final int MAX_FAILURES = 1000;
+
+    private final String id;
+    private final String type;
+    private final String ownerId;
+    private final String ownerEid;
+    private final Map<String, String> params;
+    private final long created;
+
+    private volatile Status status = Status.QUEUED;
+    private volatile long started;
+    private volatile long finished;
+    private volatile long total = -1;
+    private volatile String lastKey;
+    private volatile String error;
+    private volatile boolean cancelRequested = false;
+    private volatile boolean resumed = false;
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final ConcurrentLinkedQueue<Failure> failures = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger failuresKept = new AtomicInteger();
+
+    AdminJob(String id, String type, String ownerId, String ownerEid, Map<String, String> params, long created) {
+        this.id = id;
+        this.type = type;
+        this.ownerId = ownerId;
+        this.ownerEid = ownerEid;
+        this.params = Collections.unmodifiableMap(new HashMap<>(params));
+        this.created = created;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public String getOwnerEid() {
+        return ownerEid;
+    }
+
+    public String getParam(String name) {
+        return params.get(name);
+    }
+
+    public Map<String, String> getParams() {
+        return params;
+    }
+
+    public boolean isDryRun() {
+        return Boolean.parseBoolean(params.get(PARAM_DRY_RUN));
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    public long getFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the number of items the job will look at, or -1 if that isn't known
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    /**
+     * @return the key of the last item in the last completed batch, the job carries on after this when resumed
+     */
+    public String getLastKey() {
+        return lastKey;
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    /**
+     * @return true if this job was started before a restart and picked up again from its checkpoint
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public boolean isFinished() {
+        return status == Status.COMPLETED || status == Status.FAILED || status == Status.CANCELLED || status == Status.SUSPENDED;
+    }
+
+    public List<Failure> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    void requestCancel() {
+        cancelRequested = true;
+    }
+
+    void markRunning(long now) {
+        status = Status.RUNNING;
+        if (started == 0) started = now;
+    }
+
+    synchronized void markFinished(Status finalStatus, String message, long now) {
+        status = finalStatus;
+        error = message;
+        finished = now;
+        notifyAll();
+    }
+
+    /**
+     * Wait for the job to finish, or to be suspended by a shutdown.
+     *
+     * @param timeoutMillis the most milliseconds to wait
+     * @return false if the job was still running when the time was up
+     */
+    public synchronized boolean awaitFinished(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!isFinished()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    void setLastKey(String lastKey) {
+        this.lastKey = lastKey;
+    }
+
+    void recordProcessed() {
+        processed.incrementAndGet();
+    }
+
+    void recordSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    void recordFailure(String key, Throwable t) {
+        failed.incrementAndGet();
+        if (failuresKept.incrementAndGet() <= MAX_FAILURES) {
+            failures.add(new Failure(key, t.getClass().getName() + " : " + t.getMessage()));
+        }
+    }
+
+    Properties toProperties() {
+        Properties p = new Properties();
+        p.setProperty("id", id);
+        p.setProperty("type", type);
+        p.setProperty("ownerId", ownerId);
+        p.setProperty("ownerEid", ownerEid != null ? ownerEid : "");
+        p.setProperty("created", Long.toString(created));
+        p.setProperty("started", Long.toString(started));
+        p.setProperty("status", status.name());
+        p.setProperty("total", Long.toString(total));
+        p.setProperty("processed", Long.toString(processed.get()));
+        p.setProperty("skipped", Long.toString(skipped.get()));
+        p.setProperty("failed", Long.toString(failed.get()));
+        if (lastKey != null) p.setProperty("lastKey", lastKey);
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (param.getValue() != null) p.setProperty(PARAM_PREFIX + param.getKey(), param.getValue());
+        }
+        int i = 0;
+        for (Failure failure : failures) {
+            p.setProperty(FAILURE_PREFIX + i + ".key", failure.getKey());
+            p.setProperty(FAILURE_PREFIX + i + ".message", String.valueOf(failure.getMessage()));
+            i++;
+        }
+        return p;
+    }
+
+    static AdminJob fromProperties(Properties p) {
+        Map<String, String> params = new HashMap<>();
+        for (String name : p.stringPropertyNames()) {
+            if (name.startsWith(PARAM_PREFIX)) {
+                params.put(name.substring(PARAM_PREFIX.length()), p.getProperty(name));
+            }
+        }
+        AdminJob job = new AdminJob(p.getProperty("id"), p.getProperty("type"), p.getProperty("ownerId"),
+                p.getProperty("ownerEid"), params, Long.parseLong(p.getProperty("created", "0")));
+        job.started = Long.parseLong(p.getProperty("started", "0"));
+        job.total = Long.parseLong(p.getProperty("total", "-1"));
+        job.processed.set(Long.parseLong(p.getProperty("processed", "0")));
+        job.skipped.set(Long.parseLong(p.getProperty("skipped", "0")));
+        job.failed.set(Long.parseLong(p.getProperty("failed", "0")));
+        job.lastKey = p.getProperty("lastKey");
+        for (int i = 0; p.getProperty(FAILURE_PREFIX + i + ".key") != null; i++) {
+            job.failures.add(new Failure(p.getProperty(FAILURE_PREFIX + i + ".key"), p.getProperty(FAILURE_PREFIX + i + ".message")));
+        }
+        job.failuresKept.set((int) Math.min(job.failed.get(), MAX_FAILURES));
+        job.resumed = true;
+        return job;
+    }
+
+    /**
+     * An item that could not be processed.
+     */
+    public static class Failure {
+        private final String key;
+        private final String message;
+
+        Failure(String key, String message) {
+            this.key = key;
+            this.message = message;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.job;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs long admin operations, such as changing every My Workspace site, in the background so the web service call
+ * that starts one can return a job id straight away. The caller then polls for status, progress and failures.
+ * <p>
+ * Each job reads its items in key order and hands them to a shared pool of worker threads a batch at a time. After
+ * each batch the job writes a checkpoint with the last key done, and jobs that were running when the node stopped
+ * carry on from their checkpoint when it starts again.
+ * <p>
+ * Settings:
+ * <ul>
+ * <li><code>webservices.jobs.threads</code> worker threads shared by all jobs, default 4</li>
+ * <li><code>webservices.jobs.max-running</code> jobs running at once, others wait their turn, default 2</li>
+ * <li><code>webservices.jobs.batch-size</code> items between checkpoints, default 100</li>
+ * <li><code>webservices.jobs.max-per-second</code> the most items a job processes a second, to keep the load on the
+ * database down while people are using it, default 0 for no limit. A job can set its own with the
+ * {@link AdminJob#PARAM_MAX_PER_SECOND} parameter. Dry runs are not limited.</li>
+ * <li><code>webservices.jobs.dir</code> where checkpoints are kept, default <code>webservices-jobs/{serverId}</code>
+ * under sakai home so that nodes sharing sakai home don't pick up each other's jobs</li>
+ * <li><code>webservices.jobs.resume</code> carry on unfinished jobs at startup, default true</li>
+ * </ul>
+ */
+@Slf4j
+public class AdminJobService implements ApplicationListener<ContextRefreshedEvent> {
+
+    private static final String CHECKPOINT_SUFFIX = ".properties";
+
+    // How many finished jobs to remember for status calls
+    private static final int KEEP_FINISHED = 100;
+
+    @Setter
+    private ServerConfigurationService serverConfigurationService;
+
+    @Setter
+    private SessionManager sessionManager;
+
+    @Setter
+    private ThreadLocalManager threadLocalManager;
+
+    @Setter
+    private int threads = 4;
+
+    @Setter
+    private int maxRunning = 2;
+
+    @Setter
+    private int batchSize = 100;
+
+    @Setter
+    private double maxPerSecond = 0;
+
+    private File checkpointDir;
+    private boolean resume = true;
+
+    private ExecutorService runners;
+    private ExecutorService workers;
+
+    private final Map<String, AdminJobTask.Factory> types = new ConcurrentHashMap<>();
+    private final Map<String, AdminJob> jobs = new ConcurrentHashMap<>();
+    private final AtomicBoolean resumed = new AtomicBoolean(false);
+
+    public void init() {
+        threads = serverConfigurationService.getInt("webservices.jobs.threads", threads);
+        maxRunning = serverConfigurationService.getInt("webservices.jobs.max-running", maxRunning);
+        batchSize = Math.max(1, serverConfigurationService.getInt("webservices.jobs.batch-size", batchSize));
+        maxPerSecond = Double.parseDouble(serverConfigurationService.getString("webservices.jobs.max-per-second", Double.toString(maxPerSecond)));
+        resume = serverConfigurationService.getBoolean("webservices.jobs.resume", resume);
+
+        String defaultDir = new File(new File(serverConfigurationService.getSakaiHomePath(), "webservices-jobs"),
+                serverConfigurationService.getServerId()).getPath();
+        checkpointDir = new File(serverConfigurationService.getString("webservices.jobs.dir", defaultDir));
+        if (!checkpointDir.isDirectory() && !checkpointDir.mkdirs()) {
+            log.warn("Unable to create web services job directory {}, jobs will not survive a restart", checkpointDir);
+        }
+
+        runners = new ThreadPoolExecutor(maxRunning, maxRunning, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("webservices-job-runner"));
+        workers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("webservices-job-worker"));
+
+        log.info("Web services admin jobs threads={} max-running={} batch-size={} max-per-second={} dir={}", threads, maxRunning,
+                batchSize, maxPerSecond, checkpointDir);
+    }
+
+    public void destroy() {
+        // Unfinished jobs keep their checkpoints and carry on at the next startup
+        if (runners != null) runners.shutdownNow();
+        if (workers != null) workers.shutdownNow();
+    }
+
+    /**
+     * Jobs are resumed once the whole context is up so that every service has registered its job types.
+     */
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        if (resume && resumed.compareAndSet(false, true)) {
+            resumeJobs();
+        }
+    }
+
+    /**
+     * Make a kind of job available, each service registers the jobs it offers when it starts.
+     */
+    public void registerType(String type, AdminJobTask.Factory factory) {
+        types.put(type, factory);
+    }
+
+    /**
+     * Queue a new job.
+     *
+     * @param type     a registered job type
+     * @param ownerId  the id of the user starting the job, the job runs as this user
+     * @param ownerEid the eid of the user starting the job
+     * @param params   what the job should do, these are saved in the checkpoint
+     * @return the queued job
+     */
+    public AdminJob start(String type, String ownerId, String ownerEid, Map<String, String> params) {
+        if (!types.containsKey(type)) {
+            throw new IllegalArgumentException("Unknown job type: " + type);
+        }
+        AdminJob job = new AdminJob(UUID.randomUUID().toString(), type, ownerId, ownerEid, params, System.currentTimeMillis());
+        jobs.put(job.getId(), job);
+        checkpoint(job);
+        runners.submit(() -> run(job));
+        log.info("Queued web services job {} ({}) for {}", job.getId(), type, ownerEid);
+        return job;
+    }
+
+    public AdminJob getJob(String id) {
+        return (id != null) ? jobs.get(id) : null;
+    }
+
+    /**
+     * @return every job still running or recently finished, newest first
+     */
+    public List<AdminJob> getJobs() {
+        return jobs.values().stream()
+                .sorted(Comparator.comparingLong(AdminJob::getCreated).reversed())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Ask a job to stop, it finishes the batch it is working on first.
+     *
+     * @return false if there is no such job or it has already finished
+     */
+    public boolean cancel(String id) {
+        AdminJob job = getJob(id);
+        if (job == null || job.isFinished()) {
+            return false;
+        }
+        job.requestCancel();
+        return true;
+    }
+
+    private void run(AdminJob job) {
+        AdminJobTask task = null;
+        Session session = sessionManager.startSession();
+        session.setUserId(job.getOwnerId());
+        session.setUserEid(job.getOwnerEid());
+
+        try {
+            sessionManager.setCurrentSession(session);
+            if (job.isCancelRequested()) {
+                finish(job, AdminJob.Status.CANCELLED, null);
+                return;
+            }
+            job.markRunning(System.currentTimeMillis());
+            checkpoint(job);
+
+            final AdminJobTask itemTask = types.get(job.getType()).create(job);
+            task = itemTask;
+            if (job.getTotal() < 0) {
+                job.setTotal(itemTask.count());
+            }
+
+            // Only a batch of items is ever waiting for the workers, so the read goes no faster than they do
+            Throttle throttle = new Throttle(job.isDryRun() ? 0 : maxPerSecond(job));
+            List<String> batch = new ArrayList<>(batchSize);
+            itemTask.read(job.getLastKey(), key -> {
+                if (job.isCancelRequested()) {
+                    return false;
+                }
+                batch.add(key);
+                if (batch.size() >= batchSize) {
+                    runBatch(job, itemTask, session, batch, throttle);
+                    batch.clear();
+                }
+                return !job.isCancelRequested();
+            });
+            if (!batch.isEmpty() && !job.isCancelRequested()) {
+                runBatch(job, itemTask, session, batch, throttle);
+            }
+
+            finish(job, job.isCancelRequested() ? AdminJob.Status.CANCELLED : AdminJob.Status.COMPLETED, null);
+        } catch (InterruptedException e) {
+            // Shutting down, leave the checkpoint so the job carries on at the next startup, but let anyone waiting
+            // for it know it has stopped here
+            log.info("Web services job {} interrupted after {}, it will resume from its checkpoint", job.getId(), job.getLastKey());
+            job.markFinished(AdminJob.Status.SUSPENDED, "Stopped by shutdown, resumes at the next startup", System.currentTimeMillis());
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Web services job {} ({}) failed: {}", job.getId(), job.getType(), e.getMessage(), e);
+            finish(job, AdminJob.Status.FAILED, e.getClass().getName() + " : " + e.getMessage());
+        } finally {
+            if (task != null) {
+                task.close();
+            }
+            session.invalidate();
+            threadLocalManager.clear();
+        }
+    }
+
+    private double maxPerSecond(AdminJob job) {
+        String param = job.getParam(AdminJob.PARAM_MAX_PER_SECOND);
+        if (param != null) {
+            try {
+                return Double.parseDouble(param);
+            } catch (NumberFormatException e) {
+                log.warn("Web services job {} has an invalid {}: {}", job.getId(), AdminJob.PARAM_MAX_PER_SECOND, param);
+            }
+        }
+        return maxPerSecond;
+    }
+
+    private void runBatch(AdminJob job, AdminJobTask task, Session session, List<String> batch, Throttle throttle) throws InterruptedException {
+        List<Future<?>> futures = new ArrayList<>(batch.size());
+        try {
+            // Throttled here rather than on the workers, so a slow job never ties up threads other jobs share
+            for (String key : batch) {
+                throttle.acquire();
+                futures.add(workers.submit(() -> processItem(job, task, session, key)));
+            }
+            // Every item has to be done before the checkpoint moves past the batch
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    // processItem records its own failures, so this is unexpected
+                    log.warn("Web services job {} worker failed on {}: {}", job.getId(), batch.get(i), e.getCause().getMessage());
+                    job.recordFailure(batch.get(i), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            // The checkpoint stays before this batch, so the whole of it is done again when the job resumes
+            futures.forEach(f -> f.cancel(true));
+            throw e;
+        }
+        job.setLastKey(batch.get(batch.size() - 1));
+        checkpoint(job);
+    }
+
+    private void processItem(AdminJob job, AdminJobTask task, Session session, String key) {
+        sessionManager.setCurrentSession(session);
+        try {
+            if (job.isDryRun() ? task.check(key) : task.process(key)) {
+                job.recordProcessed();
+            } else {
+                job.recordSkipped();
+            }
+        } catch (InterruptedException e) {
+            // The batch was cancelled, the item is done again when the job resumes
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.debug("Web services job {} failed on {}: {}", job.getId(), key, e.getMessage());
+            job.recordFailure(key, e);
+        } finally {
+            threadLocalManager.clear();
+        }
+    }
+
+    private void finish(AdminJob job, AdminJob.Status status, String error) {
+        job.markFinished(status, error, System.currentTimeMillis());
+        File file = checkpointFile(job.getId());
+        if (file.exists() && !file.delete()) {
+            log.warn("Unable to remove checkpoint {}", file);
+        }
+        log.info("Web services job {} ({}) {}: processed={} skipped={} failed={}", job.getId(), job.getType(), status,
+                job.getProcessed(), job.getSkipped(), job.getFailed());
+        pruneFinished();
+    }
+
+    private void pruneFinished() {
+        List<AdminJob> finished = jobs.values().stream()
+                .filter(AdminJob::isFinished)
+                .sorted(Comparator.comparingLong(AdminJob::getFinished).reversed())
+                .collect(Collectors.toList());
+        for (int i = KEEP_FINISHED; i < finished.size(); i++) {
+            jobs.remove(finished.get(i).getId());
+        }
+    }
+
+    private void checkpoint(AdminJob job) {
+        if (!checkpointDir.isDirectory()) {
+            return;
+        }
+        synchronized (job) {
+            File file = checkpointFile(job.getId());
+            File temp = new File(checkpointDir, job.getId() + ".tmp");
+            try (OutputStream out = new FileOutputStream(temp)) {
+                job.toProperties().store(out, "Web services admin job");
+            } catch (IOException e) {
+                log.warn("Unable to write checkpoint for job {}: {}", job.getId(), e.getMessage());
+                return;
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.warn("Unable to save checkpoint for job {}: {}", job.getId(), e.getMessage());
+            }
+        }
+    }
+
+    private void resumeJobs() {
+        File[] files = checkpointDir.listFiles((dir, name) -> name.endsWith(CHECKPOINT_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            Properties p = new Properties();
+            try (InputStream in = new FileInputStream(file)) {
+                p.load(in);
+            } catch (IOException e) {
+                log.warn("Unable to read job checkpoint {}: {}", file, e.getMessage());
+                continue;
+            }
+
+            AdminJob job = AdminJob.fromProperties(p);
+            if (!types.containsKey(job.getType())) {
+                log.warn("Not resuming job {}, no service offers job type {}", job.getId(), job.getType());
+                continue;
+            }
+            jobs.put(job.getId(), job);
+            runners.submit(() -> run(job));
+            log.info("Resuming web services job {} ({}) after {}", job.getId(), job.getType(), job.getLastKey());
+        }
+    }
+
+    private File checkpointFile(String id) {
+        return new File(checkpointDir, id + CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * Spaces items out so a job processes no more than a given number a second across all the worker threads
+     */
+    static class Throttle {
+        private final long intervalNanos;
+        private long next = System.nanoTime();
+
+        Throttle(double perSecond) {
+            intervalNanos = (perSecond > 0) ? (long) (TimeUnit.SECONDS.toNanos(1) / perSecond) : 0;
+        }
+
+        void acquire() throws InterruptedException {
+            if (intervalNanos == 0) {
+                return;
+            }
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long slot = Math.max(next, now);
+                next = slot + intervalNanos;
+                wait = slot - now;
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.job;
+
+/**
+ * The work done by an {@link AdminJob}: a source of item keys and what to do with each one.
+ * <p>
+ * Items must be read in ascending key order, as a resumed job asks for the items after the last key it
+ * checkpointed. Items in the batch that was running when a node stopped are processed again, so
+ * {@link #process(String)} should cope with an item that has already been done.
+ */
+public interface AdminJobTask {
+
+    /**
+     * Receives items as they are read. Returning false stops the read, for example when the job is cancelled.
+     */
+    interface ItemSink {
+        boolean accept(String key) throws InterruptedException;
+    }
+
+    /**
+     * @return how many items there are in all, or -1 if that isn't known up front
+     */
+    default long count() throws Exception {
+        return -1;
+    }
+
+    /**
+     * Pass each item after the given key to the sink, in ascending key order.
+     *
+     * @param after the last key already done, or null to start at the beginning
+     */
+    void read(String after, ItemSink sink) throws Exception;
+
+    /**
+     * Process one item.
+     *
+     * @return false if the item was skipped because there was nothing to do
+     */
+    boolean process(String key) throws Exception;
+
+    /**
+     * Work out whether processing an item would change anything, without changing it. Used instead of
+     * {@link #process(String)} by a dry run.
+     *
+     * @return false if processing the item would skip it
+     */
+    default boolean check(String key) throws Exception {
+        return true;
+    }
+
+    /**
+     * Called once the job has finished, however it finished.
+     */
+    default void close() {
+    }
+
+    /**
+     * Creates the task for a job from its parameters, both when it is started and when it is resumed.
+     */
+    interface Factory {
+        AdminJobTask create(AdminJob job);
+    }
+}
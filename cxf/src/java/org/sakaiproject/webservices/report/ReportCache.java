@@ -0,0 +1,282 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.report;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.sakaiproject.component.api.ServerConfigurationService;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The results of recent reports, so dashboards polling the same report don't each run its SQL. It is off unless
+ * <code>webservice.report.cache.enabled=true</code>.
+ * <p>
+ * A result is kept for <code>webservice.report.cache.ttl</code> seconds, or a named report's
+ * <code>webservice.report.reports.&lt;name&gt;.cache-ttl</code>, where 0 isn't cached. The results held take at most
+ * <code>webservice.report.cache.max-bytes</code>, dropping the least recently used first, and a result larger than a
+ * quarter of that isn't kept. When the same report is asked for again while it is still running, the callers wait
+ * for the one run and share its result.
+ */
+@Slf4j
+public class ReportCache {
+
+    /**
+     * Where a result came from
+     */
+    public enum Source {
+        // a result held from an earlier run
+        HIT,
+        // a run made for this request
+        MISS,
+        // a run made for another request for the same report at the same time
+        SHARED
+    }
+
+    /**
+     * A report's output and how it was found
+     */
+    public static final class Result {
+        private final String body;
+        private final Source source;
+        private final long age;
+
+        private Result(String body, Source source, long age) {
+            this.body = body;
+            this.source = source;
+            this.age = age;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public Source getSource() {
+            return source;
+        }
+
+        /**
+         * @return how long ago the result was read from the database, in ms
+         */
+        public long getAge() {
+            return age;
+        }
+    }
+
+    private static final class Entry {
+        private final String body;
+        private final long created;
+        private final long expires;
+        private final long bytes;
+
+        private Entry(String key, String body, long created, long expires) {
+            this.body = body;
+            this.created = created;
+            this.expires = expires;
+            // chars are 2 bytes, plus the entry and map overhead
+            this.bytes = 2L * (key.length() + body.length()) + 96;
+        }
+    }
+
+    @Setter
+    private ServerConfigurationService serverConfigurationService;
+
+    @Setter
+    private boolean enabled = false;
+
+    // How long a result is kept for, in seconds
+    @Setter
+    private int ttl = 60;
+
+    @Setter
+    private long maxBytes = 32L * 1024 * 1024;
+
+    // Least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes = 0;
+
+    private final Map<String, CompletableFuture<Entry>> running = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder shared = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public void init() {
+        enabled = serverConfigurationService.getBoolean("webservice.report.cache.enabled", enabled);
+        ttl = serverConfigurationService.getInt("webservice.report.cache.ttl", ttl);
+        maxBytes = Long.parseLong(serverConfigurationService.getString("webservice.report.cache.max-bytes", String.valueOf(maxBytes)));
+
+        log.info("Web services report cache enabled={} ttl={}s maxBytes={}", enabled, ttl, maxBytes);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    /**
+     * The key of a report's result. Runs of whitespace outside quoted literals are folded so the same query laid out
+     * differently is the same report.
+     */
+    public static String key(String query, Object[] args, String format, int rowCount) {
+        StringBuilder key = new StringBuilder(query.length() + 32);
+        boolean quoted = false;
+        boolean space = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (!quoted && Character.isWhitespace(c)) {
+                space = true;
+                continue;
+            }
+            if (space && key.length() > 0) {
+                key.append(' ');
+            }
+            space = false;
+            if (c == '\'') {
+                quoted = !quoted;
+            }
+            key.append(c);
+        }
+        return key.append('\u0000').append(Arrays.deepToString(args))
+                .append('\u0000').append(format)
+                .append('\u0000').append(rowCount).toString();
+    }
+
+    /**
+     * Get a report's result from the cache, or run it and keep the result.
+     *
+     * @param ttl    the seconds to keep the result for, 0 or less to run the report without caching it
+     * @param report runs the report, a RuntimeException it throws is thrown to every caller waiting on it
+     */
+    public Result get(String key, int ttl, Supplier<String> report) {
+        if (!enabled || ttl <= 0) {
+            return new Result(report.get(), Source.MISS, 0);
+        }
+
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.expires < now) {
+                remove(key);
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            hits.increment();
+            return new Result(entry.body, Source.HIT, now - entry.created);
+        }
+
+        CompletableFuture<Entry> run = new CompletableFuture<>();
+        CompletableFuture<Entry> other = running.putIfAbsent(key, run);
+        if (other != null) {
+            shared.increment();
+            try {
+                entry = other.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+            return new Result(entry.body, Source.SHARED, System.currentTimeMillis() - entry.created);
+        }
+
+        misses.increment();
+        try {
+            long start = System.currentTimeMillis();
+            String body = report.get();
+            entry = new Entry(key, body, start, start + TimeUnit.SECONDS.toMillis(ttl));
+            put(key, entry);
+            run.complete(entry);
+            return new Result(body, Source.MISS, 0);
+        } catch (RuntimeException e) {
+            run.completeExceptionally(e);
+            throw e;
+        } finally {
+            running.remove(key, run);
+        }
+    }
+
+    /**
+     * Drop every result.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getShared() {
+        return shared.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized int getCachedCount() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        if (entry.bytes > maxBytes / 4) {
+            return;
+        }
+        remove(key);
+        entries.put(key, entry);
+        bytes += entry.bytes;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.report;
+
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.sakaiproject.webservices.interceptor.LatencyHistogram;
+
+/**
+ * A report set up by an administrator: its SQL, the parameters bound to it in order, the most rows it returns and
+ * how long it may run. The statistics of every run are kept with it.
+ */
+public class ReportDefinition {
+
+    /**
+     * The type of a bind parameter, which decides how the value given by the caller is read.
+     */
+    public enum ParamType {
+        STRING, INTEGER, LONG, DOUBLE, BOOLEAN,
+        // yyyy-mm-dd
+        DATE,
+        // yyyy-mm-ddThh:mm[:ss]
+        TIMESTAMP
+    }
+
+    /**
+     * A named, typed bind parameter
+     */
+    public static class Param {
+        private final String name;
+        private final ParamType type;
+
+        public Param(String name, ParamType type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public ParamType getType() {
+            return type;
+        }
+
+        Object convert(String value) {
+            try {
+                switch (type) {
+                    case INTEGER:
+                        return Integer.valueOf(value.trim());
+                    case LONG:
+                        return Long.valueOf(value.trim());
+                    case DOUBLE:
+                        return Double.valueOf(value.trim());
+                    case BOOLEAN:
+                        return Boolean.valueOf(value.trim());
+                    case DATE:
+                        return Date.valueOf(LocalDate.parse(value.trim()));
+                    case TIMESTAMP:
+                        return Timestamp.valueOf(LocalDateTime.parse(value.trim()));
+                    default:
+                        return value;
+                }
+            } catch (NumberFormatException | DateTimeParseException e) {
+                throw new IllegalArgumentException("Parameter " + name + " is not a valid " + type.name().toLowerCase() + ": " + value);
+            }
+        }
+    }
+
+    private final String name;
+    private final String sql;
+    private final List<Param> params;
+    private final int maxRows;
+    private final int timeout;
+    private final int cacheTtl;
+
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * @param maxRows the most rows the report returns, 0 for no limit
+     * @param timeout the most seconds the report may run for, 0 for no limit
+     * @param cacheTtl the seconds to cache the report's results for, 0 not to
+     */
+    public ReportDefinition(String name, String sql, List<Param> params, int maxRows, int timeout, int cacheTtl) {
+        this.name = name;
+        this.sql = sql;
+        this.params = Collections.unmodifiableList(new ArrayList<>(params));
+        this.maxRows = maxRows;
+        this.timeout = timeout;
+        this.cacheTtl = cacheTtl;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public List<Param> getParams() {
+        return params;
+    }
+
+    public int getMaxRows() {
+        return maxRows;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public int getCacheTtl() {
+        return cacheTtl;
+    }
+
+    /**
+     * Read the caller's values into the arguments to bind, in the order the SQL takes them.
+     *
+     * @throws IllegalArgumentException if a value is missing or can't be read as its type
+     */
+    public Object[] bind(Map<String, String> values) {
+        Object[] args = new Object[params.size()];
+        for (int i = 0; i < args.length; i++) {
+            Param param = params.get(i);
+            String value = values.get(param.getName());
+            if (value == null) {
+                throw new IllegalArgumentException("Missing parameter " + param.getName() + " for report " + name);
+            }
+            args[i] = param.convert(value);
+        }
+        return args;
+    }
+
+    /**
+     * The rows to return for a request for the given number, which can only lower the report's own limit.
+     */
+    public int rowsFor(int rowCount) {
+        if (rowCount <= 0) {
+            return maxRows;
+        }
+        return (maxRows > 0) ? Math.min(rowCount, maxRows) : rowCount;
+    }
+
+    /**
+     * Record a run of the report.
+     */
+    public void record(long micros, long rowCount, boolean error) {
+        runs.increment();
+        rows.add(rowCount);
+        if (error) {
+            errors.increment();
+        }
+        latency.record(micros);
+    }
+
+    public long getRuns() {
+        return runs.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getRows() {
+        return rows.sum();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.report;
+
+import javax.ws.rs.core.MediaType;
+
+/**
+ * The formats a report can be written in.
+ */
+public enum ReportFormat {
+
+    CSV("csv", "text/csv"),
+    CSV_WITH_HEADER_ROW("csv_with_header_row", "text/csv"),
+    JSON("json", MediaType.APPLICATION_JSON),
+    XML("xml", MediaType.APPLICATION_XML);
+
+    private final String name;
+    private final String contentType;
+
+    ReportFormat(String name, String contentType) {
+        this.name = name;
+        this.contentType = contentType;
+    }
+
+    /**
+     * The format as callers ask for it, eg <code>csv_with_header_row</code>
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the format with the given name, ignoring case, or XML if there is none
+     */
+    public static ReportFormat of(String name) {
+        for (ReportFormat format : values()) {
+            if (format.name.equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        return XML;
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.report;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Future;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A report run in the background by {@link ReportJobService}, with its result spooled to a file to download once it
+ * is done.
+ */
+@Slf4j
+public class ReportJob {
+
+    public enum Status { QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED }
+
+    private final String id;
+    private final String ownerId;
+    private final String description;
+    private final ReportFormat format;
+    private final boolean gzip;
+    private final long created;
+
+    private volatile Status status = Status.QUEUED;
+    private volatile long started;
+    private volatile long finished;
+    private volatile long rows;
+    private volatile String error;
+    private volatile File file;
+
+    private volatile boolean cancelRequested = false;
+    private volatile Future<?> future;
+    private volatile Statement statement;
+
+    ReportJob(String id, String ownerId, String description, ReportFormat format, boolean gzip, long created) {
+        this.id = id;
+        this.ownerId = ownerId;
+        this.description = description;
+        this.format = format;
+        this.gzip = gzip;
+        this.created = created;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    /**
+     * The named report or the query that was run
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    public ReportFormat getFormat() {
+        return format;
+    }
+
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    public long getFinished() {
+        return finished;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return the spooled result, or null if the job hasn't completed or its result has been removed
+     */
+    public File getFile() {
+        return (status == Status.COMPLETED) ? file : null;
+    }
+
+    /**
+     * @return the name to download the result as, eg <code>report-{id}.csv.gz</code>
+     */
+    public String getFileName() {
+        String extension = (format == ReportFormat.CSV_WITH_HEADER_ROW) ? "csv" : format.getName();
+        return "report-" + id + "." + extension + (gzip ? ".gz" : "");
+    }
+
+    public boolean isFinished() {
+        return status == Status.COMPLETED || status == Status.FAILED || status == Status.CANCELLED;
+    }
+
+    public boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    /**
+     * Called by the query as it starts so a cancel can stop it in the database, and with null before the statement
+     * is closed. Holds the same lock as {@link #requestCancel()}, so a cancel in progress finishes first.
+     */
+    public synchronized void setStatement(Statement statement) {
+        this.statement = statement;
+        if (cancelRequested && statement != null) {
+            cancelStatement();
+        }
+    }
+
+    void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    /**
+     * @return false if the job was cancelled before it started
+     */
+    synchronized boolean markRunning(File file, long now) {
+        if (cancelRequested) {
+            return false;
+        }
+        this.file = file;
+        this.started = now;
+        this.status = Status.RUNNING;
+        return true;
+    }
+
+    void markFinished(Status status, long rows, String error, long now) {
+        this.rows = rows;
+        this.error = error;
+        this.finished = now;
+        this.statement = null;
+        this.status = status;
+    }
+
+    void removeFile() {
+        File spooled = file;
+        file = null;
+        if (spooled != null && spooled.exists() && !spooled.delete()) {
+            log.warn("Unable to remove report job file {}", spooled);
+        }
+    }
+
+    /**
+     * Stop the job, taking it off the queue if it hasn't started or cancelling its query if it has.
+     *
+     * @return true if the job hadn't started and will never run
+     */
+    synchronized boolean requestCancel() {
+        cancelRequested = true;
+        if (status == Status.QUEUED) {
+            if (future != null) {
+                future.cancel(false);
+            }
+            return true;
+        }
+        cancelStatement();
+        return false;
+    }
+
+    private void cancelStatement() {
+        Statement running = statement;
+        if (running == null) {
+            return;
+        }
+        try {
+            running.cancel();
+        } catch (SQLException e) {
+            log.debug("Unable to cancel the query of report job {}: {}", id, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.report;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import org.sakaiproject.component.api.ServerConfigurationService;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs long reports in the background so they don't hold a request thread while the database works. The caller
+ * submits a report, gets a job id back straight away and polls for its status. Once it is done the result, spooled to
+ * a file in the format asked for, is downloaded.
+ * <p>
+ * Settings:
+ * <ul>
+ * <li><code>webservice.report.jobs.threads</code> reports running at once, each holding a database connection,
+ * default 2</li>
+ * <li><code>webservice.report.jobs.queue</code> reports waiting for a thread, more than this are turned away,
+ * default 20</li>
+ * <li><code>webservice.report.jobs.timeout</code> the most seconds a query may run for, default 3600, a named
+ * report uses its own timeout</li>
+ * <li><code>webservice.report.jobs.keep</code> the seconds a finished job and its result are kept for, default 3600</li>
+ * <li><code>webservice.report.jobs.dir</code> where results are spooled, default <code>webservices-reports/{serverId}</code>
+ * under sakai home, its report files are removed at startup</li>
+ * </ul>
+ */
+@Slf4j
+public class ReportJobService {
+
+    /**
+     * Writes a report's rows
+     */
+    public interface Task {
+        /**
+         * @param job the job, given the statement as the query starts so it can be cancelled, and checked between
+         *            rows so a cancelled job stops writing
+         * @return the number of rows written
+         */
+        long write(ReportJob job, Writer out) throws Exception;
+    }
+
+    /**
+     * The results spooled by {@link ReportJob#getFileName()}
+     */
+    private static final Pattern SPOOL_FILE = Pattern.compile("report-.+\\.(csv|json|xml)(\\.gz)?");
+
+    @Setter
+    private ServerConfigurationService serverConfigurationService;
+
+    @Setter
+    private int threads = 2;
+
+    @Setter
+    private int queue = 20;
+
+    @Setter
+    private int timeout = 3600;
+
+    @Setter
+    private int keep = 3600;
+
+    private File spoolDir;
+
+    private ThreadPoolExecutor runners;
+    private ScheduledExecutorService cleaner;
+
+    private final Map<String, ReportJob> jobs = new ConcurrentHashMap<>();
+
+    public void init() {
+        threads = Math.max(1, serverConfigurationService.getInt("webservice.report.jobs.threads", threads));
+        queue = Math.max(1, serverConfigurationService.getInt("webservice.report.jobs.queue", queue));
+        timeout = serverConfigurationService.getInt("webservice.report.jobs.timeout", timeout);
+        keep = serverConfigurationService.getInt("webservice.report.jobs.keep", keep);
+
+        String defaultDir = new File(new File(serverConfigurationService.getSakaiHomePath(), "webservices-reports"),
+                serverConfigurationService.getServerId()).getPath();
+        spoolDir = new File(serverConfigurationService.getString("webservice.report.jobs.dir", defaultDir));
+        if (!spoolDir.isDirectory() && !spoolDir.mkdirs()) {
+            log.warn("Unable to create web services report directory {}", spoolDir);
+        }
+        // Jobs don't survive a restart, so neither do their results, though anything else in the directory is left alone
+        File[] old = spoolDir.listFiles((dir, name) -> SPOOL_FILE.matcher(name).matches());
+        if (old != null) {
+            for (File file : old) {
+                if (file.isFile() && !file.delete()) {
+                    log.warn("Unable to remove old report job file {}", file);
+                }
+            }
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        runners = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue), r -> {
+            Thread t = new Thread(r, "webservices-report-job-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "webservices-report-job-cleaner");
+            t.setDaemon(true);
+            return t;
+        });
+        cleaner.scheduleWithFixedDelay(this::removeExpired, 1, 1, TimeUnit.MINUTES);
+
+        log.info("Web services report jobs threads={} queue={} timeout={}s keep={}s dir={}", threads, queue, timeout, keep, spoolDir);
+    }
+
+    public void destroy() {
+        if (cleaner != null) cleaner.shutdownNow();
+        if (runners != null) runners.shutdownNow();
+        jobs.values().forEach(ReportJob::requestCancel);
+        jobs.values().forEach(ReportJob::removeFile);
+    }
+
+    /**
+     * The most seconds a query run as a job may take, unless it is a named report with its own timeout.
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Queue a report to run in the background.
+     *
+     * @param ownerId     the id of the user asking for the report
+     * @param description the named report or query, shown in the job's status
+     * @param gzip        true to compress the result
+     * @return the queued job
+     * @throws RejectedExecutionException if there are already too many reports waiting
+     */
+    public ReportJob submit(String ownerId, String description, ReportFormat format, boolean gzip, Task task) {
+        ReportJob job = new ReportJob(UUID.randomUUID().toString(), ownerId, description, format, gzip, System.currentTimeMillis());
+        jobs.put(job.getId(), job);
+        try {
+            job.setFuture(runners.submit(() -> run(job, task)));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            log.warn("Turned away report job for {}, {} reports are already waiting", ownerId, queue);
+            throw new RejectedExecutionException("Too many reports are running, try again later");
+        }
+        log.info("Queued report job {} for {}: {}", job.getId(), ownerId, description);
+        return job;
+    }
+
+    public ReportJob getJob(String id) {
+        return (id != null) ? jobs.get(id) : null;
+    }
+
+    /**
+     * @return every job still running or recently finished, newest first
+     */
+    public List<ReportJob> getJobs() {
+        return jobs.values().stream()
+                .sorted(Comparator.comparingLong(ReportJob::getCreated).reversed())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Stop a job, cancelling its query in the database if it is running.
+     *
+     * @return false if there is no such job or it has already finished
+     */
+    public boolean cancel(String id) {
+        ReportJob job = getJob(id);
+        if (job == null || job.isFinished()) {
+            return false;
+        }
+        if (job.requestCancel()) {
+            finish(job, ReportJob.Status.CANCELLED, 0, null);
+        }
+        return true;
+    }
+
+    public int getRunningCount() {
+        return runners.getActiveCount();
+    }
+
+    public int getQueuedCount() {
+        return runners.getQueue().size();
+    }
+
+    private void run(ReportJob job, Task task) {
+        File file = new File(spoolDir, job.getFileName());
+        if (!job.markRunning(file, System.currentTimeMillis())) {
+            // cancelled while it was queued
+            return;
+        }
+
+        long rows = 0;
+        try (OutputStream spool = new FileOutputStream(file);
+             Writer out = new BufferedWriter(new OutputStreamWriter(job.isGzip() ? new GZIPOutputStream(spool) : spool, StandardCharsets.UTF_8))) {
+            rows = task.write(job, out);
+        } catch (Exception e) {
+            job.removeFile();
+            if (job.isCancelRequested()) {
+                finish(job, ReportJob.Status.CANCELLED, rows, null);
+            } else {
+                log.error("Report job {} failed: {}", job.getId(), e.getMessage(), e);
+                finish(job, ReportJob.Status.FAILED, rows, e.getClass().getName() + " : " + e.getMessage());
+            }
+            return;
+        }
+        if (job.isCancelRequested()) {
+            job.removeFile();
+            finish(job, ReportJob.Status.CANCELLED, rows, null);
+        } else {
+            finish(job, ReportJob.Status.COMPLETED, rows, null);
+        }
+    }
+
+    private void finish(ReportJob job, ReportJob.Status status, long rows, String error) {
+        job.markFinished(status, rows, error, System.currentTimeMillis());
+        log.info("Report job {} {}: rows={} in {}ms", job.getId(), status, rows,
+                (job.getStarted() > 0) ? job.getFinished() - job.getStarted() : 0);
+    }
+
+    private void removeExpired() {
+        long expired = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(keep);
+        for (ReportJob job : jobs.values()) {
+            if (job.isFinished() && job.getFinished() < expired) {
+                jobs.remove(job.getId());
+                job.removeFile();
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.report;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.sakaiproject.component.api.ServerConfigurationService;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The named reports that can be run through SakaiReport without sending SQL. They are set up in sakai.properties:
+ * <pre>
+ * webservice.report.reports=enrollments,logins
+ * webservice.report.reports.enrollments.sql=SELECT ... WHERE SITE_ID = ? AND CREATEDON &gt; ?
+ * webservice.report.reports.enrollments.params=siteId:string,since:date
+ * webservice.report.reports.enrollments.rows=5000
+ * webservice.report.reports.enrollments.timeout=60
+ * webservice.report.reports.enrollments.cache-ttl=300
+ * </pre>
+ * Each report's settings are under <code>webservice.report.reports.&lt;name&gt;.</code>, apart from the settings of
+ * the report service itself, so a report can have any name.
+ * The parameters are listed in the order of the <code>?</code> they are bound to, as <code>name:type</code> where the
+ * type is one of string, integer, long, double, boolean, date (yyyy-mm-dd) or timestamp (yyyy-mm-ddThh:mm:ss) and
+ * defaults to string. The rows default to <code>webservice.report.default-rows</code> and the timeout, in seconds, to
+ * <code>webservice.report.default-timeout</code>. When the {@link ReportCache} is enabled the results are kept for
+ * <code>cache-ttl</code> seconds, <code>webservice.report.cache.ttl</code> by default. Each report's SQL text never
+ * changes, so the database and the connection pool's statement cache can reuse its plan.
+ */
+@Slf4j
+public class ReportRegistry {
+
+    private static final String PREFIX = "webservice.report.";
+    private static final String REPORT_PREFIX = PREFIX + "reports.";
+
+    @Setter
+    private ServerConfigurationService serverConfigurationService;
+
+    @Setter
+    private int defaultRows = 200;
+
+    @Setter
+    private int defaultTimeout = 300;
+
+    private volatile Map<String, ReportDefinition> reports = Collections.emptyMap();
+
+    public void init() {
+        defaultRows = serverConfigurationService.getInt(PREFIX + "default-rows", defaultRows);
+        defaultTimeout = serverConfigurationService.getInt(PREFIX + "default-timeout", defaultTimeout);
+
+        Map<String, ReportDefinition> loaded = new LinkedHashMap<>();
+        for (String name : StringUtils.split(serverConfigurationService.getString(PREFIX + "reports", ""), ",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            try {
+                loaded.put(name, load(name));
+            } catch (IllegalArgumentException e) {
+                log.error("Unable to load report {}: {}", name, e.getMessage());
+            }
+        }
+        reports = Collections.unmodifiableMap(loaded);
+
+        log.info("Web services report registry loaded {} reports: {}", loaded.size(), loaded.keySet());
+    }
+
+    /**
+     * @return the report with the given name, or null if there is none
+     */
+    public ReportDefinition getReport(String name) {
+        return (name != null) ? reports.get(name) : null;
+    }
+
+    public Collection<ReportDefinition> getReports() {
+        return reports.values();
+    }
+
+    private ReportDefinition load(String name) {
+        String sql = StringUtils.trimToNull(serverConfigurationService.getString(REPORT_PREFIX + name + ".sql", null));
+        if (sql == null) {
+            throw new IllegalArgumentException("no " + REPORT_PREFIX + name + ".sql");
+        }
+
+        List<ReportDefinition.Param> params = new ArrayList<>();
+        for (String param : StringUtils.split(serverConfigurationService.getString(REPORT_PREFIX + name + ".params", ""), ",")) {
+            String paramName = StringUtils.substringBefore(param, ":").trim();
+            String paramType = StringUtils.defaultIfBlank(StringUtils.substringAfter(param, ":").trim(), "string");
+            if (paramName.isEmpty()) {
+                continue;
+            }
+            try {
+                params.add(new ReportDefinition.Param(paramName, ReportDefinition.ParamType.valueOf(paramType.toUpperCase())));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown type " + paramType + " for parameter " + paramName);
+            }
+        }
+
+        int placeholders = StringUtils.countMatches(sql, '?');
+        if (placeholders != params.size()) {
+            throw new IllegalArgumentException("the sql has " + placeholders + " parameters but " + params.size() + " are listed");
+        }
+
+        int rows = serverConfigurationService.getInt(REPORT_PREFIX + name + ".rows", defaultRows);
+        int timeout = serverConfigurationService.getInt(REPORT_PREFIX + name + ".timeout", defaultTimeout);
+        int cacheTtl = serverConfigurationService.getInt(REPORT_PREFIX + name + ".cache-ttl",
+                serverConfigurationService.getInt(PREFIX + "cache.ttl", 60));
+        return new ReportDefinition(name, sql, params, rows, timeout, cacheTtl);
+    }
+}
@@ -0,0 +1,519 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.report;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import org.json.JSONObject;
+import org.sakaiproject.webservices.XmlResponseWriter;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Writes the rows of a report to the response a row at a time as they are read from the result set, so memory use
+ * doesn't depend on how many rows there are.
+ * <p>
+ * The output is the same as SakaiReport has always returned: CSV quoted the way opencsv does it, a JSON array of an
+ * object per row as org.json writes it and <code>&lt;Results&gt;&lt;Row&gt;</code> XML, in every case without
+ * characters that aren't allowed in XML. Each value is escaped and stripped of those characters in one pass straight
+ * to the output, with no copy of it in between.
+ */
+@Slf4j
+public abstract class ReportWriter {
+
+    private static final int NVARCHAR = -9;
+    private static final int NCHAR = -15;
+    private static final int LONGNVARCHAR = -16;
+    private static final int NCLOB = 2011;
+    private static final int CLOBBUFFERSIZE = 2048;
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd-MMM-yyyy");
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("dd-MMM-yyyy HH:mm:ss");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private BooleanSupplier cancelled = () -> false;
+
+    /**
+     * Write every row of a result set.
+     *
+     * @return the number of rows written
+     */
+    public abstract long write(ResultSet rs, Writer out) throws SQLException, IOException;
+
+    /**
+     * Stop writing at the next row once <code>cancelled</code> is true, so a cancelled job doesn't go on reading rows
+     * the database has already sent.
+     */
+    public ReportWriter cancelWhen(BooleanSupplier cancelled) {
+        this.cancelled = cancelled;
+        return this;
+    }
+
+    /**
+     * @return true if there is another row to write and the report hasn't been cancelled
+     */
+    boolean next(ResultSet rs) throws SQLException {
+        return !cancelled.getAsBoolean() && rs.next();
+    }
+
+    public static ReportWriter forFormat(ReportFormat format) {
+        switch (format) {
+            case CSV:
+                return new CsvReportWriter(false);
+            case CSV_WITH_HEADER_ROW:
+                return new CsvReportWriter(true);
+            case JSON:
+                return new JsonReportWriter();
+            default:
+                return new XmlReportWriter();
+        }
+    }
+
+    private static class CsvReportWriter extends ReportWriter {
+        private final boolean includeHeaderRow;
+
+        CsvReportWriter(boolean includeHeaderRow) {
+            this.includeHeaderRow = includeHeaderRow;
+        }
+
+        @Override
+        public long write(ResultSet rs, Writer out) throws SQLException, IOException {
+            ResultSetMetaData rsmd = rs.getMetaData();
+            int numColumns = rsmd.getColumnCount();
+
+            if (includeHeaderRow) {
+                for (int i = 1; i < numColumns + 1; i++) {
+                    writeField(out, i, rsmd.getColumnLabel(i));
+                }
+                out.write('\n');
+            }
+
+            long rows = 0;
+            while (next(rs)) {
+                for (int i = 1; i < numColumns + 1; i++) {
+                    writeField(out, i, csvValue(rs, rsmd.getColumnType(i), i));
+                }
+                out.write('\n');
+                rows++;
+            }
+            out.flush();
+            return rows;
+        }
+
+        /**
+         * Write a field as opencsv's CSVWriter did, quoted with any quotes in it doubled, or nothing at all for null.
+         */
+        private void writeField(Writer out, int column, String value) throws IOException {
+            if (column > 1) {
+                out.write(',');
+            }
+            if (value == null) {
+                return;
+            }
+            out.write('"');
+            int length = value.length();
+            int from = 0;
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c == '"') {
+                    // the quote is written again with the rest of the value
+                    out.write(value, from, i - from + 1);
+                    from = i;
+                } else if (!XmlResponseWriter.isXmlCharacter(c)) {
+                    out.write(value, from, i - from);
+                    from = i + 1;
+                }
+            }
+            out.write(value, from, length - from);
+            out.write('"');
+        }
+
+        private String csvValue(ResultSet rs, int type, int i) throws SQLException {
+            switch (type) {
+                case Types.BIGINT:
+                    return String.valueOf(rs.getInt(i));
+                case Types.BOOLEAN:
+                    return String.valueOf(rs.getBoolean(i));
+                case Types.BLOB:
+                    return String.valueOf(rs.getBlob(i));
+                case Types.DOUBLE:
+                    return String.valueOf(rs.getDouble(i));
+                case Types.FLOAT:
+                    return String.valueOf(rs.getFloat(i));
+                case Types.INTEGER:
+                    return String.valueOf(rs.getInt(i));
+                case Types.LONGVARCHAR:
+                    return rs.getString(i);
+                case Types.NVARCHAR:
+                    return rs.getNString(i);
+                case Types.VARCHAR:
+                    return rs.getString(i);
+                case Types.TINYINT:
+                    return String.valueOf(rs.getInt(i));
+                case Types.SMALLINT:
+                    return String.valueOf(rs.getInt(i));
+                case Types.DATE:
+                    Date date = rs.getDate(i);
+                    return (date != null) ? date.toString() : null;
+                case Types.TIMESTAMP:
+                    Timestamp timestamp = rs.getTimestamp(i);
+                    return (timestamp != null) ? timestamp.toString() : null;
+                default:
+                    return rs.getString(i);
+            }
+        }
+    }
+
+    private static class JsonReportWriter extends ReportWriter {
+
+        @Override
+        public long write(ResultSet rs, Writer out) throws SQLException, IOException {
+            ResultSetMetaData rsmd = rs.getMetaData();
+            int numColumns = rsmd.getColumnCount();
+
+            // A JSONObject kept the last of several columns with the same label, so the earlier ones are left out
+            String[] labels = new String[numColumns + 1];
+            boolean[] shadowed = new boolean[numColumns + 1];
+            for (int i = 1; i < numColumns + 1; i++) {
+                labels[i] = rsmd.getColumnLabel(i);
+                for (int j = 1; j < i; j++) {
+                    if (labels[j].equals(labels[i])) {
+                        shadowed[j] = true;
+                    }
+                }
+            }
+
+            long rows = 0;
+            out.write('[');
+            while (next(rs)) {
+                if (rows > 0) {
+                    out.write(',');
+                }
+                out.write('{');
+                boolean first = true;
+                for (int i = 1; i < numColumns + 1; i++) {
+                    Object value = jsonValue(rs, rsmd.getColumnType(i), i);
+                    // as with JSONObject.put, a null value leaves the column out
+                    if (value == null || shadowed[i]) {
+                        continue;
+                    }
+                    if (!first) {
+                        out.write(',');
+                    }
+                    first = false;
+                    writeString(out, labels[i]);
+                    out.write(':');
+                    writeValue(out, value);
+                }
+                out.write('}');
+                rows++;
+            }
+            out.write(']');
+            out.flush();
+            return rows;
+        }
+
+        private Object jsonValue(ResultSet rs, int type, int i) throws SQLException {
+            switch (type) {
+                case Types.ARRAY:
+                    return rs.getArray(i);
+                case Types.BIGINT:
+                    return rs.getInt(i);
+                case Types.BOOLEAN:
+                    return rs.getBoolean(i);
+                case Types.BLOB:
+                    return rs.getBlob(i);
+                case Types.DOUBLE:
+                    return rs.getDouble(i);
+                case Types.FLOAT:
+                    return rs.getFloat(i);
+                case Types.INTEGER:
+                    return rs.getInt(i);
+                case Types.NVARCHAR:
+                    return rs.getNString(i);
+                case Types.VARCHAR:
+                    return rs.getString(i);
+                case Types.TINYINT:
+                    return rs.getInt(i);
+                case Types.SMALLINT:
+                    return rs.getInt(i);
+                case Types.DATE:
+                    return rs.getDate(i);
+                case Types.TIMESTAMP:
+                    return rs.getTimestamp(i);
+                default:
+                    return rs.getObject(i);
+            }
+        }
+
+        private void writeValue(Writer out, Object value) throws IOException {
+            if (value instanceof Number) {
+                out.write(JSONObject.numberToString((Number) value));
+            } else if (value instanceof Boolean) {
+                out.write(value.toString());
+            } else if (value.getClass().isArray() || value instanceof Collection || value instanceof Map) {
+                // eg a byte[] from getObject, written as org.json does as an array of numbers
+                out.write(JSONObject.valueToString(value));
+            } else {
+                writeString(out, value.toString());
+            }
+        }
+
+        /**
+         * Write a quoted string escaped as JSONObject.quote does, leaving out the characters that aren't allowed in XML
+         * and aren't escaped.
+         */
+        private void writeString(Writer out, String value) throws IOException {
+            out.write('"');
+            int length = value.length();
+            int from = 0;
+            char previous = 0;
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                String replacement = null;
+                switch (c) {
+                    case '"':
+                        replacement = "\\\"";
+                        break;
+                    case '\\':
+                        replacement = "\\\\";
+                        break;
+                    case '/':
+                        if (previous == '<') replacement = "\\/";
+                        break;
+                    case '\b':
+                        replacement = "\\b";
+                        break;
+                    case '\t':
+                        replacement = "\\t";
+                        break;
+                    case '\n':
+                        replacement = "\\n";
+                        break;
+                    case '\f':
+                        replacement = "\\f";
+                        break;
+                    case '\r':
+                        replacement = "\\r";
+                        break;
+                    default:
+                        if (c < ' ' || (c >= 0x80 && c < 0xa0) || (c >= 0x2000 && c < 0x2100)) {
+                            out.write(value, from, i - from);
+                            out.write("\\u");
+                            out.write(HEX[(c >> 12) & 0xf]);
+                            out.write(HEX[(c >> 8) & 0xf]);
+                            out.write(HEX[(c >> 4) & 0xf]);
+                            out.write(HEX[c & 0xf]);
+                            from = i + 1;
+                        } else if (!XmlResponseWriter.isXmlCharacter(c)) {
+                            replacement = "";
+                        }
+                }
+                previous = c;
+                if (replacement != null) {
+                    out.write(value, from, i - from);
+                    out.write(replacement);
+                    from = i + 1;
+                }
+            }
+            out.write(value, from, length - from);
+            out.write('"');
+        }
+    }
+
+    private static class XmlReportWriter extends ReportWriter {
+
+        @Override
+        public long write(ResultSet rs, Writer out) throws SQLException, IOException {
+            ResultSetMetaData rsmd = rs.getMetaData();
+            int colCount = rsmd.getColumnCount();
+            long[] rows = new long[1];
+
+            try {
+                XmlResponseWriter.write(out, xml -> {
+                    try {
+                        xml.stripInvalidCharacters();
+                        xml.start("Results");
+                        while (next(rs)) {
+                            xml.start("Row");
+                            for (int i = 1; i <= colCount; i++) {
+                                String value;
+                                try {
+                                    value = getColumnValue(rs, rsmd.getColumnType(i), i);
+                                } catch (IOException e) {
+                                    // A column that can't be read is left out of the row
+                                    log.error(e.getMessage(), e);
+                                    continue;
+                                }
+                                xml.element(rsmd.getColumnLabel(i), value);
+                            }
+                            xml.end();
+                            rows[0]++;
+                        }
+                        xml.end();
+                    } catch (SQLException e) {
+                        throw new ReadFailed(e);
+                    }
+                });
+            } catch (ReadFailed e) {
+                throw (SQLException) e.getCause();
+            }
+            return rows[0];
+        }
+
+        private String getColumnValue(ResultSet rs, int colType, int colIndex)
+                throws SQLException, IOException {
+            String value = "";
+            switch (colType) {
+                case Types.BIT:
+                case Types.JAVA_OBJECT:
+                    value = handleObject(rs.getObject(colIndex));
+                    break;
+                case Types.BOOLEAN:
+                    boolean b = rs.getBoolean(colIndex);
+                    value = Boolean.valueOf(b).toString();
+                    break;
+                case NCLOB: // todo : use rs.getNClob
+                case Types.CLOB:
+                    Clob c = rs.getClob(colIndex);
+                    if (c != null) {
+                        value = read(c);
+                    }
+                    break;
+                case Types.BIGINT:
+                    value = handleLong(rs, colIndex);
+                    break;
+                case Types.DECIMAL:
+                case Types.DOUBLE:
+                case Types.FLOAT:
+                case Types.REAL:
+                case Types.NUMERIC:
+                    value = handleBigDecimal(rs.getBigDecimal(colIndex));
+                    break;
+                case Types.INTEGER:
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                    value = handleInteger(rs, colIndex);
+                    break;
+                case Types.DATE:
+                    value = handleDate(rs, colIndex);
+                    break;
+                case Types.TIME:
+                    value = handleTime(rs.getTime(colIndex));
+                    break;
+                case Types.TIMESTAMP:
+                    value = handleTimestamp(rs.getTimestamp(colIndex));
+                    break;
+                case NVARCHAR: // todo : use rs.getNString
+                case NCHAR: // todo : use rs.getNString
+                case LONGNVARCHAR: // todo : use rs.getNString
+                case Types.LONGVARCHAR:
+                case Types.VARCHAR:
+                case Types.CHAR:
+                    value = rs.getString(colIndex);
+                    break;
+                case Types.VARBINARY:
+                case Types.BINARY:
+                    value = handleRaw(rs.getBytes(colIndex));
+                    break;
+                default:
+                    value = "";
+            }
+
+            if (value == null) {
+                value = "";
+            }
+
+            return value;
+        }
+
+        private String handleObject(Object obj) {
+            return obj == null ? "" : String.valueOf(obj);
+        }
+
+        private String handleBigDecimal(BigDecimal decimal) {
+            return decimal == null ? "" : decimal.toString();
+        }
+
+        private String handleLong(ResultSet rs, int columnIndex) throws SQLException {
+            long lv = rs.getLong(columnIndex);
+            return rs.wasNull() ? "" : Long.toString(lv);
+        }
+
+        private String handleInteger(ResultSet rs, int columnIndex) throws SQLException {
+            int i = rs.getInt(columnIndex);
+            return rs.wasNull() ? "" : Integer.toString(i);
+        }
+
+        private String handleDate(ResultSet rs, int columnIndex) throws SQLException {
+            Date date = rs.getDate(columnIndex);
+            return date == null ? null : DATE_FORMAT.format(date.toLocalDate());
+        }
+
+        private String handleTime(Time time) {
+            return time == null ? null : time.toString();
+        }
+
+        private String handleTimestamp(Timestamp timestamp) {
+            return timestamp == null ? null : TIMESTAMP_FORMAT.format(timestamp.toLocalDateTime());
+        }
+
+        private String handleRaw(byte[] bytes) {
+            if (bytes == null) return "";
+            char[] hex = new char[bytes.length * 2];
+            for (int i = 0; i < bytes.length; i++) {
+                hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+                hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+            }
+            return new String(hex);
+        }
+
+        private static String read(Clob c) throws SQLException, IOException {
+            StringBuilder sb = new StringBuilder((int) c.length());
+            Reader r = c.getCharacterStream();
+            char[] cbuf = new char[CLOBBUFFERSIZE];
+            int n;
+            while ((n = r.read(cbuf, 0, cbuf.length)) != -1) {
+                sb.append(cbuf, 0, n);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Carries a database error out of an XML body, which can only throw IOException
+     */
+    private static class ReadFailed extends IOException {
+        ReadFailed(SQLException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+}
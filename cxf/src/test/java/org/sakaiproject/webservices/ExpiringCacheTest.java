@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ExpiringCacheTest {
+
+    @Test
+    public void countsHitsAndMisses() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60);
+        assertNull(cache.get("a"));
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void dropsTheLeastRecentlyUsedWhenFull() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(2, 60);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    @Test
+    public void dropsExpiredValuesBeforeLiveOnes() throws Exception {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(2, 0);
+        cache.put("a", "1");
+        Thread.sleep(5);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void rejectedValueIsDropped() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60);
+        cache.put("a", "stale");
+        assertNull(cache.get("a", v -> !v.equals("stale")));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void invalidatesMatchingValues() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 60);
+        cache.put("a", "x");
+        cache.put("b", "y");
+        cache.put("c", "x");
+        assertEquals(2, cache.invalidateIf((k, v) -> v.equals("x")));
+        cache.invalidate("b");
+        cache.invalidate("missing");
+        assertEquals(0, cache.size());
+        assertEquals(3, cache.getInvalidations());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void sizeOfZeroHoldsNothing() {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(0, 60);
+        cache.put("a", "1");
+        assertNull(cache.get("a"));
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.user.api.User;
+import org.sakaiproject.user.api.UserDirectoryService;
+
+public class GradeableStudentCacheTest {
+
+    private static GradeableStudentCache.Roster roster(String... idsAndDisplayIds) {
+        TreeMap<String, String> sorted = new TreeMap<>();
+        for (int i = 0; i < idsAndDisplayIds.length; i += 2) {
+            sorted.put(idsAndDisplayIds[i], idsAndDisplayIds[i + 1]);
+        }
+        return GradeableStudentCache.Roster.of(sorted);
+    }
+
+    @Test
+    public void looksUpStudentsById() {
+        Map<String, String> students = roster("u3", "carol", "u1", "alice", "u2", "bob");
+        assertEquals(3, students.size());
+        assertEquals("alice", students.get("u1"));
+        assertEquals("bob", students.get("u2"));
+        assertEquals("carol", students.get("u3"));
+        assertTrue(students.containsKey("u2"));
+        assertFalse(students.containsKey("u4"));
+        assertNull(students.get("u4"));
+        assertNull(students.get(42));
+        assertFalse(students.containsKey(null));
+    }
+
+    @Test
+    public void keepsAMissingDisplayId() {
+        Map<String, String> students = roster("u1", null);
+        assertTrue(students.containsKey("u1"));
+        assertNull(students.get("u1"));
+    }
+
+    @Test
+    public void iteratesInIdOrder() {
+        Map<String, String> students = roster("b", "2", "c", "3", "a", "1");
+        List<String> ids = new ArrayList<>();
+        List<String> displayIds = new ArrayList<>();
+        for (Map.Entry<String, String> entry : students.entrySet()) {
+            ids.add(entry.getKey());
+            displayIds.add(entry.getValue());
+        }
+        assertEquals(3, students.entrySet().size());
+        assertEquals("[a, b, c]", ids.toString());
+        assertEquals("[1, 2, 3]", displayIds.toString());
+        assertEquals("[a, b, c]", new ArrayList<>(students.keySet()).toString());
+    }
+
+    @Test
+    public void equalsAnyMapWithTheSameStudents() {
+        Map<String, String> expected = new HashMap<>();
+        expected.put("u1", "alice");
+        expected.put("u2", "bob");
+        assertEquals(expected, roster("u1", "alice", "u2", "bob"));
+        assertEquals(expected.hashCode(), roster("u2", "bob", "u1", "alice").hashCode());
+        assertTrue(roster().isEmpty());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void cannotBeChanged() {
+        roster("u1", "alice").put("u2", "bob");
+    }
+
+    @Test
+    public void userUpdateDropsEveryRosterTheUserIsIn() {
+        Map<String, Set<String>> members = new HashMap<>();
+        members.put("site1", new HashSet<>(Arrays.asList("u1", "u2")));
+        members.put("site2", new HashSet<>(Arrays.asList("u2")));
+        members.put("site3", new HashSet<>(Arrays.asList("u3")));
+        Map<String, Integer> loads = new HashMap<>();
+
+        GradeableStudentCache cache = new GradeableStudentCache();
+        cache.setSiteService((SiteService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { SiteService.class }, (proxy, method, args) -> {
+                    String siteId = (String) args[0];
+                    loads.merge(siteId, 1, Integer::sum);
+                    return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Site.class },
+                            (site, m, a) -> members.get(siteId));
+                }));
+        cache.setUserDirectoryService((UserDirectoryService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { UserDirectoryService.class }, (proxy, method, args) -> {
+                    List<User> users = new ArrayList<>();
+                    for (Object id : (Collection<?>) args[0]) {
+                        users.add((User) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { User.class },
+                                (user, m, a) -> m.getName().equals("getId") ? id : id + "-eid"));
+                    }
+                    return users;
+                }));
+        cache.setEventTrackingService((EventTrackingService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { EventTrackingService.class }, (proxy, method, args) -> null));
+        // every setting is left at the value it was given
+        cache.setServerConfigurationService((ServerConfigurationService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { ServerConfigurationService.class }, (proxy, method, args) -> args[1]));
+        cache.init();
+
+        assertEquals("u2-eid", cache.getStudents("site1").get("u2"));
+        cache.getStudents("site2");
+        cache.getStudents("site3");
+        cache.update(null, Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Event.class },
+                (proxy, method, args) -> method.getName().equals("getEvent") ? UserDirectoryService.SECURE_UPDATE_USER_ANY : "/user/u2"));
+        assertEquals(1, cache.getCachedCount());
+        assertEquals(2, cache.getInvalidations());
+
+        cache.getStudents("site1");
+        cache.getStudents("site3");
+        assertEquals(2, (int) loads.get("site1"));
+        assertEquals(1, (int) loads.get("site3"));
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.webservices.db.SqlExecutor;
+
+public class ProviderIdIndexTest {
+
+    private final Map<String, Set<String>> byProvider = new ConcurrentHashMap<>();
+    private final Map<String, String[]> providers = new ConcurrentHashMap<>();
+
+    // The provider id of each realm, how often the index was built and whether the database is failing
+    private final Map<String, String> realms = new ConcurrentHashMap<>();
+    private final AtomicInteger builds = new AtomicInteger();
+    private volatile boolean failing;
+    private volatile boolean failingBuilds;
+    private ProviderIdIndex index;
+
+    @After
+    public void tearDown() {
+        if (index != null) {
+            index.destroy();
+        }
+    }
+
+    private void init(int maxFailures) {
+        index = new ProviderIdIndex();
+        index.setMaxFailures(maxFailures);
+        index.setSqlExecutor(new SqlExecutor() {
+            @Override
+            public void query(String sql, RowCallback callback, Object... params) throws SQLException {
+                builds.incrementAndGet();
+                if (failingBuilds) {
+                    throw new SQLException("down");
+                }
+            }
+
+            @Override
+            public <T> T queryForObject(String sql, RowMapper<T> mapper, Object... params) throws SQLException {
+                if (failing) {
+                    throw new SQLException("down");
+                }
+                String providerId = realms.get(params[0]);
+                return mapper.map((ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class<?>[] { ResultSet.class }, (proxy, method, args) -> providerId));
+            }
+        });
+        index.setEventTrackingService((EventTrackingService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { EventTrackingService.class }, (proxy, method, args) -> null));
+        // every setting is left at the value it was given
+        index.setServerConfigurationService((ServerConfigurationService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { ServerConfigurationService.class }, (proxy, method, args) -> args[1]));
+        index.init();
+    }
+
+    // The index is built on a background thread
+    private void awaitReady() throws InterruptedException {
+        for (int i = 0; i < 500 && !index.isReady(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(index.isReady());
+    }
+
+    @Test
+    public void splitsOnPlusAndTrims() {
+        assertArrayEquals(new String[] {"2024-FA-MATH101", "2024-FA-MATH102"}, ProviderIdIndex.split(" 2024-FA-MATH101 + 2024-FA-MATH102 "));
+        assertArrayEquals(new String[] {"one"}, ProviderIdIndex.split("one"));
+        assertArrayEquals(new String[] {"a", "b"}, ProviderIdIndex.split("a++b+"));
+        assertEquals(0, ProviderIdIndex.split(null).length);
+        assertEquals(0, ProviderIdIndex.split("  ").length);
+    }
+
+    @Test
+    public void indexesASiteUnderEachId() {
+        ProviderIdIndex.put(byProvider, providers, "site1", "a+b");
+        ProviderIdIndex.put(byProvider, providers, "site2", "b");
+        assertEquals(1, byProvider.get("a").size());
+        assertTrue(byProvider.get("a").contains("site1"));
+        assertEquals(2, byProvider.get("b").size());
+        assertArrayEquals(new String[] {"a", "b"}, providers.get("site1"));
+    }
+
+    @Test
+    public void replacesTheIdsOfASite() {
+        ProviderIdIndex.put(byProvider, providers, "site1", "a+b");
+        ProviderIdIndex.put(byProvider, providers, "site1", "b+c");
+        assertNull(byProvider.get("a"));
+        assertTrue(byProvider.get("b").contains("site1"));
+        assertTrue(byProvider.get("c").contains("site1"));
+        assertArrayEquals(new String[] {"b", "c"}, providers.get("site1"));
+    }
+
+    @Test
+    public void removesASiteWithNoProvider() {
+        ProviderIdIndex.put(byProvider, providers, "site1", "a");
+        ProviderIdIndex.put(byProvider, providers, "site2", "a");
+        ProviderIdIndex.put(byProvider, providers, "site1", null);
+        assertFalse(providers.containsKey("site1"));
+        assertEquals(1, byProvider.get("a").size());
+        ProviderIdIndex.put(byProvider, providers, "site2", " ");
+        assertTrue(byProvider.isEmpty());
+        assertTrue(providers.isEmpty());
+    }
+
+    @Test
+    public void providesMatchesWholeIdsOnly() {
+        assertTrue(ProviderIdIndex.provides("MATH101", "MATH101"));
+        assertTrue(ProviderIdIndex.provides("MATH101+MATH102", "MATH102"));
+        assertTrue(ProviderIdIndex.provides("MATH101+MATH102", "MATH102+MATH101"));
+        // a LIKE '%MATH10%' finds these, the index doesn't
+        assertFalse(ProviderIdIndex.provides("MATH101", "MATH10"));
+        assertFalse(ProviderIdIndex.provides("XMATH101", "MATH101"));
+        assertFalse(ProviderIdIndex.provides("MATH101", "MATH101+MATH102"));
+        assertFalse(ProviderIdIndex.provides(null, "MATH101"));
+        assertFalse(ProviderIdIndex.provides("MATH101", ""));
+    }
+
+    @Test
+    public void onlySiteRealmsAreIndexed() {
+        assertEquals("abc", ProviderIdIndex.siteId("/site/abc"));
+        assertNull(ProviderIdIndex.siteId("/site/abc/group/def"));
+        assertNull(ProviderIdIndex.siteId("/content/abc"));
+        assertNull(ProviderIdIndex.siteId(null));
+    }
+
+    @Test
+    public void failedReadGoesToTheDatabaseUntilItIsRetried() throws Exception {
+        init(3);
+        awaitReady();
+        realms.put("/site/s1", "p1");
+        failing = true;
+        index.refresh("s1");
+        assertNull(index.getSites("p1"));
+        assertTrue(index.isReady());
+
+        failing = false;
+        index.retryFailed();
+        assertEquals(Collections.singleton("s1"), index.getSites("p1"));
+        assertEquals(1, builds.get());
+    }
+
+    @Test
+    public void rebuildsOnlyAfterRepeatedFailures() throws Exception {
+        init(3);
+        awaitReady();
+        failing = true;
+        index.refresh("s1");
+        index.refresh("s2");
+        assertEquals(1, builds.get());
+
+        index.refresh("s3");
+        awaitReady();
+        assertEquals(2, builds.get());
+        // the build read every site again
+        assertNotNull(index.getSites("p1"));
+    }
+
+    @Test
+    public void successfulReadResetsTheFailures() throws Exception {
+        init(2);
+        awaitReady();
+        failing = true;
+        index.refresh("s1");
+        failing = false;
+        index.refresh("s2");
+        failing = true;
+        index.refresh("s1");
+        assertEquals(1, builds.get());
+        assertNull(index.getSites("p1"));
+    }
+
+    @Test
+    public void failedBuildIsTriedAgain() throws Exception {
+        failingBuilds = true;
+        init(3);
+        for (int i = 0; i < 500 && builds.get() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(index.isReady());
+
+        failingBuilds = false;
+        for (int i = 0; i < 500 && !index.isReady(); i++) {
+            index.retryFailed();
+            Thread.sleep(10);
+        }
+        assertTrue(index.isReady());
+        assertTrue(builds.get() >= 2);
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
+
+public class SessionCacheTest {
+
+    private SessionCache cache;
+
+    // The sessions in the store, by id, and how often each was looked up and marked active
+    private final Map<String, Session> store = new HashMap<>();
+    private final Map<String, Integer> lookups = new HashMap<>();
+    private final Map<String, Integer> activations = new HashMap<>();
+    private final Map<String, Long> lastAccessed = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        cache = new SessionCache();
+        cache.setSessionManager((SessionManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { SessionManager.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("getSession")) {
+                        lookups.merge((String) args[0], 1, Integer::sum);
+                        return store.get(args[0]);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }));
+    }
+
+    private void init(int ttl, int size, int activeInterval) {
+        cache.setTtl(ttl);
+        cache.setSize(size);
+        cache.setActiveInterval(activeInterval);
+        // every setting is left at the value it was given
+        cache.setServerConfigurationService((ServerConfigurationService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { ServerConfigurationService.class }, (proxy, method, args) -> args[1]));
+        cache.init();
+    }
+
+    private Session session(String id, int maxInactive) {
+        lastAccessed.put(id, 0L);
+        Session session = (Session) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { Session.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId":
+                            return id;
+                        case "getMaxInactiveInterval":
+                            return maxInactive;
+                        case "getLastAccessedTime":
+                            return lastAccessed.get(id);
+                        case "setActive":
+                            activations.merge(id, 1, Integer::sum);
+                            lastAccessed.put(id, System.currentTimeMillis());
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        store.put(id, session);
+        return session;
+    }
+
+    @Test
+    public void secondLookupIsAHit() {
+        init(10, 10, 60);
+        Session s = session("a", 0);
+        assertSame(s, cache.getActiveSession("a"));
+        assertSame(s, cache.getActiveSession("a"));
+        assertEquals(1, (int) lookups.get("a"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getCachedCount());
+    }
+
+    @Test
+    public void unknownSessionIsNotCached() {
+        init(10, 10, 60);
+        assertNull(cache.getActiveSession("missing"));
+        assertNull(cache.getActiveSession("missing"));
+        assertEquals(2, (int) lookups.get("missing"));
+        assertEquals(0, cache.getCachedCount());
+    }
+
+    @Test
+    public void expiredEntryIsLookedUpAgain() throws Exception {
+        init(0, 10, 60);
+        session("a", 0);
+        cache.getActiveSession("a");
+        Thread.sleep(5);
+        cache.getActiveSession("a");
+        assertEquals(2, (int) lookups.get("a"));
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void invalidatedSessionIsLookedUpAgain() {
+        init(10, 10, 60);
+        session("a", 0);
+        cache.getActiveSession("a");
+        cache.invalidate("a");
+        assertEquals(0, cache.getCachedCount());
+        store.remove("a");
+        assertNull(cache.getActiveSession("a"));
+        assertEquals(2, (int) lookups.get("a"));
+    }
+
+    @Test
+    public void sessionPastItsInactiveIntervalIsLookedUpAgain() {
+        init(10, 10, 3600);
+        session("a", 1);
+        cache.getActiveSession("a");
+        lastAccessed.put("a", System.currentTimeMillis() - 5000);
+        cache.getActiveSession("a");
+        assertEquals(2, (int) lookups.get("a"));
+    }
+
+    @Test
+    public void activeAtMostOnceAnIntervalEvenWhenEntriesExpire() throws Exception {
+        init(0, 10, 60);
+        session("a", 0);
+        for (int i = 0; i < 3; i++) {
+            cache.getActiveSession("a");
+            Thread.sleep(2);
+        }
+        assertEquals(3, (int) lookups.get("a"));
+        assertEquals(1, (int) activations.get("a"));
+    }
+
+    @Test
+    public void fullCacheDropsTheLeastRecentlyUsed() {
+        init(10, 2, 60);
+        session("a", 0);
+        session("b", 0);
+        session("c", 0);
+        cache.getActiveSession("a");
+        cache.getActiveSession("b");
+        cache.getActiveSession("a");
+        cache.getActiveSession("c");
+        assertEquals(2, cache.getCachedCount());
+
+        cache.getActiveSession("a");
+        cache.getActiveSession("c");
+        cache.getActiveSession("b");
+        assertEquals(1, (int) lookups.get("a"));
+        assertEquals(1, (int) lookups.get("c"));
+        assertEquals(2, (int) lookups.get("b"));
+    }
+
+    @Test
+    public void disabledCacheAlwaysLooksUp() {
+        init(10, 10, 60);
+        cache.setEnabled(false);
+        session("a", 0);
+        cache.getActiveSession("a");
+        cache.getActiveSession("a");
+        assertEquals(2, (int) lookups.get("a"));
+        assertEquals(2, (int) activations.get("a"));
+    }
+}
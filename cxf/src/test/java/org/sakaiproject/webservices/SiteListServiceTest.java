@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.site.api.SiteService.SelectionType;
+import org.sakaiproject.tool.api.SessionManager;
+
+public class SiteListServiceTest {
+
+    private SiteListService service;
+
+    // Each user's sites in title order, and how often they were loaded
+    private final Map<String, List<Site>> accessSites = new HashMap<>();
+    private final Map<String, List<Site>> updateSites = new HashMap<>();
+    private final Map<String, Integer> loads = new HashMap<>();
+    private String currentUser;
+
+    @Before
+    public void setUp() {
+        service = new SiteListService();
+        service.setSessionManager((SessionManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { SessionManager.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("getCurrentSessionUserId")) {
+                        return currentUser;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }));
+        service.setSiteService((SiteService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { SiteService.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("getSites")) {
+                        if (args[0] == SelectionType.ACCESS) {
+                            loads.merge(currentUser, 1, Integer::sum);
+                            return accessSites.getOrDefault(currentUser, new ArrayList<>());
+                        }
+                        return updateSites.getOrDefault(currentUser, new ArrayList<>());
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }));
+        service.setEventTrackingService((EventTrackingService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { EventTrackingService.class }, (proxy, method, args) -> null));
+    }
+
+    private void init(int size) {
+        service.setSize(size);
+        // every setting is left at the value it was given
+        service.setServerConfigurationService((ServerConfigurationService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { ServerConfigurationService.class }, (proxy, method, args) -> args[1]));
+        service.init();
+    }
+
+    private static Site site(String id, String title) {
+        return (Site) Proxy.newProxyInstance(SiteListServiceTest.class.getClassLoader(),
+                new Class<?>[] { Site.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId":
+                            return id;
+                        case "getTitle":
+                            return title;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static Event event(String event, String resource, String userId) {
+        return (Event) Proxy.newProxyInstance(SiteListServiceTest.class.getClassLoader(),
+                new Class<?>[] { Event.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getEvent":
+                            return event;
+                        case "getResource":
+                            return resource;
+                        case "getUserId":
+                            return userId;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private List<String> ids() {
+        List<String> ids = new ArrayList<>();
+        for (SiteListService.SiteSummary site : service.getSitesForCurrentUser(null)) {
+            ids.add(site.getId());
+        }
+        return ids;
+    }
+
+    private void member(String userId) {
+        List<Site> access = new ArrayList<>();
+        access.add(site("a", "Art"));
+        access.add(site("b", "Biology"));
+        access.add(site("c", "Chemistry"));
+        List<Site> update = new ArrayList<>();
+        update.add(site("b", "Biology"));
+        update.add(site("d", "Drama"));
+        accessSites.put(userId, access);
+        updateSites.put(userId, update);
+    }
+
+    @Test
+    public void accessOnlySitesComeBeforeSitesTheUserCanUpdate() {
+        init(10);
+        currentUser = "u1";
+        member("u1");
+        assertEquals("[a, c, b, d]", ids().toString());
+    }
+
+    @Test
+    public void secondLookupIsAHit() {
+        init(10);
+        currentUser = "u1";
+        member("u1");
+        ids();
+        assertEquals("[a, c, b, d]", ids().toString());
+        assertEquals(1, (int) loads.get("u1"));
+        assertEquals(1, service.getHits());
+        assertEquals(1, service.getMisses());
+    }
+
+    @Test
+    public void changeToASiteDropsEveryListContainingIt() {
+        init(10);
+        member("u1");
+        member("u2");
+        currentUser = "u1";
+        ids();
+        currentUser = "u2";
+        ids();
+
+        service.update(null, event(SiteService.SECURE_UPDATE_SITE, "/site/z", "admin"));
+        assertEquals(2, service.getCachedCount());
+
+        service.update(null, event(SiteService.SECURE_UPDATE_SITE_MEMBERSHIP, "/site/c/group/g1", "admin"));
+        assertEquals(0, service.getCachedCount());
+        assertEquals(2, service.getInvalidations());
+        ids();
+        assertEquals(2, (int) loads.get("u2"));
+    }
+
+    @Test
+    public void usersOwnChangeDropsTheirList() {
+        init(10);
+        member("u1");
+        currentUser = "u1";
+        ids();
+        service.update(null, event(AuthzGroupService.SECURE_UPDATE_AUTHZ_GROUP, "/realm//site/z", "u1"));
+        ids();
+        assertEquals(2, (int) loads.get("u1"));
+    }
+
+    @Test
+    public void otherEventsAreIgnored() {
+        init(10);
+        member("u1");
+        currentUser = "u1";
+        ids();
+        service.update(null, event("content.read", "/site/a", "u1"));
+        service.update(null, "not an event");
+        ids();
+        assertEquals(1, (int) loads.get("u1"));
+    }
+
+    @Test
+    public void fullCacheDropsTheLeastRecentlyUsed() {
+        init(2);
+        for (String userId : new String[] { "u1", "u2", "u1", "u3", "u1", "u2" }) {
+            member(userId);
+            currentUser = userId;
+            ids();
+        }
+        assertEquals(1, (int) loads.get("u1"));
+        assertEquals(2, (int) loads.get("u2"));
+        assertEquals(2, service.getCachedCount());
+        assertEquals(2, service.getEvictions());
+    }
+
+    @Test
+    public void disabledCacheAlwaysLoads() {
+        service.setEnabled(false);
+        init(10);
+        member("u1");
+        currentUser = "u1";
+        ids();
+        ids();
+        assertEquals(2, (int) loads.get("u1"));
+    }
+
+    @Test
+    public void findsTheSiteOfAReference() {
+        assertEquals("a", SiteListService.siteIdFromReference("/site/a"));
+        assertEquals("a", SiteListService.siteIdFromReference("/site/a/group/g1"));
+        assertEquals("a", SiteListService.siteIdFromReference("/realm//site/a"));
+        assertNull(SiteListService.siteIdFromReference("/realm//user/a"));
+        assertNull(SiteListService.siteIdFromReference(null));
+    }
+}
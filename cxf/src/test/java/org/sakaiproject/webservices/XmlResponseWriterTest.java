@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class XmlResponseWriterTest {
+
+    private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+    @Test
+    public void emptyElementsAreShortForm() {
+        String xml = XmlResponseWriter.writeToString(w -> w.start("list").element("item", null).element("item", "").end());
+        assertEquals(DECLARATION + "<list><item/><item/></list>", xml);
+    }
+
+    @Test
+    public void unclosedElementsAreClosedAtTheEnd() {
+        String xml = XmlResponseWriter.writeToString(w -> w.start("a").start("b").text("x"));
+        assertEquals(DECLARATION + "<a><b>x</b></a>", xml);
+    }
+
+    @Test
+    public void textEscapesMarkupButNotQuotes() {
+        String xml = XmlResponseWriter.writeToString(w -> w.element("t", "a&b<c>d\"e'f"));
+        assertEquals(DECLARATION + "<t>a&amp;b&lt;c&gt;d\"e'f</t>", xml);
+    }
+
+    @Test
+    public void textEscapesControlCharacters() {
+        String xml = XmlResponseWriter.writeToString(w -> w.element("t", "a\tb\nc\u0001d\u0085e"));
+        assertEquals(DECLARATION + "<t>a\tb\nc&#1;d&#133;e</t>", xml);
+    }
+
+    @Test
+    public void invalidCharactersCanBeStrippedInsteadOfEscaped() {
+        String xml = XmlResponseWriter.writeToString(w -> w.stripInvalidCharacters().element("t", "a\u0001b\uffffc&\u0085\r"));
+        assertEquals(DECLARATION + "<t>abc&amp;&#133;&#13;</t>", xml);
+    }
+
+    @Test
+    public void charactersOutsideTheBmpAreReferences() {
+        String xml = XmlResponseWriter.writeToString(w -> w.element("t", "x😀y"));
+        assertEquals(DECLARATION + "<t>x&#128512;y</t>", xml);
+    }
+
+    @Test
+    public void attributesAreWrittenInOrderAndEscaped() {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        attributes.put("b", "1\"2");
+        attributes.put("a", "x\ty\nz&");
+        attributes.put("c", null);
+        String xml = XmlResponseWriter.writeToString(w -> w.start("e", attributes).end());
+        assertEquals(DECLARATION + "<e b=\"1&quot;2\" a=\"x&#9;y&#10;z&amp;\" c=\"\"/>", xml);
+    }
+
+    @Test
+    public void literalIsWrittenAsGivenWithoutDeclaration() {
+        assertEquals("<list/>", XmlResponseWriter.writeToString(XmlResponseWriter.literal("<list/>")));
+    }
+
+    @Test
+    public void literalCanBeWrittenInsideAnotherResponse() throws Exception {
+        StringWriter out = new StringWriter();
+        XmlResponseWriter.write(out, w -> {
+            w.start("wrapper");
+            XmlResponseWriter.literal("<exception/>").write(w);
+        });
+        assertEquals(DECLARATION + "<wrapper><exception/></wrapper>", out.toString());
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.interceptor;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class AddressTrieTest {
+
+    private static String match(AddressTrie trie, String address) {
+        return trie.match(AddressTrie.parse(address));
+    }
+
+    @Test
+    public void matchesIpv4Networks() {
+        AddressTrie trie = new AddressTrie();
+        assertTrue(trie.add("10.0.0.0/8"));
+        assertTrue(trie.add("192.168.1.0/24"));
+        assertEquals("10.0.0.0/8", match(trie, "10.255.1.2"));
+        assertEquals("192.168.1.0/24", match(trie, "192.168.1.200"));
+        assertNull(match(trie, "192.168.2.1"));
+        assertNull(match(trie, "11.0.0.1"));
+        assertEquals(2, trie.size());
+    }
+
+    @Test
+    public void singleAddressIsA32() {
+        AddressTrie trie = new AddressTrie();
+        assertTrue(trie.add("127.0.0.1"));
+        assertTrue(trie.add("10.1.2.3/32"));
+        assertEquals("127.0.0.1", match(trie, "127.0.0.1"));
+        assertEquals("10.1.2.3/32", match(trie, "10.1.2.3"));
+        assertNull(match(trie, "127.0.0.2"));
+        assertNull(match(trie, "10.1.2.4"));
+    }
+
+    @Test
+    public void zeroBitsMatchesEverything() {
+        AddressTrie trie = new AddressTrie();
+        assertTrue(trie.add("0.0.0.0/0"));
+        assertEquals("0.0.0.0/0", match(trie, "1.2.3.4"));
+        assertEquals("0.0.0.0/0", match(trie, "255.255.255.255"));
+        // IPv4 networks say nothing about IPv6 addresses
+        assertNull(match(trie, "2001:db8::1"));
+
+        AddressTrie v6 = new AddressTrie();
+        assertTrue(v6.add("::/0"));
+        assertEquals("::/0", match(v6, "2001:db8::1"));
+        assertNull(match(v6, "1.2.3.4"));
+    }
+
+    @Test
+    public void matchesIpv6Networks() {
+        AddressTrie trie = new AddressTrie();
+        assertTrue(trie.add("2001:db8::/32"));
+        assertTrue(trie.add("::1"));
+        assertTrue(trie.add("[fe80::1]/128"));
+        assertEquals("2001:db8::/32", match(trie, "2001:db8:1:2::5"));
+        assertEquals("2001:db8::/32", match(trie, "[2001:DB8::]"));
+        assertEquals("::1", match(trie, "0:0:0:0:0:0:0:1"));
+        assertEquals("[fe80::1]/128", match(trie, "fe80::1%eth0"));
+        assertNull(match(trie, "2001:db9::1"));
+        assertNull(match(trie, "fe80::2"));
+    }
+
+    @Test
+    public void mappedAddressesMatchIpv4Networks() {
+        AddressTrie trie = new AddressTrie();
+        assertTrue(trie.add("172.16.0.0/12"));
+        assertEquals("172.16.0.0/12", match(trie, "::ffff:172.20.1.1"));
+        assertNull(match(trie, "::ffff:172.32.0.1"));
+    }
+
+    @Test
+    public void mappedNetworksAreIpv4Networks() {
+        AddressTrie trie = new AddressTrie();
+        assertTrue(trie.add("::ffff:10.0.0.0/104"));
+        assertTrue(trie.add("::ffff:192.168.1.1"));
+        assertTrue(trie.add("::ffff:0:0/96"));
+        assertEquals(3, trie.size());
+
+        AddressTrie ten = new AddressTrie();
+        assertTrue(ten.add("::ffff:10.0.0.0/104"));
+        assertEquals("::ffff:10.0.0.0/104", match(ten, "10.9.8.7"));
+        assertEquals("::ffff:10.0.0.0/104", match(ten, "::ffff:10.9.8.7"));
+        assertNull(match(ten, "11.0.0.1"));
+
+        AddressTrie all = new AddressTrie();
+        assertTrue(all.add("::ffff:0:0/96"));
+        assertEquals("::ffff:0:0/96", match(all, "8.8.8.8"));
+        assertNull(match(all, "2001:db8::1"));
+    }
+
+    @Test
+    public void returnsTheShortestMatchingNetwork() {
+        AddressTrie trie = new AddressTrie();
+        assertTrue(trie.add("10.1.0.0/16"));
+        assertTrue(trie.add("10.0.0.0/8"));
+        assertEquals("10.0.0.0/8", match(trie, "10.1.2.3"));
+    }
+
+    @Test
+    public void rejectsEntriesThatAreNotNetworks() {
+        AddressTrie trie = new AddressTrie();
+        assertFalse(trie.add("localhost"));
+        assertFalse(trie.add("127\\.0\\.0\\.1"));
+        assertFalse(trie.add("10\\.0\\..*"));
+        assertFalse(trie.add("256.0.0.1"));
+        assertFalse(trie.add("10.0.0.0/33"));
+        assertFalse(trie.add("10.0.0.0/x"));
+        assertFalse(trie.add("2001:db8::/129"));
+        assertFalse(trie.add("::ffff:10.0.0.0/64"));
+        assertTrue(trie.isEmpty());
+    }
+
+    @Test
+    public void parsesWithoutLookingUpNames() {
+        assertNull(AddressTrie.parse("localhost"));
+        assertNull(AddressTrie.parse("example.com"));
+        assertNull(AddressTrie.parse(null));
+        assertArrayEquals(new byte[] {127, 0, 0, 1}, AddressTrie.parse("127.0.0.1"));
+        assertEquals(16, AddressTrie.parse("::1").length);
+        assertEquals(4, AddressTrie.parse("::ffff:127.0.0.1").length);
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.interceptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesHaveABucketEach() {
+        for (int v = 0; v < 16; v++) {
+            assertEquals(v, LatencyHistogram.index(v));
+            assertEquals(v, LatencyHistogram.highestInBucket(v));
+        }
+    }
+
+    @Test
+    public void bucketsAreOrderedAndWithinAnEighth() {
+        int last = -1;
+        for (long v = 0; v < 1_000_000; v += (v < 1000) ? 1 : 997) {
+            int index = LatencyHistogram.index(v);
+            assertTrue("index went backwards at " + v, index >= last);
+            last = index;
+
+            long highest = LatencyHistogram.highestInBucket(index);
+            assertTrue("bucket of " + v + " ends at " + highest, highest >= v);
+            assertTrue("bucket of " + v + " ends too far at " + highest, highest - v <= v / 8);
+        }
+    }
+
+    @Test
+    public void bucketBoundariesAreExact() {
+        // 16 - 17 is the first two wide bucket, 128 - 143 the first at 2^7
+        assertEquals(LatencyHistogram.index(16), LatencyHistogram.index(17));
+        assertTrue(LatencyHistogram.index(18) > LatencyHistogram.index(17));
+        assertEquals(17, LatencyHistogram.highestInBucket(LatencyHistogram.index(16)));
+        assertEquals(143, LatencyHistogram.highestInBucket(LatencyHistogram.index(128)));
+        assertEquals(LatencyHistogram.index(128), LatencyHistogram.index(143));
+        assertTrue(LatencyHistogram.index(144) > LatencyHistogram.index(143));
+    }
+
+    @Test
+    public void hugeValuesShareTheLastBucket() {
+        assertEquals(LatencyHistogram.index(1L << 41), LatencyHistogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0.0, histogram.getMean(), 0.0);
+    }
+
+    @Test
+    public void percentilesAreWithinTheirBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int v = 1; v <= 100; v++) {
+            histogram.record(v);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50.5, histogram.getMean(), 0.0001);
+
+        long p50 = histogram.getPercentile(50);
+        assertTrue("p50 was " + p50, p50 >= 50 && p50 <= 56);
+        long p99 = histogram.getPercentile(99);
+        assertTrue("p99 was " + p99, p99 >= 99 && p99 <= 100);
+        assertEquals(100, histogram.getPercentile(100));
+        assertEquals(1, histogram.getPercentile(0));
+    }
+
+    @Test
+    public void percentileIsNeverMoreThanTheMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1L << 50);
+        assertEquals(1L << 50, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+}
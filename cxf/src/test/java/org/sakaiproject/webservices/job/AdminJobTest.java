@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.job;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class AdminJobTest {
+
+    private static AdminJob roundTrip(AdminJob job) throws Exception {
+        // Through the same store and load the checkpoint file uses
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        job.toProperties().store(out, null);
+        Properties p = new Properties();
+        p.load(new ByteArrayInputStream(out.toByteArray()));
+        return AdminJob.fromProperties(p);
+    }
+
+    @Test
+    public void progressSurvivesACheckpoint() throws Exception {
+        Map<String, String> params = new HashMap<>();
+        params.put("toolid", "sakai.profile2");
+        params.put(AdminJob.PARAM_DRY_RUN, "true");
+        AdminJob job = new AdminJob("job-1", "addNewToolToAllWorkspaces", "admin-id", "admin", params, 1000L);
+        job.markRunning(2000L);
+        job.setTotal(10);
+        job.recordProcessed();
+        job.recordProcessed();
+        job.recordSkipped();
+        job.setLastKey("user-3");
+
+        AdminJob resumed = roundTrip(job);
+        assertEquals("job-1", resumed.getId());
+        assertEquals("addNewToolToAllWorkspaces", resumed.getType());
+        assertEquals("admin-id", resumed.getOwnerId());
+        assertEquals("admin", resumed.getOwnerEid());
+        assertEquals(1000L, resumed.getCreated());
+        assertEquals(2000L, resumed.getStarted());
+        assertEquals(10, resumed.getTotal());
+        assertEquals(2, resumed.getProcessed());
+        assertEquals(1, resumed.getSkipped());
+        assertEquals(0, resumed.getFailed());
+        assertEquals("user-3", resumed.getLastKey());
+        assertEquals(params, resumed.getParams());
+        assertTrue(resumed.isDryRun());
+        assertTrue(resumed.isResumed());
+        assertFalse(job.isResumed());
+        assertEquals(AdminJob.Status.QUEUED, resumed.getStatus());
+    }
+
+    @Test
+    public void failuresSurviveACheckpoint() throws Exception {
+        AdminJob job = new AdminJob("job-2", "resetAllUserWorkspace", "admin-id", null, new HashMap<>(), 1000L);
+        job.recordFailure("~user1", new IllegalStateException("locked"));
+        job.recordFailure("~user2", new RuntimeException("first line\nsecond line = yes"));
+
+        AdminJob resumed = roundTrip(job);
+        assertEquals("", resumed.getOwnerEid());
+        assertNull(resumed.getLastKey());
+        assertEquals(-1, resumed.getTotal());
+        assertEquals(2, resumed.getFailed());
+        List<AdminJob.Failure> failures = resumed.getFailures();
+        assertEquals(2, failures.size());
+        assertEquals("~user1", failures.get(0).getKey());
+        assertEquals("java.lang.IllegalStateException : locked", failures.get(0).getMessage());
+        assertEquals("~user2", failures.get(1).getKey());
+        assertEquals("java.lang.RuntimeException : first line\nsecond line = yes", failures.get(1).getMessage());
+
+        resumed.recordFailure("~user3", new RuntimeException("again"));
+        assertEquals(3, resumed.getFailed());
+        assertEquals("~user3", resumed.getFailures().get(2).getKey());
+    }
+
+    @Test
+    public void onlyTheFirstFailuresAreKept() throws Exception {
+        AdminJob job = new AdminJob("job-3", "resetAllUserWorkspace", "admin-id", "admin", new HashMap<>(), 1000L);
+        for (int i = 0; i < AdminJob.MAX_FAILURES + 5; i++) {
+            job.recordFailure("site-" + i, new RuntimeException("failed"));
+        }
+        assertEquals(AdminJob.MAX_FAILURES, job.getFailures().size());
+
+        AdminJob resumed = roundTrip(job);
+        assertEquals(AdminJob.MAX_FAILURES + 5, resumed.getFailed());
+        assertEquals(AdminJob.MAX_FAILURES, resumed.getFailures().size());
+        resumed.recordFailure("another", new RuntimeException("failed"));
+        assertEquals(AdminJob.MAX_FAILURES, resumed.getFailures().size());
+        assertEquals(AdminJob.MAX_FAILURES + 6, resumed.getFailed());
+    }
+
+    @Test
+    public void awaitFinishedReturnsOnceFinished() throws Exception {
+        AdminJob job = new AdminJob("job-4", "resetAllUserWorkspace", "admin-id", "admin", new HashMap<>(), 1000L);
+        Thread finisher = new Thread(() -> job.markFinished(AdminJob.Status.COMPLETED, null, 3000L));
+        finisher.start();
+        assertTrue(job.awaitFinished(10000));
+        assertTrue(job.isFinished());
+        assertEquals(3000L, job.getFinished());
+    }
+
+    @Test
+    public void awaitFinishedGivesUpAtTheTimeout() throws Exception {
+        AdminJob job = new AdminJob("job-5", "resetAllUserWorkspace", "admin-id", "admin", new HashMap<>(), 1000L);
+        job.markRunning(2000L);
+        assertFalse(job.awaitFinished(20));
+        assertFalse(job.isFinished());
+    }
+
+    @Test
+    public void aSuspendedJobIsFinishedHere() throws Exception {
+        AdminJob job = new AdminJob("job-6", "resetAllUserWorkspace", "admin-id", "admin", new HashMap<>(), 1000L);
+        job.markRunning(2000L);
+        job.markFinished(AdminJob.Status.SUSPENDED, "Stopped by shutdown", 3000L);
+        assertTrue(job.awaitFinished(0));
+        assertTrue(job.isFinished());
+        // but carries on from its checkpoint
+        assertEquals(AdminJob.Status.QUEUED, roundTrip(job).getStatus());
+    }
+}
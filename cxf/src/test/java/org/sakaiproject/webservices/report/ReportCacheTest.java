@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.report;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReportCacheTest {
+
+    private ReportCache cache;
+    private final AtomicInteger runs = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        cache = new ReportCache();
+        cache.setEnabled(true);
+        cache.setMaxBytes(4000);
+    }
+
+    private ReportCache.Result get(String key, String body) {
+        return cache.get(key, 60, () -> {
+            runs.incrementAndGet();
+            return body;
+        });
+    }
+
+    // As the cache counts them
+    private static long bytes(String key, String body) {
+        return 2L * (key.length() + body.length()) + 96;
+    }
+
+    private static String text(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void keyFoldsWhitespaceOutsideLiterals() {
+        Object[] args = {"site1"};
+        assertEquals(ReportCache.key("SELECT a, b\n  FROM t\tWHERE x = ?", args, "csv", 10),
+                ReportCache.key("  SELECT  a,  b FROM t WHERE x = ?  ", args, "csv", 10));
+        assertNotEquals(ReportCache.key("SELECT * FROM t WHERE x = 'a  b'", args, "csv", 10),
+                ReportCache.key("SELECT * FROM t WHERE x = 'a b'", args, "csv", 10));
+    }
+
+    @Test
+    public void keyDependsOnArgsFormatAndRows() {
+        String query = "SELECT * FROM t WHERE x = ?";
+        String key = ReportCache.key(query, new Object[] {"a"}, "csv", 10);
+        assertNotEquals(key, ReportCache.key(query, new Object[] {"b"}, "csv", 10));
+        assertNotEquals(key, ReportCache.key(query, new Object[] {"a"}, "json", 10));
+        assertNotEquals(key, ReportCache.key(query, new Object[] {"a"}, "csv", 11));
+        assertEquals(key, ReportCache.key(query, new Object[] {"a"}, "csv", 10));
+        // an argument can't run into the next part of the key
+        assertNotEquals(ReportCache.key(query, new Object[] {"a\u0000csv"}, "", 10),
+                ReportCache.key(query, new Object[] {"a"}, "csv", 10));
+    }
+
+    @Test
+    public void aResultIsRunOnceAndThenHeld() {
+        assertEquals(ReportCache.Source.MISS, get("k", "body").getSource());
+        ReportCache.Result again = get("k", "other");
+        assertEquals(ReportCache.Source.HIT, again.getSource());
+        assertEquals("body", again.getBody());
+        assertEquals(1, runs.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(bytes("k", "body"), cache.getBytes());
+    }
+
+    @Test
+    public void nothingIsHeldWhenDisabledOrWithoutATtl() {
+        cache.get("k", 0, () -> "body");
+        assertEquals(0, cache.getCachedCount());
+        cache.setEnabled(false);
+        get("k", "body");
+        get("k", "body");
+        assertEquals(2, runs.get());
+        assertEquals(0, cache.getCachedCount());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void dropsTheLeastRecentlyUsedToStayUnderMaxBytes() {
+        // four of these fit in 4000 bytes
+        String body = text(400);
+        for (String key : new String[] {"a", "b", "c", "d"}) {
+            get(key, body);
+        }
+        assertEquals(4, cache.getCachedCount());
+        assertEquals(4 * bytes("a", body), cache.getBytes());
+
+        // a is used, so b goes first
+        get("a", body);
+        get("e", body);
+        assertEquals(4, cache.getCachedCount());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(4 * bytes("a", body), cache.getBytes());
+
+        runs.set(0);
+        for (String key : new String[] {"a", "c", "d", "e"}) {
+            assertEquals(key, ReportCache.Source.HIT, get(key, body).getSource());
+        }
+        assertEquals(0, runs.get());
+        assertEquals(ReportCache.Source.MISS, get("b", body).getSource());
+    }
+
+    @Test
+    public void aResultOverAQuarterOfMaxBytesIsNotHeld() {
+        get("big", text(600));
+        assertEquals(0, cache.getCachedCount());
+        assertEquals(0, cache.getBytes());
+        assertEquals(ReportCache.Source.MISS, get("big", text(600)).getSource());
+    }
+
+    @Test
+    public void replacingAResultCountsItsBytesOnce() {
+        get("k", "short");
+        cache.clear();
+        assertEquals(0, cache.getBytes());
+        get("k", "a longer body");
+        assertEquals(bytes("k", "a longer body"), cache.getBytes());
+    }
+
+    @Test
+    public void aFailedRunIsNotHeld() {
+        try {
+            cache.get("k", 60, () -> {
+                throw new IllegalStateException("bad sql");
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("bad sql", e.getMessage());
+        }
+        assertEquals(0, cache.getCachedCount());
+        assertEquals(ReportCache.Source.MISS, get("k", "body").getSource());
+    }
+
+    @Test
+    public void callersAtTheSameTimeShareOneRun() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread first = new Thread(() -> cache.get("k", 60, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "body";
+        }));
+        first.start();
+        started.await();
+
+        AtomicReference<ReportCache.Result> second = new AtomicReference<>();
+        Thread waiter = new Thread(() -> second.set(get("k", "not run")));
+        waiter.start();
+        while (cache.getShared() == 0) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        first.join();
+        waiter.join();
+
+        assertEquals(ReportCache.Source.SHARED, second.get().getSource());
+        assertEquals("body", second.get().getBody());
+        assertEquals(0, runs.get());
+    }
+}
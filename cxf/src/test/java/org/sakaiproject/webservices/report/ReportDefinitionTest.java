@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.report;
+
+import static org.junit.Assert.*;
+
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ReportDefinitionTest {
+
+    private static Object convert(ReportDefinition.ParamType type, String value) {
+        return new ReportDefinition.Param("p", type).convert(value);
+    }
+
+    private static ReportDefinition report(int maxRows) {
+        return new ReportDefinition("r", "SELECT 1", Collections.emptyList(), maxRows, 0, 0);
+    }
+
+    @Test
+    public void convertsEachType() {
+        assertEquals(" as is ", convert(ReportDefinition.ParamType.STRING, " as is "));
+        assertEquals(42, convert(ReportDefinition.ParamType.INTEGER, " 42 "));
+        assertEquals(9000000000L, convert(ReportDefinition.ParamType.LONG, "9000000000"));
+        assertEquals(1.5, convert(ReportDefinition.ParamType.DOUBLE, "1.5"));
+        assertEquals(Boolean.TRUE, convert(ReportDefinition.ParamType.BOOLEAN, "TRUE"));
+        assertEquals(Boolean.FALSE, convert(ReportDefinition.ParamType.BOOLEAN, "yes"));
+        assertEquals(Date.valueOf("2024-02-29"), convert(ReportDefinition.ParamType.DATE, "2024-02-29"));
+        assertEquals(Timestamp.valueOf("2024-02-29 13:45:00"), convert(ReportDefinition.ParamType.TIMESTAMP, "2024-02-29T13:45"));
+        assertEquals(Timestamp.valueOf("2024-02-29 13:45:30"), convert(ReportDefinition.ParamType.TIMESTAMP, "2024-02-29T13:45:30"));
+    }
+
+    @Test
+    public void rejectsValuesThatAreNotTheirType() {
+        for (String[] bad : new String[][] {{"INTEGER", "4.2"}, {"INTEGER", "99999999999"}, {"LONG", "ten"},
+                {"DOUBLE", ""}, {"DATE", "2024-02-30"}, {"DATE", "29/02/2024"}, {"TIMESTAMP", "2024-02-29"}}) {
+            try {
+                convert(ReportDefinition.ParamType.valueOf(bad[0]), bad[1]);
+                fail(bad[0] + " accepted " + bad[1]);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Parameter p is not a valid " + bad[0].toLowerCase()));
+            }
+        }
+    }
+
+    @Test
+    public void bindsInTheOrderOfTheParameters() {
+        ReportDefinition report = new ReportDefinition("r", "SELECT ? , ?", Arrays.asList(
+                new ReportDefinition.Param("siteId", ReportDefinition.ParamType.STRING),
+                new ReportDefinition.Param("limit", ReportDefinition.ParamType.INTEGER)), 10, 0, 0);
+        Map<String, String> values = new HashMap<>();
+        values.put("limit", "5");
+        values.put("siteId", "abc");
+        values.put("unused", "x");
+        assertArrayEquals(new Object[] {"abc", 5}, report.bind(values));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aMissingParameterIsAnError() {
+        ReportDefinition report = new ReportDefinition("r", "SELECT ?", Collections.singletonList(
+                new ReportDefinition.Param("siteId", ReportDefinition.ParamType.STRING)), 10, 0, 0);
+        report.bind(new HashMap<>());
+    }
+
+    @Test
+    public void rowsCanOnlyLowerTheReportsLimit() {
+        ReportDefinition limited = report(100);
+        assertEquals(100, limited.rowsFor(0));
+        assertEquals(100, limited.rowsFor(-1));
+        assertEquals(10, limited.rowsFor(10));
+        assertEquals(100, limited.rowsFor(100));
+        assertEquals(100, limited.rowsFor(1000));
+
+        ReportDefinition unlimited = report(0);
+        assertEquals(0, unlimited.rowsFor(0));
+        assertEquals(1000, unlimited.rowsFor(1000));
+    }
+
+    @Test
+    public void recordsRuns() {
+        ReportDefinition report = report(0);
+        report.record(1000, 5, false);
+        report.record(3000, 0, true);
+        assertEquals(2, report.getRuns());
+        assertEquals(1, report.getErrors());
+        assertEquals(5, report.getRows());
+        assertEquals(2, report.getLatency().getCount());
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.report;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ReportJobTest {
+
+    private final AtomicInteger cancels = new AtomicInteger();
+
+    private Statement statement() {
+        return (Statement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { Statement.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("cancel")) {
+                        cancels.incrementAndGet();
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    private ReportJob running() {
+        ReportJob job = new ReportJob("1", "admin", "select 1", ReportFormat.CSV, false, 0);
+        assertTrue(job.markRunning(new File("report-1.csv"), 0));
+        return job;
+    }
+
+    @Test
+    public void cancelStopsTheRunningStatement() {
+        ReportJob job = running();
+        job.setStatement(statement());
+        assertFalse(job.requestCancel());
+        assertEquals(1, cancels.get());
+        assertTrue(job.isCancelRequested());
+    }
+
+    @Test
+    public void cancelBeforeTheStatementStartsStopsItWhenItDoes() {
+        ReportJob job = running();
+        job.requestCancel();
+        assertEquals(0, cancels.get());
+        job.setStatement(statement());
+        assertEquals(1, cancels.get());
+    }
+
+    @Test
+    public void cancelAfterTheStatementIsClearedLeavesItAlone() {
+        ReportJob job = running();
+        job.setStatement(statement());
+        job.setStatement(null);
+        job.requestCancel();
+        assertEquals(0, cancels.get());
+    }
+}
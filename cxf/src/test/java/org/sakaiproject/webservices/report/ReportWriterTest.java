@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2005 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.webservices.report;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+
+import org.junit.Test;
+
+public class ReportWriterTest {
+
+    private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+    /**
+     * A result set over the given rows, with every column read by getString, getNString, getInt or getObject.
+     */
+    private static ResultSet resultSet(String[] labels, int[] types, Object[]... rows) {
+        ResultSetMetaData rsmd = (ResultSetMetaData) Proxy.newProxyInstance(ReportWriterTest.class.getClassLoader(),
+                new Class<?>[] { ResultSetMetaData.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getColumnCount":
+                            return labels.length;
+                        case "getColumnLabel":
+                            return labels[(Integer) args[0] - 1];
+                        case "getColumnType":
+                            return types[(Integer) args[0] - 1];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        int[] row = { -1 };
+        return (ResultSet) Proxy.newProxyInstance(ReportWriterTest.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getMetaData":
+                            return rsmd;
+                        case "next":
+                            return ++row[0] < rows.length;
+                        case "getString":
+                        case "getNString":
+                        case "getObject":
+                            return rows[row[0]][(Integer) args[0] - 1];
+                        case "getInt":
+                            return rows[row[0]][(Integer) args[0] - 1];
+                        case "wasNull":
+                            return false;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static String write(ReportFormat format, ResultSet rs) throws Exception {
+        StringWriter out = new StringWriter();
+        ReportWriter.forFormat(format).write(rs, out);
+        return out.toString();
+    }
+
+    @Test
+    public void csvQuotesEveryValueAndLeavesNullsEmpty() throws Exception {
+        ResultSet rs = resultSet(new String[] { "A", "B", "C" }, new int[] { Types.VARCHAR, Types.VARCHAR, Types.INTEGER },
+                new Object[] { "say \"hi\"", null, 3 },
+                new Object[] { "a,b", "", 4 });
+        assertEquals("\"say \"\"hi\"\"\",,\"3\"\n\"a,b\",\"\",\"4\"\n", write(ReportFormat.CSV, rs));
+    }
+
+    @Test
+    public void csvHeaderRowAndInvalidCharacters() throws Exception {
+        ResultSet rs = resultSet(new String[] { "NAME\u0001" }, new int[] { Types.VARCHAR },
+                new Object[] { "a\u0002b\uffff\"c\r\n" });
+        assertEquals("\"NAME\"\n\"ab\"\"c\r\n\"\n", write(ReportFormat.CSV_WITH_HEADER_ROW, rs));
+    }
+
+    @Test
+    public void jsonWritesColumnsInOrderAndLeavesOutNulls() throws Exception {
+        ResultSet rs = resultSet(new String[] { "ID", "NAME", "NOTE" }, new int[] { Types.INTEGER, Types.VARCHAR, Types.VARCHAR },
+                new Object[] { 1, "one", null },
+                new Object[] { 2, "two", "x" });
+        assertEquals("[{\"ID\":1,\"NAME\":\"one\"},{\"ID\":2,\"NAME\":\"two\",\"NOTE\":\"x\"}]", write(ReportFormat.JSON, rs));
+    }
+
+    @Test
+    public void jsonEscapesAsOrgJsonAndStripsInvalidCharacters() throws Exception {
+        ResultSet rs = resultSet(new String[] { "V" }, new int[] { Types.VARCHAR },
+                new Object[] { "</a>\"\\\t\n\u0001\u0085\uffff/" });
+        assertEquals("[{\"V\":\"<\\/a>\\\"\\\\\\t\\n\\u0001\\u0085/\"}]", write(ReportFormat.JSON, rs));
+    }
+
+    @Test
+    public void jsonKeepsTheLastOfColumnsWithTheSameLabel() throws Exception {
+        ResultSet rs = resultSet(new String[] { "ID", "X", "ID" }, new int[] { Types.VARCHAR, Types.VARCHAR, Types.VARCHAR },
+                new Object[] { "first", "x", "last" });
+        assertEquals("[{\"X\":\"x\",\"ID\":\"last\"}]", write(ReportFormat.JSON, rs));
+    }
+
+    @Test
+    public void jsonWithNoRowsIsAnEmptyArray() throws Exception {
+        assertEquals("[]", write(ReportFormat.JSON, resultSet(new String[] { "A" }, new int[] { Types.VARCHAR })));
+    }
+
+    @Test
+    public void xmlEscapesMarkupAndStripsInvalidCharacters() throws Exception {
+        ResultSet rs = resultSet(new String[] { "A", "B" }, new int[] { Types.VARCHAR, Types.VARCHAR },
+                new Object[] { "x&<y>\u0001", null });
+        assertEquals(DECLARATION + "<Results><Row><A>x&amp;&lt;y&gt;</A><B/></Row></Results>", write(ReportFormat.XML, rs));
+    }
+
+    @Test
+    public void stopsBetweenRowsOnceCancelled() throws Exception {
+        ResultSet rs = resultSet(new String[] { "A" }, new int[] { Types.VARCHAR },
+                new Object[] { "1" }, new Object[] { "2" }, new Object[] { "3" });
+        int[] checks = { 0 };
+        StringWriter out = new StringWriter();
+        long rows = ReportWriter.forFormat(ReportFormat.CSV).cancelWhen(() -> ++checks[0] > 2).write(rs, out);
+        assertEquals(2, rows);
+        assertEquals("\"1\"\n\"2\"\n", out.toString());
+    }
+}